@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import com.benio.sonycameradsc_qx100.utils.SharpnessAnalyzer;
+
+/**
+ * An overlay highlighting edges in focus, from masks made by a
+ * {@link SharpnessAnalyzer}, for {@link SimpleStreamSurfaceView}. A mask is
+ * copied into a reused bitmap when a new one arrives, and the bitmap is
+ * scaled over the frame. This must be drawn on a single thread.
+ */
+final class FocusPeakingOverlay {
+
+    private final SharpnessAnalyzer mAnalyzer;
+
+    private final Paint mPaint = new Paint();
+
+    private Bitmap mMaskBitmap;
+
+    /**
+     * Constructor
+     *
+     * @param analyzer analyzer making edge masks
+     */
+    FocusPeakingOverlay(SharpnessAnalyzer analyzer) {
+        mAnalyzer = analyzer;
+    }
+
+    /**
+     * Draws the newest mask over the frame.
+     *
+     * @param canvas
+     * @param area   area where the liveview image is drawn
+     */
+    void draw(Canvas canvas, Rect area) {
+        SharpnessAnalyzer.EdgeMask mask = mAnalyzer.acquireEdgeMask();
+        if (mask != null) {
+            int width = mask.getWidth();
+            int height = mask.getHeight();
+            if (mMaskBitmap == null || mMaskBitmap.getWidth() != width
+                    || mMaskBitmap.getHeight() != height) {
+                if (mMaskBitmap != null) {
+                    mMaskBitmap.recycle();
+                }
+                mMaskBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            }
+            mMaskBitmap.setPixels(mask.getPixels(), 0, width, 0, 0, width, height);
+            mAnalyzer.releaseEdgeMask(mask);
+        }
+        if (mMaskBitmap != null) {
+            canvas.drawBitmap(mMaskBitmap, null, area, mPaint);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100;
+
+import java.io.IOException;
+
+/**
+ * A decode engine which renders JPEG frames directly to an output Surface,
+ * without a Bitmap in between.
+ */
+interface FrameDecoder {
+
+    /**
+     * Prepares the decoder for frames of the indicated dimensions. This is
+     * called before the first frame and whenever the dimensions change.
+     *
+     * @param width
+     * @param height
+     * @return false if the decoder is not available for the dimensions.
+     */
+    boolean configure(int width, int height);
+
+    /**
+     * Decodes a frame and renders it to the output. A frame may be dropped
+     * if the decoder is still busy with previous ones.
+     *
+     * @param data   container of JPEG data
+     * @param offset offset of JPEG data
+     * @param length length of JPEG data
+     * @throws IOException if the decoder failed and cannot be used any more.
+     */
+    void decode(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Releases the decoder and its output. configure() may be called again
+     * after this.
+     */
+    void release();
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100;
+
+import android.util.Log;
+
+import com.benio.sonycameradsc_qx100.utils.JpegHeaderReader;
+
+import java.io.IOException;
+
+/**
+ * Renders frames with a {@link FrameDecoder}, and falls back to the software
+ * path of {@link SimpleStreamSurfaceView} for good once the decoder is not
+ * available or fails. The decoder is configured again when the frame
+ * dimensions change, and after {@link #release()}. Configuring again fails
+ * on a Surface which a canvas has drawn to, and falls back as well.
+ */
+final class HardwareDecodePath {
+
+    private static final String TAG = HardwareDecodePath.class.getSimpleName();
+
+    private final FrameDecoder mDecoder;
+
+    private final int[] mFrameSize = new int[2];
+
+    private int mConfiguredWidth = -1;
+
+    private int mConfiguredHeight = -1;
+
+    private boolean mFallenBack;
+
+    /**
+     * Constructor
+     *
+     * @param decoder
+     */
+    HardwareDecodePath(FrameDecoder decoder) {
+        mDecoder = decoder;
+    }
+
+    /**
+     * Renders a frame with the decoder.
+     *
+     * @param data   container of JPEG data
+     * @param offset offset of JPEG data
+     * @param length length of JPEG data
+     * @return true if the frame was handled, including a broken frame which
+     * is skipped. false if the frame has to be decoded by the software path,
+     * which is the case for every frame after a fallback.
+     */
+    boolean render(byte[] data, int offset, int length) {
+        if (mFallenBack) {
+            return false;
+        }
+        if (!JpegHeaderReader.readSize(data, offset, length, mFrameSize)) {
+            // Broken JPEG data. The software path would not decode it either.
+            return true;
+        }
+
+        if (mFrameSize[0] != mConfiguredWidth || mFrameSize[1] != mConfiguredHeight) {
+            if (0 <= mConfiguredWidth) {
+                mDecoder.release();
+                mConfiguredWidth = -1;
+                mConfiguredHeight = -1;
+            }
+            if (!mDecoder.configure(mFrameSize[0], mFrameSize[1])) {
+                Log.w(TAG, "No hardware decoder for " + mFrameSize[0] + "x" + mFrameSize[1]
+                        + ". Falling back to software decoding.");
+                mFallenBack = true;
+                return false;
+            }
+            mConfiguredWidth = mFrameSize[0];
+            mConfiguredHeight = mFrameSize[1];
+        }
+
+        try {
+            mDecoder.decode(data, offset, length);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Hardware decoder failed: " + e.getMessage()
+                    + ". Falling back to software decoding.");
+            release();
+            mFallenBack = true;
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether frames are decoded by the software path.
+     *
+     * @return
+     */
+    boolean isFallenBack() {
+        return mFallenBack;
+    }
+
+    /**
+     * Releases the decoder, which gives the output Surface back to the
+     * software path.
+     */
+    void release() {
+        if (0 <= mConfiguredWidth) {
+            mDecoder.release();
+            mConfiguredWidth = -1;
+            mConfiguredHeight = -1;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+
+import com.benio.sonycameradsc_qx100.utils.LuminanceAnalyzer;
+
+/**
+ * An overlay of the luminance histogram and clipping percentages computed by
+ * a {@link LuminanceAnalyzer}, for {@link SimpleStreamSurfaceView}. The text
+ * is rebuilt in a preallocated char array only when a new result arrives, so
+ * showing the overlay allocates nothing per frame. This must be drawn on a
+ * single thread.
+ */
+final class HistogramOverlay {
+
+    private static final int BAR_COUNT = 64;
+
+    private static final int BINS_PER_BAR = 256 / BAR_COUNT;
+
+    private final LuminanceAnalyzer mAnalyzer;
+
+    private LuminanceAnalyzer.Histogram mShownHistogram;
+
+    private long mShownTimestamp;
+
+    private final char[] mLine = new char[48];
+
+    private int mLineLength;
+
+    private final Paint mBarPaint;
+
+    private final Paint mClippedBarPaint;
+
+    private final Paint mTextPaint;
+
+    private final Paint mBackgroundPaint;
+
+    /**
+     * Constructor
+     *
+     * @param analyzer
+     * @param textSize text size in pixels
+     */
+    HistogramOverlay(LuminanceAnalyzer analyzer, float textSize) {
+        mAnalyzer = analyzer;
+
+        mBarPaint = new Paint();
+        mBarPaint.setColor(Color.WHITE);
+        mBarPaint.setStyle(Paint.Style.FILL);
+
+        mClippedBarPaint = new Paint();
+        mClippedBarPaint.setColor(Color.RED);
+        mClippedBarPaint.setStyle(Paint.Style.FILL);
+
+        mTextPaint = new Paint();
+        mTextPaint.setColor(Color.WHITE);
+        mTextPaint.setAntiAlias(true);
+        mTextPaint.setTypeface(Typeface.MONOSPACE);
+        mTextPaint.setTextSize(textSize);
+
+        mBackgroundPaint = new Paint();
+        mBackgroundPaint.setColor(Color.argb(0x99, 0, 0, 0));
+        mBackgroundPaint.setStyle(Paint.Style.FILL);
+    }
+
+    LuminanceAnalyzer getAnalyzer() {
+        return mAnalyzer;
+    }
+
+    /**
+     * Draws the histogram at the lower left of the canvas.
+     *
+     * @param canvas
+     */
+    void draw(Canvas canvas) {
+        LuminanceAnalyzer.Histogram histogram = mAnalyzer.acquireLatest();
+        if (histogram == null) {
+            return;
+        }
+        if (histogram != mShownHistogram || histogram.getTimestamp() != mShownTimestamp) {
+            updateLine(histogram);
+            mShownHistogram = histogram;
+            mShownTimestamp = histogram.getTimestamp();
+        }
+
+        float textSize = mTextPaint.getTextSize();
+        float width = textSize * 16;
+        float graphHeight = textSize * 4;
+        float lineHeight = textSize * 1.2f;
+        float bottom = canvas.getHeight();
+        float top = bottom - graphHeight - lineHeight - 8;
+        canvas.drawRect(0, top, width + 8, bottom, mBackgroundPaint);
+
+        float barWidth = width / BAR_COUNT;
+        float graphBottom = bottom - 4;
+        int maxBarCount = 0;
+        for (int i = 0; i < BAR_COUNT; i++) {
+            maxBarCount = Math.max(maxBarCount, barCount(histogram, i));
+        }
+        for (int i = 0; maxBarCount != 0 && i < BAR_COUNT; i++) {
+            float height = graphHeight * barCount(histogram, i) / maxBarCount;
+            float left = 4 + barWidth * i;
+            boolean clipped = (i + 1) * BINS_PER_BAR - 1 <= LuminanceAnalyzer.SHADOW_THRESHOLD
+                    || LuminanceAnalyzer.HIGHLIGHT_THRESHOLD <= i * BINS_PER_BAR;
+            canvas.drawRect(left, graphBottom - height, left + barWidth, graphBottom,
+                    clipped ? mClippedBarPaint : mBarPaint);
+        }
+        canvas.drawText(mLine, 0, mLineLength, 4, top + textSize, mTextPaint);
+    }
+
+    private static int barCount(LuminanceAnalyzer.Histogram histogram, int bar) {
+        int count = 0;
+        for (int i = bar * BINS_PER_BAR; i < (bar + 1) * BINS_PER_BAR; i++) {
+            count += histogram.bins[i];
+        }
+        return count;
+    }
+
+    private void updateLine(LuminanceAnalyzer.Histogram histogram) {
+        int pos = PerformanceHud.append(mLine, 0, "clip hi ");
+        pos = PerformanceHud.appendTenths(mLine, pos,
+                Math.round(histogram.getHighlightClipping() * 10));
+        pos = PerformanceHud.append(mLine, pos, "% lo ");
+        pos = PerformanceHud.appendTenths(mLine, pos,
+                Math.round(histogram.getShadowClipping() * 10));
+        mLineLength = PerformanceHud.append(mLine, pos, "%");
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link FrameDecoder} using a hardware Motion JPEG decoder of the platform
+ * through MediaCodec. Decoded frames are rendered to the Surface, scaled to
+ * fit it. Not every device has such a decoder, in which case configure()
+ * fails.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class MediaCodecFrameDecoder implements FrameDecoder {
+
+    private static final String TAG = MediaCodecFrameDecoder.class.getSimpleName();
+
+    private static final String MIME_TYPE = "video/mjpeg";
+
+    private static final long INPUT_TIMEOUT = 10000; // [usec]
+
+    private static final long OUTPUT_TIMEOUT = 30000; // [usec]
+
+    private final Surface mSurface;
+
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    private MediaCodec mCodec;
+
+    private int mMaxInputSize;
+
+    /**
+     * Constructor
+     *
+     * @param surface output of decoded frames
+     */
+    MediaCodecFrameDecoder(Surface surface) {
+        mSurface = surface;
+    }
+
+    @Override
+    public boolean configure(int width, int height) {
+        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        // A JPEG frame is far smaller than its raw pixels.
+        mMaxInputSize = width * height * 2;
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, mMaxInputSize);
+
+        String codecName = new MediaCodecList(MediaCodecList.REGULAR_CODECS)
+                .findDecoderForFormat(format);
+        if (codecName == null) {
+            return false;
+        }
+        try {
+            mCodec = MediaCodec.createByCodecName(codecName);
+            mCodec.configure(format, mSurface, null, 0);
+            mCodec.setVideoScalingMode(MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT);
+            mCodec.start();
+        } catch (IOException e) {
+            Log.w(TAG, "configure() " + codecName + ": " + e.getMessage());
+            release();
+            return false;
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "configure() " + codecName + ": " + e.getMessage());
+            release();
+            return false;
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "configure() " + codecName + ": " + e.getMessage());
+            release();
+            return false;
+        }
+        Log.d(TAG, "Decoding " + width + "x" + height + " frames by " + codecName);
+        return true;
+    }
+
+    @Override
+    public void decode(byte[] data, int offset, int length) throws IOException {
+        if (mMaxInputSize < length) {
+            throw new IOException("Frame too large: " + length);
+        }
+        try {
+            int inputIndex = mCodec.dequeueInputBuffer(INPUT_TIMEOUT);
+            if (inputIndex < 0) {
+                // Still busy with previous frames. Drop this one.
+                renderOutput(0);
+                return;
+            }
+            ByteBuffer input = mCodec.getInputBuffer(inputIndex);
+            input.clear();
+            input.put(data, offset, length);
+            mCodec.queueInputBuffer(inputIndex, 0, length, System.nanoTime() / 1000, 0);
+            renderOutput(OUTPUT_TIMEOUT);
+        } catch (IllegalStateException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    /**
+     * Renders decoded frames to the Surface.
+     *
+     * @param timeout time to wait for the first frame in microseconds
+     */
+    private void renderOutput(long timeout) {
+        while (true) {
+            int outputIndex = mCodec.dequeueOutputBuffer(mBufferInfo, timeout);
+            if (outputIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                return;
+            }
+            if (0 <= outputIndex) {
+                mCodec.releaseOutputBuffer(outputIndex, true);
+                timeout = 0;
+            }
+            // Format and buffer changes need nothing, as output goes to the Surface.
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mCodec == null) {
+            return;
+        }
+        try {
+            mCodec.stop();
+        } catch (IllegalStateException e) {
+            // Not started, or already failed.
+        }
+        mCodec.release();
+        mCodec = null;
+    }
+}
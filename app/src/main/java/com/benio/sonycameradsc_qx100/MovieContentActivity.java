@@ -13,8 +13,12 @@ import android.util.Log;
 import android.view.View;
 import android.view.Window;
 import android.widget.Button;
+import android.widget.SeekBar;
+import android.widget.TextView;
 
 import com.benio.sonycameradsc_qx100.utils.DisplayHelper;
+import com.benio.sonycameradsc_qx100.utils.SimpleLiveviewSlicer;
+import com.benio.sonycameradsc_qx100.utils.StreamingPlaybackInfo;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -25,6 +29,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Locale;
 
 public class MovieContentActivity extends Activity {
 
@@ -42,6 +47,26 @@ public class MovieContentActivity extends Activity {
 
     private Button mButtonSaveMovie;
 
+    private SeekBar mSeekBarPosition;
+
+    private TextView mTextPosition;
+
+    private volatile long mPlaybackPositionSec = -1;
+
+    private volatile long mPlaybackDurationSec = -1;
+
+    private final Runnable mUpdatePlaybackPosition = new Runnable() {
+
+        @Override
+        public void run() {
+            long position = mPlaybackPositionSec;
+            long duration = mPlaybackDurationSec;
+            mSeekBarPosition.setMax((int) duration);
+            mSeekBarPosition.setProgress((int) position);
+            mTextPosition.setText(formatTime(position) + " / " + formatTime(duration));
+        }
+    };
+
     private SimpleRemoteApi mRemoteApi;
 
     @Override
@@ -54,6 +79,31 @@ public class MovieContentActivity extends Activity {
 
         mStreamSurface = (SimpleStreamSurfaceView) findViewById(R.id.surfaceview_movie);
         mButtonSaveMovie = (Button) findViewById(R.id.button_save_movie);
+        mSeekBarPosition = (SeekBar) findViewById(R.id.seekbar_movie_position);
+        mTextPosition = (TextView) findViewById(R.id.text_movie_position);
+
+        // Draw frames at the pace of the content, and show its position.
+        mStreamSurface.setTimestampPacingEnabled(true);
+        // Decode high resolution frames on spare cores, one is left for fetching.
+        int decoderCount = Runtime.getRuntime().availableProcessors() - 1;
+        mStreamSurface.setParallelDecoderCount(Math.max(1, Math.min(decoderCount, 4)));
+        mStreamSurface.setPlaybackInfoListener(new SimpleLiveviewSlicer.PlaybackInfoListener() {
+
+            @Override
+            public void onPlaybackInfo(StreamingPlaybackInfo info) {
+                long position = info.getPositionMillis() / 1000;
+                long duration = info.getDurationMillis() / 1000;
+                if (position != mPlaybackPositionSec || duration != mPlaybackDurationSec) {
+                    mPlaybackPositionSec = position;
+                    mPlaybackDurationSec = duration;
+                    mSeekBarPosition.post(mUpdatePlaybackPosition);
+                }
+            }
+        });
+    }
+
+    private static String formatTime(long seconds) {
+        return String.format(Locale.US, "%d:%02d", seconds / 60, seconds % 60);
     }
 
     @Override
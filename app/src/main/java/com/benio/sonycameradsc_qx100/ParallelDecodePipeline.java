@@ -0,0 +1,294 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import com.benio.sonycameradsc_qx100.utils.BitmapPool;
+import com.benio.sonycameradsc_qx100.utils.JpegHeaderReader;
+import com.benio.sonycameradsc_qx100.utils.ReorderBuffer;
+import com.benio.sonycameradsc_qx100.utils.SimpleLiveviewSlicer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A decode stage of {@link SimpleStreamSurfaceView} which decodes frames on
+ * several threads and presents them in the order they were submitted. Every
+ * submitted frame is presented unless its decoding fails, so the fetcher is
+ * blocked by {@link #submit} while all slots are in flight.
+ */
+final class ParallelDecodePipeline {
+
+    private static final String TAG = ParallelDecodePipeline.class.getSimpleName();
+
+    /**
+     * The consumer of decoded frames.
+     */
+    interface Presenter {
+
+        /**
+         * Called on the presenter thread for each decoded frame, in the
+         * submitted order. The bitmap goes back to the pool after this call.
+         *
+         * @param frame
+         * @param timestamp time stamp of the Payload
+         * @throws InterruptedException
+         */
+        void present(Bitmap frame, long timestamp) throws InterruptedException;
+
+        int getSurfaceWidth();
+
+        int getSurfaceHeight();
+    }
+
+    /**
+     * A frame in flight. A slot is owned by the fetcher until it is queued,
+     * by a decoder until its ticket is completed, and by the presenter until
+     * its ticket is released.
+     */
+    private static final class Slot {
+        long ticket;
+
+        SimpleLiveviewSlicer.Payload payload;
+
+        Bitmap bitmap;
+
+        long timestamp;
+    }
+
+    private final boolean mInMutableAvailable = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+
+    private final ReorderBuffer mReorderBuffer;
+
+    private final Slot[] mSlots;
+
+    private final BlockingQueue<Slot> mDecodeQueue;
+
+    private final BitmapPool mBitmapPool;
+
+    private final Presenter mPresenter;
+
+    private final PerformanceHud mPerformanceHud;
+
+    private final Thread[] mThreads;
+
+    /**
+     * Constructor
+     *
+     * @param decoderCount number of decoder threads
+     * @param bitmapPool   pool shared by the decoders
+     * @param presenter
+     * @param hud          overlay to count decode time, or null
+     */
+    ParallelDecodePipeline(int decoderCount, BitmapPool bitmapPool, Presenter presenter,
+                           PerformanceHud hud) {
+        mReorderBuffer = new ReorderBuffer(decoderCount * 2);
+        mSlots = new Slot[mReorderBuffer.getCapacity()];
+        for (int i = 0; i < mSlots.length; i++) {
+            mSlots[i] = new Slot();
+        }
+        mDecodeQueue = new ArrayBlockingQueue<Slot>(mSlots.length);
+        mBitmapPool = bitmapPool;
+        mPresenter = presenter;
+        mPerformanceHud = hud;
+
+        mThreads = new Thread[decoderCount + 1];
+        for (int i = 0; i < decoderCount; i++) {
+            mThreads[i] = new Thread("JpegDecoder-" + i) {
+                @Override
+                public void run() {
+                    runDecoder();
+                }
+            };
+        }
+        mThreads[decoderCount] = new Thread("FramePresenter") {
+            @Override
+            public void run() {
+                runPresenter();
+            }
+        };
+    }
+
+    void start() {
+        for (Thread thread : mThreads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops all threads and releases Payloads not decoded yet.
+     */
+    void stop() {
+        for (Thread thread : mThreads) {
+            thread.interrupt();
+        }
+        Slot slot;
+        while ((slot = mDecodeQueue.poll()) != null) {
+            slot.payload.release();
+            slot.payload = null;
+        }
+    }
+
+    /**
+     * Submits a Payload to be decoded. The pipeline releases the Payload.
+     *
+     * @param payload
+     * @param timeout maximum time to wait for a free slot
+     * @param unit    unit of timeout
+     * @return false if no slot is freed in time. The Payload still belongs to
+     * the caller.
+     * @throws InterruptedException
+     */
+    boolean submit(SimpleLiveviewSlicer.Payload payload, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long ticket = mReorderBuffer.issue(timeout, unit);
+        if (ticket < 0) {
+            return false;
+        }
+        Slot slot = mSlots[mReorderBuffer.slotOf(ticket)];
+        slot.ticket = ticket;
+        slot.payload = payload;
+        mDecodeQueue.add(slot);
+        return true;
+    }
+
+    private void runDecoder() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if (mInMutableAvailable) {
+            setInMutable(options);
+        }
+        int[] jpegSize = new int[2];
+
+        while (true) {
+            Slot slot;
+            try {
+                slot = mDecodeQueue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            SimpleLiveviewSlicer.Payload payload = slot.payload;
+            slot.payload = null;
+
+            long decodeNanos = System.nanoTime();
+            Bitmap bitmap = null;
+            try {
+                bitmap = decode(payload, options, jpegSize);
+                decodeNanos = System.nanoTime() - decodeNanos;
+                if (bitmap != null && mPerformanceHud != null) {
+                    mPerformanceHud.onFrameDecoded(decodeNanos);
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to decode a frame: " + e);
+            } catch (OutOfMemoryError e) {
+                Log.w(TAG, "Out of memory decoding a frame.");
+            } finally {
+                payload.release();
+                // The presenter waits for every ticket in order, so the slot
+                // is completed even if decoding failed. A null bitmap is
+                // skipped.
+                slot.bitmap = bitmap;
+                slot.timestamp = payload.timestamp;
+                mReorderBuffer.complete(slot.ticket);
+            }
+        }
+    }
+
+    private void runPresenter() {
+        while (true) {
+            long ticket;
+            try {
+                ticket = mReorderBuffer.takeNext();
+            } catch (InterruptedException e) {
+                break;
+            }
+            Slot slot = mSlots[mReorderBuffer.slotOf(ticket)];
+            Bitmap bitmap = slot.bitmap;
+            long timestamp = slot.timestamp;
+            slot.bitmap = null;
+            mReorderBuffer.release(ticket);
+
+            if (bitmap == null) {
+                // Broken JPEG data.
+                continue;
+            }
+            try {
+                mPresenter.present(bitmap, timestamp);
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                mBitmapPool.release(bitmap);
+            }
+        }
+        Log.d(TAG, "Presenter thread finished.");
+    }
+
+    /**
+     * Decodes the newest frame of the Payload at a sample size fitting the
+     * surface, into a pooled bitmap if one of the right size is free.
+     *
+     * @param payload
+     * @param options
+     * @param jpegSize
+     * @return bitmap, or null if the data is broken.
+     */
+    private Bitmap decode(SimpleLiveviewSlicer.Payload payload, BitmapFactory.Options options,
+                          int[] jpegSize) {
+        int frameIndex = payload.frameCount - 1;
+        int frameOffset = payload.getFrameOffset(frameIndex);
+        int frameLength = payload.getFrameLength(frameIndex);
+
+        int sampleSize = 1;
+        boolean sizeKnown = JpegHeaderReader.readSize(payload.jpegData, frameOffset,
+                frameLength, jpegSize);
+        if (sizeKnown) {
+            sampleSize = SimpleStreamSurfaceView.calculateSampleSize(jpegSize[0], jpegSize[1],
+                    mPresenter.getSurfaceWidth(), mPresenter.getSurfaceHeight());
+        }
+        options.inSampleSize = sampleSize;
+
+        Bitmap reused = null;
+        if (mInMutableAvailable && sizeKnown && (sampleSize == 1
+                || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)) {
+            reused = mBitmapPool.acquire((jpegSize[0] + sampleSize - 1) / sampleSize,
+                    (jpegSize[1] + sampleSize - 1) / sampleSize);
+        }
+        if (mInMutableAvailable) {
+            setInBitmap(options, reused);
+        }
+        try {
+            return BitmapFactory.decodeByteArray(payload.jpegData, frameOffset, frameLength,
+                    options);
+        } catch (IllegalArgumentException e) {
+            if (reused == null) {
+                return null;
+            }
+            // The pooled bitmap was not accepted. Decode into a new one.
+            reused.recycle();
+            setInBitmap(options, null);
+            try {
+                return BitmapFactory.decodeByteArray(payload.jpegData, frameOffset,
+                        frameLength, options);
+            } catch (IllegalArgumentException e2) {
+                return null;
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void setInMutable(BitmapFactory.Options options) {
+        options.inMutable = true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void setInBitmap(BitmapFactory.Options options, Bitmap bitmap) {
+        options.inBitmap = bitmap;
+    }
+}
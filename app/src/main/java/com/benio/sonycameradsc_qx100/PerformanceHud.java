@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.os.SystemClock;
+
+import com.benio.sonycameradsc_qx100.utils.SimpleLiveviewSlicer;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An overlay of performance figures for {@link SimpleStreamSurfaceView}. The
+ * fetch and decoding threads only update atomic counters without locking,
+ * and the statistics and text are computed in preallocated arrays twice a
+ * second on the thread drawing frames, so showing the overlay allocates
+ * nothing per frame. The figures start afresh with each stream.
+ */
+final class PerformanceHud {
+
+    private static final long UPDATE_INTERVAL = 500; // [msec]
+
+    private static final int DECODE_WINDOW = 64;
+
+    private static final int LINE_COUNT = 5;
+
+    private static final int LINE_LENGTH = 64;
+
+    private volatile SimpleLiveviewSlicer mSlicer;
+
+    // Updated on decoding threads.
+    private final AtomicLong mDecodedFrameCount = new AtomicLong();
+
+    private final AtomicInteger mDecodeSampleCount = new AtomicInteger();
+
+    private final AtomicIntegerArray mDecodeMicros = new AtomicIntegerArray(DECODE_WINDOW);
+
+    // Set by setSlicer(), and handled on the thread drawing frames.
+    private volatile boolean mResetPending;
+
+    // Accessed only on the thread drawing frames.
+    private long mDrawnFrameCount;
+
+    private long mLastUpdateUptime = -1;
+
+    private long mLastReceivedFrames;
+
+    private long mLastReceivedBytes;
+
+    private long mLastDecodedFrames;
+
+    private long mLastDrawnFrames;
+
+    private final int[] mSortBuffer = new int[DECODE_WINDOW];
+
+    private final char[][] mLines = new char[LINE_COUNT][LINE_LENGTH];
+
+    private final int[] mLineLengths = new int[LINE_COUNT];
+
+    private final Paint mTextPaint;
+
+    private final Paint mBackgroundPaint;
+
+    /**
+     * Constructor
+     *
+     * @param textSize text size in pixels
+     */
+    PerformanceHud(float textSize) {
+        mTextPaint = new Paint();
+        mTextPaint.setColor(Color.WHITE);
+        mTextPaint.setAntiAlias(true);
+        mTextPaint.setTypeface(Typeface.MONOSPACE);
+        mTextPaint.setTextSize(textSize);
+
+        mBackgroundPaint = new Paint();
+        mBackgroundPaint.setColor(Color.argb(0x99, 0, 0, 0));
+        mBackgroundPaint.setStyle(Paint.Style.FILL);
+    }
+
+    /**
+     * Sets the slicer whose counters are shown, and clears the figures of
+     * the previous stream. This is called on the fetch thread when a stream
+     * is opened.
+     *
+     * @param slicer
+     */
+    void setSlicer(SimpleLiveviewSlicer slicer) {
+        mDecodeSampleCount.set(0);
+        mDecodedFrameCount.set(0);
+        mSlicer = slicer;
+        mResetPending = true;
+    }
+
+    /**
+     * Records the time taken to decode a frame, by software or by hardware.
+     * This can be called on any thread, such as the decoder threads of
+     * {@link ParallelDecodePipeline}.
+     *
+     * @param decodeNanos
+     */
+    void onFrameDecoded(long decodeNanos) {
+        int index = mDecodeSampleCount.getAndIncrement() & Integer.MAX_VALUE;
+        mDecodeMicros.set(index % DECODE_WINDOW, (int) (decodeNanos / 1000));
+        mDecodedFrameCount.incrementAndGet();
+    }
+
+    /**
+     * Draws the figures at the upper left of the canvas and counts a drawn
+     * frame.
+     *
+     * @param canvas
+     * @param droppedFrames frames dropped by the view
+     */
+    void draw(Canvas canvas, long droppedFrames) {
+        if (mResetPending) {
+            mResetPending = false;
+            mDrawnFrameCount = 0;
+            mLastUpdateUptime = -1;
+            mLastReceivedFrames = 0;
+            mLastReceivedBytes = 0;
+            mLastDecodedFrames = 0;
+            mLastDrawnFrames = 0;
+            Arrays.fill(mLineLengths, 0);
+        }
+        mDrawnFrameCount++;
+        long now = SystemClock.uptimeMillis();
+        if (mLastUpdateUptime < 0) {
+            mLastUpdateUptime = now;
+        } else if (UPDATE_INTERVAL <= now - mLastUpdateUptime) {
+            updateLines(now - mLastUpdateUptime, droppedFrames);
+            mLastUpdateUptime = now;
+        }
+
+        float lineHeight = mTextPaint.getTextSize() * 1.2f;
+        canvas.drawRect(0, 0, mTextPaint.getTextSize() * 14, lineHeight * LINE_COUNT + 8,
+                mBackgroundPaint);
+        for (int i = 0; i < LINE_COUNT; i++) {
+            canvas.drawText(mLines[i], 0, mLineLengths[i], 4, lineHeight * (i + 1), mTextPaint);
+        }
+    }
+
+    private void updateLines(long elapsed, long droppedFrames) {
+        SimpleLiveviewSlicer slicer = mSlicer;
+        long receivedFrames = slicer != null ? slicer.getReceivedFrameCount() : 0;
+        long receivedBytes = slicer != null ? slicer.getReceivedBytes() : 0;
+        long decodedFrames = mDecodedFrameCount.get();
+        long drawnFrames = mDrawnFrameCount;
+
+        // Samples of the window, sorted for the percentile.
+        int count = Math.min(mDecodeSampleCount.get() & Integer.MAX_VALUE, DECODE_WINDOW);
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            mSortBuffer[i] = mDecodeMicros.get(i);
+            sum += mSortBuffer[i];
+        }
+        Arrays.sort(mSortBuffer, 0, count);
+        int averageMicros = count != 0 ? (int) (sum / count) : 0;
+        int p95Micros = count != 0 ? mSortBuffer[(count * 95 + 99) / 100 - 1] : 0;
+
+        char[] line = mLines[0];
+        int pos = append(line, 0, "rx   ");
+        pos = appendTenths(line, pos, rate(receivedFrames - mLastReceivedFrames, elapsed));
+        pos = append(line, pos, " fps ");
+        pos = append(line, pos, (receivedBytes - mLastReceivedBytes) * 1000 / elapsed / 1024);
+        mLineLengths[0] = append(line, pos, " KB/s");
+
+        line = mLines[1];
+        pos = append(line, 0, "dec  ");
+        pos = appendTenths(line, pos, rate(decodedFrames - mLastDecodedFrames, elapsed));
+        mLineLengths[1] = append(line, pos, " fps");
+
+        line = mLines[2];
+        pos = append(line, 0, "dec  avg ");
+        pos = appendTenths(line, pos, averageMicros / 100);
+        pos = append(line, pos, " p95 ");
+        pos = appendTenths(line, pos, p95Micros / 100);
+        mLineLengths[2] = append(line, pos, " ms");
+
+        line = mLines[3];
+        pos = append(line, 0, "draw ");
+        pos = appendTenths(line, pos, rate(drawnFrames - mLastDrawnFrames, elapsed));
+        mLineLengths[3] = append(line, pos, " fps");
+
+        line = mLines[4];
+        pos = append(line, 0, "drop ");
+        pos = append(line, pos, droppedFrames);
+        pos = append(line, pos, " skip ");
+        pos = append(line, pos, slicer != null ? slicer.getDiscardedFrameCount() : 0);
+        pos = append(line, pos, " resync ");
+        mLineLengths[4] = append(line, pos, slicer != null ? slicer.getResyncCount() : 0);
+
+        mLastReceivedFrames = receivedFrames;
+        mLastReceivedBytes = receivedBytes;
+        mLastDecodedFrames = decodedFrames;
+        mLastDrawnFrames = drawnFrames;
+    }
+
+    /**
+     * Returns frames per second in tenths.
+     */
+    private static long rate(long frames, long elapsedMillis) {
+        return frames * 10000 / elapsedMillis;
+    }
+
+    static int append(char[] buffer, int pos, String text) {
+        int count = Math.min(text.length(), buffer.length - pos);
+        text.getChars(0, count, buffer, pos);
+        return pos + count;
+    }
+
+    static int append(char[] buffer, int pos, long value) {
+        if (value < 0) {
+            if (pos < buffer.length) {
+                buffer[pos++] = '-';
+            }
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v != 0; v /= 10) {
+            digits++;
+        }
+        if (buffer.length < pos + digits) {
+            return pos;
+        }
+        for (int i = pos + digits - 1; pos <= i; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + digits;
+    }
+
+    static int appendTenths(char[] buffer, int pos, long tenths) {
+        pos = append(buffer, pos, tenths / 10);
+        if (pos + 2 <= buffer.length) {
+            buffer[pos++] = '.';
+            buffer[pos++] = (char) ('0' + Math.abs(tenths % 10));
+        }
+        return pos;
+    }
+}
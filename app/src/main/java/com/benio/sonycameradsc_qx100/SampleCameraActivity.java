@@ -12,6 +12,7 @@ import android.graphics.Color;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
+import android.os.Environment;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
@@ -25,12 +26,18 @@ import android.widget.Spinner;
 import android.widget.TextView;
 
 import com.benio.sonycameradsc_qx100.utils.DisplayHelper;
+import com.benio.sonycameradsc_qx100.utils.FrameSink;
+import com.benio.sonycameradsc_qx100.utils.MjpegBroadcastServer;
+import com.benio.sonycameradsc_qx100.utils.MotionDetector;
+import com.benio.sonycameradsc_qx100.utils.PreShotBuffer;
+import com.benio.sonycameradsc_qx100.utils.TimelapseRecorder;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -38,6 +45,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An Activity class of Sample Camera screen.
@@ -46,6 +54,22 @@ public class SampleCameraActivity extends Activity {
 
     private static final String TAG = SampleCameraActivity.class.getSimpleName();
 
+    private static final long PRE_SHOT_DURATION = 3000; // [msec]
+
+    private static final int PRE_SHOT_CAPACITY = 8 * 1024 * 1024; // [byte]
+
+    private static final int PRE_SHOT_MAX_FRAMES = 128;
+
+    private static final long TIMELAPSE_INTERVAL = 2000; // [msec]
+
+    private static final int TIMELAPSE_FRAME_RATE = 25; // [fps]
+
+    private static final int TIMELAPSE_EXPECTED_FRAMES = 3600;
+
+    private static final int BROADCAST_PORT = 8080;
+
+    private static final int BROADCAST_QUEUE_CAPACITY = 4;
+
     private ImageView mImagePictureWipe;
 
     private Spinner mSpinnerShootMode;
@@ -82,6 +106,19 @@ public class SampleCameraActivity extends Activity {
 
     private String mImagePictureWipeUrl;
 
+    private MotionDetector mMotionDetector;
+
+    // Number of takeAndFetchPicture() calls not finished yet.
+    private final AtomicInteger mCapturesInFlight = new AtomicInteger();
+
+    private TimelapseRecorder mTimelapseRecorder;
+
+    private MjpegBroadcastServer mBroadcastServer;
+
+    // Liveview frames just before a picture is taken, saved with it.
+    private final PreShotBuffer mPreShotBuffer = new PreShotBuffer(PRE_SHOT_DURATION,
+            PRE_SHOT_CAPACITY, PRE_SHOT_MAX_FRAMES);
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -191,6 +228,8 @@ public class SampleCameraActivity extends Activity {
 
         mEventObserver.activate();
         mLiveviewSurface = (SimpleStreamSurfaceView) findViewById(R.id.surfaceview_liveview);
+        mLiveviewSurface.removeFrameSink(mPreShotBuffer);
+        mLiveviewSurface.addFrameSink(mPreShotBuffer, FrameSink.Policy.DIRECT);
         mLiveviewSurface.setOnTouchListener(new View.OnTouchListener() {
             private long upTime = -1;
 
@@ -221,6 +260,14 @@ public class SampleCameraActivity extends Activity {
                 takeAndFetchPicture();
             }
         });
+        mButtonTakePicture.setOnLongClickListener(new View.OnLongClickListener() {
+
+            @Override
+            public boolean onLongClick(View v) {
+                toggleMotionCapture();
+                return true;
+            }
+        });
         mButtonRecStartStop.setOnClickListener(new View.OnClickListener() {
 
             @Override
@@ -232,6 +279,23 @@ public class SampleCameraActivity extends Activity {
                 }
             }
         });
+        mButtonRecStartStop.setOnLongClickListener(new View.OnLongClickListener() {
+
+            @Override
+            public boolean onLongClick(View v) {
+                toggleTimelapse();
+                return true;
+            }
+        });
+
+        mTextCameraStatus.setOnLongClickListener(new View.OnLongClickListener() {
+
+            @Override
+            public boolean onLongClick(View v) {
+                toggleBroadcast();
+                return true;
+            }
+        });
 
         mImagePictureWipe.setOnClickListener(new View.OnClickListener() {
 
@@ -332,11 +396,23 @@ public class SampleCameraActivity extends Activity {
     @Override
     protected void onPause() {
         super.onPause();
+        if (mTimelapseRecorder != null) {
+            toggleTimelapse();
+        }
+        if (mBroadcastServer != null) {
+            toggleBroadcast();
+        }
         closeConnection();
 
         Log.d(TAG, "onPause() completed.");
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPreShotBuffer.shutdown();
+    }
+
     private void prepareOpenConnection() {
         Log.d(TAG, "prepareOpenConnection() exec");
 
@@ -1131,6 +1207,93 @@ public class SampleCameraActivity extends Activity {
         }.start();
     }
 
+    /**
+     * Start or stop taking pictures when motion is detected in liveview.
+     */
+    private void toggleMotionCapture() {
+        if (mMotionDetector != null) {
+            mLiveviewSurface.removeFrameSink(mMotionDetector);
+            mMotionDetector = null;
+            DisplayHelper.toast(getApplicationContext(), R.string.msg_motion_capture_stop);
+            return;
+        }
+        mMotionDetector = new MotionDetector(new MotionDetector.Listener() {
+
+            @Override
+            public void onMotionDetected(float changedArea) {
+                if (0 < mCapturesInFlight.get()) {
+                    Log.d(TAG, "Motion ignored while taking a picture.");
+                    return;
+                }
+                takeAndFetchPicture();
+            }
+        });
+        mLiveviewSurface.addFrameSink(mMotionDetector, FrameSink.Policy.DROP);
+        DisplayHelper.toast(getApplicationContext(), R.string.msg_motion_capture_start);
+    }
+
+    /**
+     * Start or stop recording a timelapse of liveview into the save
+     * directory.
+     */
+    private void toggleTimelapse() {
+        if (mTimelapseRecorder != null) {
+            mLiveviewSurface.removeFrameSink(mTimelapseRecorder);
+            mTimelapseRecorder.stop();
+            Log.d(TAG, "Timelapse of " + mTimelapseRecorder.getFrameCount() + " frames.");
+            mTimelapseRecorder = null;
+            DisplayHelper.toast(getApplicationContext(), R.string.msg_timelapse_stop);
+            return;
+        }
+        if (!Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
+            DisplayHelper.toast(getApplicationContext(), R.string.msg_error_no_external_storage);
+            return;
+        }
+        File directory = new File(StillContentActivity.SAVE_PATH);
+        File file = new File(directory, "timelapse_" + System.currentTimeMillis() + ".avi");
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            mTimelapseRecorder = new TimelapseRecorder(file, TIMELAPSE_INTERVAL,
+                    TIMELAPSE_FRAME_RATE, TIMELAPSE_EXPECTED_FRAMES);
+        } catch (IOException e) {
+            Log.w(TAG, "toggleTimelapse: " + e.getMessage());
+            DisplayHelper.toast(getApplicationContext(), R.string.msg_error_timelapse);
+            return;
+        }
+        mLiveviewSurface.addFrameSink(mTimelapseRecorder, FrameSink.Policy.DROP);
+        DisplayHelper.toast(getApplicationContext(), R.string.msg_timelapse_start);
+    }
+
+    /**
+     * Start or stop serving liveview to other devices on the local network
+     * as an MJPEG stream at http://(address of this device):8080/.
+     */
+    private void toggleBroadcast() {
+        if (mBroadcastServer != null) {
+            mLiveviewSurface.removeFrameSink(mBroadcastServer);
+            mBroadcastServer.stop();
+            mBroadcastServer = null;
+            DisplayHelper.toast(getApplicationContext(), R.string.msg_broadcast_stop);
+            return;
+        }
+        MjpegBroadcastServer server = new MjpegBroadcastServer(BROADCAST_QUEUE_CAPACITY,
+                MjpegBroadcastServer.DropPolicy.OLDEST);
+        try {
+            // Only binds the port. Clients are accepted on a thread of the
+            // server.
+            server.start(BROADCAST_PORT);
+        } catch (IOException e) {
+            Log.w(TAG, "toggleBroadcast: " + e.getMessage());
+            DisplayHelper.toast(getApplicationContext(), R.string.msg_error_broadcast);
+            return;
+        }
+        mBroadcastServer = server;
+        mLiveviewSurface.addFrameSink(server, FrameSink.Policy.DIRECT);
+        DisplayHelper.toast(getApplicationContext(), R.string.msg_broadcast_start);
+    }
+
     /**
      * Take a picture and retrieve the image data.
      */
@@ -1140,11 +1303,16 @@ public class SampleCameraActivity extends Activity {
             return;
         }
 
+        mCapturesInFlight.incrementAndGet();
         new Thread() {
 
             @Override
             public void run() {
                 try {
+                    if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
+                        mPreShotBuffer.save(new File(StillContentActivity.SAVE_PATH,
+                                "preshot_" + System.currentTimeMillis()));
+                    }
                     JSONObject replyJson = mRemoteApi.actTakePicture();
                     JSONArray resultsObj = replyJson.getJSONArray("result");
                     JSONArray imageUrlsObj = resultsObj.getJSONArray(0);
@@ -1189,6 +1357,7 @@ public class SampleCameraActivity extends Activity {
                             R.string.msg_error_take_picture);
                 } finally {
                     DisplayHelper.setProgressIndicator(SampleCameraActivity.this, false);
+                    mCapturesInFlight.decrementAndGet();
                 }
             }
         }.start();
@@ -1347,6 +1516,11 @@ public class SampleCameraActivity extends Activity {
 
                 try {
                     JSONObject replyJson = null;
+                    if (isCameraApiAvailable("setLiveviewFrameInfo")) {
+                        // Request focus and face frames to draw them over liveview.
+                        replyJson = mRemoteApi.setLiveviewFrameInfo(true);
+                        mLiveviewSurface.setFrameInfoEnabled(!SimpleRemoteApi.isErrorReply(replyJson));
+                    }
                     replyJson = mRemoteApi.startLiveview();
 
                     if (!SimpleRemoteApi.isErrorReply(replyJson)) {
@@ -1482,7 +1656,14 @@ public class SampleCameraActivity extends Activity {
                         JSONObject afObj = resultsObj.getJSONObject(1);
                         boolean success = afObj.getBoolean("AFResult");
                         mLiveviewSurface.setFocusFrameColor(success ? Color.GREEN : Color.WHITE);
-                        Log.i(TAG, "setTouchAFPosition: AFResult:" + success);
+                        if (mLiveviewSurface.isSharpnessAnalysisEnabled()) {
+                            Log.i(TAG, "setTouchAFPosition: AFResult:" + success
+                                    + ", sharpness: "
+                                    + mLiveviewSurface.getSharpness((int) xDown, (int) yDown)
+                                    + " (frame: " + mLiveviewSurface.getSharpness() + ")");
+                        } else {
+                            Log.i(TAG, "setTouchAFPosition: AFResult:" + success);
+                        }
                     } else {
                         Log.e(TAG, "setTouchAFPosition: error: " + resultCode);
                         DisplayHelper.toast(getApplicationContext(), R.string.msg_error_api_calling);
@@ -6,6 +6,7 @@ package com.benio.sonycameradsc_qx100;
 
 import android.annotation.TargetApi;
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
@@ -13,16 +14,33 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.os.Build;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
+import com.benio.sonycameradsc_qx100.utils.BitmapPool;
+import com.benio.sonycameradsc_qx100.utils.ByteArrayPool;
+import com.benio.sonycameradsc_qx100.utils.ChannelLiveviewTransport;
+import com.benio.sonycameradsc_qx100.utils.FrameDispatcher;
+import com.benio.sonycameradsc_qx100.utils.FrameExchanger;
+import com.benio.sonycameradsc_qx100.utils.FrameSink;
+import com.benio.sonycameradsc_qx100.utils.JpegHeaderReader;
+import com.benio.sonycameradsc_qx100.utils.LiveviewFrameInfo;
+import com.benio.sonycameradsc_qx100.utils.LuminanceAnalyzer;
+import com.benio.sonycameradsc_qx100.utils.SharpnessAnalyzer;
 import com.benio.sonycameradsc_qx100.utils.SimpleLiveviewSlicer;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A SurfaceView based class to draw liveview frames serially.
@@ -35,14 +53,83 @@ public class SimpleStreamSurfaceView extends SurfaceView implements SurfaceHolde
 
     private static final int FOCUS_FRAME_TIME = 1500;
 
+    private static final int MAX_PACING_DELAY = 1000; // [msec]
+
     private boolean mWhileFetching;
 
-    private final BlockingQueue<byte[]> mJpegQueue = new ArrayBlockingQueue<byte[]>(2);
+    private boolean mChannelTransportEnabled;
+
+    private boolean mStreamRecoveryEnabled;
+
+    private boolean mFrameInfoEnabled;
+
+    private boolean mMultiFrameEnabled;
+
+    private volatile long mDroppedFrameCount;
+
+    private boolean mSkipAheadEnabled;
+
+    private volatile boolean mDrawerBusy;
+
+    private boolean mTimestampPacingEnabled;
+
+    private boolean mVsyncPacingEnabled;
+
+    private int mParallelDecoderCount = 1;
+
+    private boolean mHardwareDecodeEnabled;
+
+    private volatile float mDigitalZoom = 1;
+
+    // Center of the region of interest, relative to the frame size.
+    private volatile float mRegionCenterX = 0.5f;
+
+    private volatile float mRegionCenterY = 0.5f;
+
+    private volatile boolean mRegionTouchPending;
+
+    // Part of the newest decoded bitmap to be shown, guarded by itself.
+    private final Rect mShownRegion = new Rect();
+
+    private SimpleLiveviewSlicer.PlaybackInfoListener mPlaybackInfoListener;
+
+    private File mRecordingFile;
+
+    private final LiveviewFrameInfo mFrameInfo = new LiveviewFrameInfo();
+
+    private final FrameExchanger<SimpleLiveviewSlicer.Payload> mJpegExchanger =
+            new FrameExchanger<SimpleLiveviewSlicer.Payload>();
+
+    private final ByteArrayPool mBufferPool = new ByteArrayPool();
+
+    private final FrameDispatcher mFrameDispatcher = new FrameDispatcher();
 
     private final boolean mInMutableAvailable = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
 
     private Thread mDrawerThread;
 
+    private volatile int mSurfaceWidth = 0;
+
+    private volatile int mSurfaceHeight = 0;
+
+    private final Rect mFrameSrcRect = new Rect();
+
+    private final Rect mFrameDstRect = new Rect();
+
+    private int mGeometryViewWidth = -1;
+
+    private int mGeometryViewHeight = -1;
+
+    private volatile boolean mAllocationTrackingEnabled;
+
+    private volatile PerformanceHud mPerformanceHud;
+
+    private volatile HistogramOverlay mHistogramOverlay;
+
+    private volatile SharpnessAnalyzer mSharpnessAnalyzer;
+
+    private volatile FocusPeakingOverlay mFocusPeakingOverlay;
+
     private int mPreviousWidth = 0;
 
     private int mPreviousHeight = 0;
@@ -59,6 +146,8 @@ public class SimpleStreamSurfaceView extends SurfaceView implements SurfaceHolde
 
     private final Paint mFocusFramePaint;
 
+    private final Paint mFrameInfoPaint;
+
     private StreamErrorListener mErrorListener;
 
     /**
@@ -97,11 +186,17 @@ public class SimpleStreamSurfaceView extends SurfaceView implements SurfaceHolde
         mFocusFramePaint.setColor(Color.WHITE);
         mFocusFramePaint.setStyle(Paint.Style.STROKE);
         mFocusFramePaint.setStrokeWidth(3);
+
+        mFrameInfoPaint = new Paint();
+        mFrameInfoPaint.setStyle(Paint.Style.STROKE);
+        mFrameInfoPaint.setStrokeWidth(2);
     }
 
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
-        // do nothing.
+        // The drawer thread picks a new sample size from the next frame.
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
     }
 
     @Override
@@ -114,6 +209,353 @@ public class SimpleStreamSurfaceView extends SurfaceView implements SurfaceHolde
         mWhileFetching = false;
     }
 
+    /**
+     * Show an overlay of performance figures: received, decoded and drawn
+     * frames per second, average and 95th percentile decode time, received
+     * bytes per second, and frames dropped, skipped and resynchronized. This
+     * takes effect from the next start().
+     *
+     * @param enabled
+     */
+    public void setPerformanceHudEnabled(boolean enabled) {
+        if (!enabled) {
+            mPerformanceHud = null;
+        } else if (mPerformanceHud == null) {
+            mPerformanceHud = new PerformanceHud(
+                    12 * getResources().getDisplayMetrics().density);
+        }
+    }
+
+    /**
+     * Show a luminance histogram and the percentages of clipped highlights
+     * and shadows, to check exposure without taking pictures. Frames are
+     * analyzed at a small size on a thread of their own, at most once per
+     * the indicated interval, and never delay drawing.
+     *
+     * @param enabled
+     * @param intervalMillis interval of updates in milliseconds
+     */
+    public void setHistogramOverlayEnabled(boolean enabled, long intervalMillis) {
+        HistogramOverlay overlay = mHistogramOverlay;
+        if (overlay != null) {
+            mHistogramOverlay = null;
+            mFrameDispatcher.removeSink(overlay.getAnalyzer());
+        }
+        if (enabled) {
+            LuminanceAnalyzer analyzer = new LuminanceAnalyzer(intervalMillis);
+            mFrameDispatcher.addSink(analyzer, FrameSink.Policy.DROP);
+            mHistogramOverlay = new HistogramOverlay(analyzer,
+                    12 * getResources().getDisplayMetrics().density);
+        }
+    }
+
+    /**
+     * Measure sharpness of frames, to check focus numerically by
+     * {@link #getSharpness()}. Frames are analyzed at a small size on a
+     * thread of their own and a pool sized to the device's cores, and never
+     * delay drawing. Disabled by default, since the analysis decodes every
+     * frame once more.
+     *
+     * @param enabled
+     * @param focusPeaking true to highlight edges in focus over frames
+     */
+    public void setSharpnessAnalysisEnabled(boolean enabled, boolean focusPeaking) {
+        SharpnessAnalyzer analyzer = mSharpnessAnalyzer;
+        if (analyzer != null) {
+            mSharpnessAnalyzer = null;
+            mFocusPeakingOverlay = null;
+            mFrameDispatcher.removeSink(analyzer);
+            analyzer.shutdown();
+        }
+        if (enabled) {
+            analyzer = new SharpnessAnalyzer();
+            analyzer.setEdgeMaskEnabled(focusPeaking);
+            mFrameDispatcher.addSink(analyzer, FrameSink.Policy.DROP);
+            mSharpnessAnalyzer = analyzer;
+            mFocusPeakingOverlay = focusPeaking ? new FocusPeakingOverlay(analyzer) : null;
+        }
+    }
+
+    /**
+     * Returns whether sharpness of frames is measured.
+     *
+     * @return
+     */
+    public boolean isSharpnessAnalysisEnabled() {
+        return mSharpnessAnalyzer != null;
+    }
+
+    /**
+     * Returns the sharpness of the whole frame last analyzed.
+     *
+     * @return root mean square gradient in luminance levels, or 0 if the
+     * analysis is not enabled.
+     * @see #setSharpnessAnalysisEnabled(boolean, boolean)
+     */
+    public float getSharpness() {
+        SharpnessAnalyzer analyzer = mSharpnessAnalyzer;
+        return analyzer != null ? analyzer.getScore() : 0;
+    }
+
+    /**
+     * Returns the sharpness around the indicated position of this view, for
+     * example where touch AF was done, in the frame last analyzed. The
+     * position is mapped to whole frames, not to a magnified region.
+     *
+     * @param x
+     * @param y
+     * @return root mean square gradient in luminance levels, or 0 if the
+     * analysis is not enabled.
+     */
+    public float getSharpness(int x, int y) {
+        SharpnessAnalyzer analyzer = mSharpnessAnalyzer;
+        int frameWidth = mPreviousWidth;
+        int frameHeight = mPreviousHeight;
+        if (analyzer == null || frameWidth <= 0 || frameHeight <= 0) {
+            return 0;
+        }
+        float by = Math.min((float) getWidth() / frameWidth, (float) getHeight() / frameHeight);
+        float frameX = (x - (getWidth() - frameWidth * by) / 2) / by;
+        float frameY = (y - (getHeight() - frameHeight * by) / 2) / by;
+        return analyzer.getScore(frameX / frameWidth, frameY / frameHeight);
+    }
+
+    /**
+     * Enable assertion that drawing allocates nothing. Every frame drawn with
+     * unchanged geometry is expected to allocate no object, and a frame
+     * which does makes the drawing thread throw IllegalStateException, which
+     * crashes the app. This is a debugging aid for debuggable builds only.
+     * <p/>
+     * Allocations are counted by Debug.startAllocCounting(), which is
+     * process-wide: it slows down the whole VM while enabled, and disabling
+     * this stops the counting for any other code of the process which
+     * started it as well.
+     *
+     * @param enabled
+     * @throws IllegalStateException if the app is not debuggable.
+     */
+    public void setAllocationTrackingEnabled(boolean enabled) {
+        if (enabled == mAllocationTrackingEnabled) {
+            return;
+        }
+        if (enabled && (getContext().getApplicationInfo().flags
+                & ApplicationInfo.FLAG_DEBUGGABLE) == 0) {
+            throw new IllegalStateException("Allocation tracking needs a debuggable build.");
+        }
+        mAllocationTrackingEnabled = enabled;
+        if (enabled) {
+            Debug.startAllocCounting();
+        } else {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    /**
+     * Select the transport used to fetch the stream. This takes effect from
+     * the next start().
+     *
+     * @param enabled true to read the stream from a raw SocketChannel, false
+     *                to use HttpURLConnection.
+     */
+    public void setChannelTransportEnabled(boolean enabled) {
+        mChannelTransportEnabled = enabled;
+    }
+
+    /**
+     * Enable splitting of multi-frame liveview image Packets. See
+     * {@link SimpleLiveviewSlicer#setMultiFrameEnabled(boolean)}. Only the
+     * newest frame of such a Packet is drawn. This takes effect from the next
+     * start().
+     *
+     * @param enabled
+     */
+    public void setMultiFrameEnabled(boolean enabled) {
+        mMultiFrameEnabled = enabled;
+    }
+
+    /**
+     * Enable recovery from broken Packets. When enabled, the stream is not
+     * closed on a broken Packet but resynchronized with the next one. This
+     * takes effect from the next start().
+     *
+     * @param enabled
+     */
+    public void setStreamRecoveryEnabled(boolean enabled) {
+        mStreamRecoveryEnabled = enabled;
+    }
+
+    /**
+     * Enable lossy skip-ahead mode. In this mode, frames arriving while the
+     * drawer thread is still decoding the previous one are skipped in the
+     * stream without being copied into memory. Frames are not skipped while
+     * another sink is added with {@link FrameSink.Policy#BLOCK} or
+     * {@link FrameSink.Policy#DIRECT}. This takes effect from the next
+     * start().
+     *
+     * @param enabled
+     */
+    public void setSkipAheadEnabled(boolean enabled) {
+        mSkipAheadEnabled = enabled;
+    }
+
+    /**
+     * Enable pacing of drawing by time stamps of the stream. In this mode,
+     * every frame is drawn at the time given by its time stamp relative to
+     * the first frame, instead of as soon as it is decoded, and no frame is
+     * dropped or skipped by this view. This is meant for content streaming.
+     * This takes effect from the next start().
+     *
+     * @param enabled
+     */
+    public void setTimestampPacingEnabled(boolean enabled) {
+        mTimestampPacingEnabled = enabled;
+    }
+
+    /**
+     * Enable drawing paced by display vsync. In this mode, the drawer thread
+     * decodes one frame ahead and a render thread posts at most one frame
+     * per vsync through Choreographer. While a decoded frame waits for vsync,
+     * the drawer thread counts as busy for skip-ahead mode, so frames the
+     * display could not show are not decoded. This has no effect before
+     * Jelly Bean. This takes effect from the next start().
+     *
+     * @param enabled
+     */
+    public void setVsyncPacingEnabled(boolean enabled) {
+        mVsyncPacingEnabled = enabled;
+    }
+
+    /**
+     * Set the number of threads decoding frames. With more than one, frames
+     * are decoded in parallel and drawn in the order they were received by a
+     * presenter thread, and no frame is dropped or skipped by this view. This
+     * is meant for full-rate playback of streamed content on multi-core
+     * devices. Vsync pacing is not applied in this mode. This takes effect
+     * from the next start().
+     *
+     * @param count number of decoder threads, 1 for the single drawer thread.
+     */
+    public void setParallelDecoderCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be positive.");
+        }
+        mParallelDecoderCount = count;
+    }
+
+    /**
+     * Decode frames by the hardware Motion JPEG decoder of the platform,
+     * which renders them directly to the surface. Where no such decoder is
+     * available, or it fails, frames are decoded by BitmapFactory as usual.
+     * Overlays such as focus frames and the performance HUD are not drawn
+     * while the hardware decoder is in use. This is ignored with parallel
+     * decoders and before Lollipop. Magnifying by
+     * {@link #setDigitalZoom(float)} ends hardware decoding until the next
+     * start(), since frames drawn by canvas keep the surface from being
+     * given to the decoder again. This takes effect from the next start().
+     *
+     * @param enabled
+     */
+    public void setHardwareDecodeEnabled(boolean enabled) {
+        mHardwareDecodeEnabled = enabled;
+    }
+
+    /**
+     * Magnify the region of frames around the position where the focus
+     * frame was shown last, for critical focus checks. The whole frame is
+     * decoded at a sample size keeping the region as large as the surface,
+     * and only the region is drawn. Each showFocusFrame() call moves the
+     * region.
+     * This applies to the single drawer thread. Magnifying ends hardware
+     * decoding for the rest of the stream, and frames are decoded by
+     * BitmapFactory after zoom is set back to 1.
+     *
+     * @param zoom magnification, 1 to show whole frames.
+     */
+    public void setDigitalZoom(float zoom) {
+        if (zoom < 1) {
+            throw new IllegalArgumentException("zoom must be 1 or larger.");
+        }
+        mDigitalZoom = zoom;
+    }
+
+    /**
+     * Returns the magnification set by {@link #setDigitalZoom(float)}.
+     *
+     * @return
+     */
+    public float getDigitalZoom() {
+        return mDigitalZoom;
+    }
+
+    /**
+     * Set a listener for playback information of content streaming. The
+     * listener is called on the thread fetching the stream. This takes effect
+     * from the next start().
+     *
+     * @param listener
+     */
+    public void setPlaybackInfoListener(SimpleLiveviewSlicer.PlaybackInfoListener listener) {
+        mPlaybackInfoListener = listener;
+    }
+
+    /**
+     * Record the raw stream to the indicated file while fetching. The index
+     * of Packets is written next to it. This takes effect from the next
+     * start().
+     *
+     * @param file file to record to, or null to stop recording.
+     */
+    public void setRecordingFile(File file) {
+        mRecordingFile = file;
+    }
+
+    /**
+     * Add a sink receiving the same JPEG Payloads as this view, such as a
+     * recorder or an analyzer. Payloads are shared, not copied. A sink may be
+     * added while fetching.
+     *
+     * @param sink
+     * @param policy how the sink receives frames when it is busy. Use
+     *               {@link #addSampledFrameSink} for
+     *               {@link FrameSink.Policy#SAMPLE}.
+     */
+    public void addFrameSink(FrameSink sink, FrameSink.Policy policy) {
+        mFrameDispatcher.addSink(sink, policy);
+    }
+
+    /**
+     * Add a sink which is offered every Nth JPEG Payload. A Payload arriving
+     * while the sink is busy replaces the one waiting for it.
+     *
+     * @param sink
+     * @param interval N
+     */
+    public void addSampledFrameSink(FrameSink sink, int interval) {
+        mFrameDispatcher.addSampledSink(sink, interval);
+    }
+
+    /**
+     * Remove a sink added by {@link #addFrameSink} or
+     * {@link #addSampledFrameSink}.
+     *
+     * @param sink
+     */
+    public void removeFrameSink(FrameSink sink) {
+        mFrameDispatcher.removeSink(sink);
+    }
+
+    /**
+     * Enable parsing and drawing of liveview frame information such as focus
+     * frames and face detection frames. The server sends them only after
+     * setLiveviewFrameInfo API is called. This takes effect from the next
+     * start().
+     *
+     * @param enabled
+     */
+    public void setFrameInfoEnabled(boolean enabled) {
+        mFrameInfoEnabled = enabled;
+    }
+
     /**
      * Start retrieving and drawing liveview frame data by new threads.
      *
@@ -136,6 +578,20 @@ public class SimpleStreamSurfaceView extends SurfaceView implements SurfaceHolde
         }
 
         mWhileFetching = true;
+        mDroppedFrameCount = 0;
+        mDrawerBusy = false;
+
+        final ParallelDecodePipeline pipeline;
+        if (1 < mParallelDecoderCount) {
+            pipeline = new ParallelDecodePipeline(mParallelDecoderCount,
+                    new BitmapPool(mParallelDecoderCount * 2 + 1), new PipelinePresenter(),
+                    mPerformanceHud);
+        } else {
+            pipeline = null;
+        }
+        // This view is the first sink of the stream.
+        final DisplaySink displaySink = new DisplaySink(pipeline);
+        mFrameDispatcher.addSink(displaySink, FrameSink.Policy.DIRECT);
 
         // A thread for retrieving liveview data from server.
         new Thread() {
@@ -148,7 +604,38 @@ public class SimpleStreamSurfaceView extends SurfaceView implements SurfaceHolde
 
                     // Create Slicer to open the stream and parse it.
                     slicer = new SimpleLiveviewSlicer();
+                    slicer.setBufferPool(mBufferPool);
+                    slicer.setResyncEnabled(mStreamRecoveryEnabled);
+                    slicer.setFrameInfoEnabled(mFrameInfoEnabled);
+                    slicer.setMultiFrameEnabled(mMultiFrameEnabled);
+                    slicer.setPlaybackInfoListener(mPlaybackInfoListener);
+                    slicer.setRecordingFile(mRecordingFile);
+                    if (mSkipAheadEnabled && !mTimestampPacingEnabled) {
+                        slicer.setBackpressureSignal(new SimpleLiveviewSlicer.BackpressureSignal() {
+                            @Override
+                            public boolean isConsumerLagging() {
+                                // Blocking and direct sinks other than this view
+                                // still want the frames this view skips.
+                                return mDrawerBusy
+                                        && mFrameDispatcher.getSinkCount(
+                                                FrameSink.Policy.BLOCK) == 0
+                                        && mFrameDispatcher.getSinkCount(
+                                                FrameSink.Policy.DIRECT) <= 1;
+                            }
+                        });
+                    }
+                    synchronized (mFrameInfo) {
+                        mFrameInfo.clear();
+                    }
+                    if (mChannelTransportEnabled) {
+                        slicer.setTransport(new ChannelLiveviewTransport());
+                    }
                     slicer.open(streamUrl);
+                    PerformanceHud hud = mPerformanceHud;
+                    if (hud != null) {
+                        hud.setSlicer(slicer);
+                    }
+                    mFrameDispatcher.start();
 
                     while (mWhileFetching) {
                         final SimpleLiveviewSlicer.Payload payload = slicer.nextPayload();
@@ -157,29 +644,58 @@ public class SimpleStreamSurfaceView extends SurfaceView implements SurfaceHolde
                             continue;
                         }
 
-                        if (mJpegQueue.size() == 2) {
-                            mJpegQueue.remove();
+                        if (payload.frameInfo != null) {
+                            synchronized (mFrameInfo) {
+                                mFrameInfo.copyFrom(payload.frameInfo);
+                            }
+                        }
+
+                        mFrameDispatcher.dispatch(payload);
+                        if (Thread.interrupted()) {
+                            throw new InterruptedException();
                         }
-                        mJpegQueue.add(payload.jpegData);
                     }
                 } catch (IOException e) {
                     Log.w(TAG, "IOException while fetching: " + e.getMessage());
                     mErrorListener.onError(StreamErrorListener.StreamErrorReason.IO_EXCEPTION);
+                } catch (InterruptedException e) {
+                    Log.i(TAG, "Fetcher thread is Interrupted.");
                 } finally {
                     if (slicer != null) {
                         slicer.close();
+                        Log.d(TAG, "Stream closed. received: " + slicer.getReceivedFrameCount()
+                                + ", lost by server: " + slicer.getLostFrameCount()
+                                + " in " + slicer.getSequenceGapCount() + " gaps"
+                                + ", duplicated: " + slicer.getDuplicateFrameCount()
+                                + ", dropped by client: " + mDroppedFrameCount
+                                + ", skipped by client: " + slicer.getDiscardedFrameCount()
+                                + ", jitter: " + slicer.getJitterMillis() + "ms"
+                                + ", resync: " + slicer.getResyncCount()
+                                + ", skipped bytes: " + slicer.getSkippedBytes());
                     }
 
+                    mFrameDispatcher.stop();
+                    mFrameDispatcher.removeSink(displaySink);
                     if (mDrawerThread != null) {
                         mDrawerThread.interrupt();
                     }
+                    if (pipeline != null) {
+                        pipeline.stop();
+                    }
 
-                    mJpegQueue.clear();
+                    clearJpegExchanger();
                     mWhileFetching = false;
                 }
             }
         }.start();
 
+        if (pipeline != null) {
+            // Decoder threads and a presenter thread replace the drawer thread.
+            mDrawerThread = null;
+            pipeline.start();
+            return true;
+        }
+
         // A thread for drawing liveview frame fetched by above thread.
         mDrawerThread = new Thread() {
             @Override
@@ -187,17 +703,111 @@ public class SimpleStreamSurfaceView extends SurfaceView implements SurfaceHolde
                 Log.d(TAG, "Starting drawing stream frame.");
                 Bitmap frameBitmap = null;
 
+                final PerformanceHud hud = mPerformanceHud;
+                VsyncRenderer renderer = null;
+                if (mVsyncPacingEnabled
+                        && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                    renderer = new VsyncRenderer();
+                    renderer.start();
+                }
+                HardwareDecodePath hardware = null;
+                if (mHardwareDecodeEnabled
+                        && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    hardware = new HardwareDecodePath(
+                            new MediaCodecFrameDecoder(getHolder().getSurface()));
+                }
+
                 BitmapFactory.Options factoryOptions = new BitmapFactory.Options();
                 factoryOptions.inSampleSize = 1;
                 if (mInMutableAvailable) {
                     initInBitmap(factoryOptions);
                 }
 
+                FramePacer pacer = new FramePacer();
+                int[] jpegSize = new int[2];
+                // Region of the frame being shown, in pixels of the frame.
+                Rect region = new Rect();
+                float[] regionCenter = new float[2];
+
                 while (mWhileFetching) {
+                    SimpleLiveviewSlicer.Payload payload = null;
+                    long timestamp;
+                    long decodeNanos;
                     try {
-                        byte[] jpegData = mJpegQueue.take();
-                        frameBitmap = BitmapFactory.decodeByteArray(//
-                                jpegData, 0, jpegData.length, factoryOptions);
+                        mDrawerBusy = false;
+                        payload = mJpegExchanger.take();
+                        mDrawerBusy = true;
+                        timestamp = payload.timestamp;
+                        // Only the newest frame of a multi-frame payload is drawn.
+                        int frameIndex = payload.frameCount - 1;
+                        int frameOffset = payload.getFrameOffset(frameIndex);
+                        int frameLength = payload.getFrameLength(frameIndex);
+
+                        float zoom = mDigitalZoom;
+                        if (hardware != null && 1 < zoom) {
+                            // Frames are magnified by the software path. Once
+                            // the canvas has drawn to the surface, the decoder
+                            // cannot be configured on it again.
+                            Log.i(TAG, "Hardware decoding ends for this stream by zooming.");
+                            hardware.release();
+                            hardware = null;
+                        } else if (hardware != null) {
+                            if (mTimestampPacingEnabled) {
+                                pacer.waitFor(timestamp);
+                            }
+                            decodeNanos = System.nanoTime();
+                            if (hardware.render(payload.jpegData, frameOffset, frameLength)) {
+                                if (hud != null) {
+                                    hud.onFrameDecoded(System.nanoTime() - decodeNanos);
+                                }
+                                continue;
+                            }
+                            // Fallen back. The surface is free for the canvas again.
+                            hardware = null;
+                        }
+
+                        if (renderer != null && mInMutableAvailable) {
+                            // Reuse the bitmap the render thread has drawn.
+                            setInBitmap(factoryOptions, renderer.takeFreeBitmap());
+                        }
+
+                        // Decode no more pixels than the surface can show.
+                        int sampleSize = 1;
+                        boolean zoomed = false;
+                        if (JpegHeaderReader.readSize(payload.jpegData, frameOffset,
+                                frameLength, jpegSize)) {
+                            if (mRegionTouchPending) {
+                                mRegionTouchPending = false;
+                                moveRegionCenter(region, jpegSize[0], jpegSize[1],
+                                        regionCenter);
+                            }
+                            zoomed = 1 < zoom;
+                            if (zoomed) {
+                                computeRegion(jpegSize[0], jpegSize[1], zoom,
+                                        mRegionCenterX, mRegionCenterY, region);
+                            } else {
+                                region.set(0, 0, jpegSize[0], jpegSize[1]);
+                            }
+                            // The region is magnified from a sampled whole frame.
+                            sampleSize = calculateSampleSize(region.width(), region.height(),
+                                    mSurfaceWidth, mSurfaceHeight);
+                        }
+                        if (sampleSize != factoryOptions.inSampleSize) {
+                            factoryOptions.inSampleSize = sampleSize;
+                            if (mInMutableAvailable) {
+                                // The reused bitmap has the size of the old sample size.
+                                clearInBitmap(factoryOptions);
+                            }
+                        }
+
+                        decodeNanos = System.nanoTime();
+                        frameBitmap = BitmapFactory.decodeByteArray(payload.jpegData, //
+                                frameOffset, frameLength, factoryOptions);
+                        decodeNanos = System.nanoTime() - decodeNanos;
+                        if (frameBitmap != null) {
+                            setShownRegion(frameBitmap, zoomed ? region : null,
+                                    jpegSize[0], jpegSize[1]);
+                        }
                     } catch (IllegalArgumentException e) {
                         if (mInMutableAvailable) {
                             clearInBitmap(factoryOptions);
@@ -206,17 +816,58 @@ public class SimpleStreamSurfaceView extends SurfaceView implements SurfaceHolde
                     } catch (InterruptedException e) {
                         Log.i(TAG, "Drawer thread is Interrupted.");
                         break;
+                    } finally {
+                        if (payload != null) {
+                            payload.release();
+                        }
+                    }
+
+                    if (frameBitmap == null) {
+                        // Broken JPEG data.
+                        continue;
+                    }
+                    if (hud != null) {
+                        hud.onFrameDecoded(decodeNanos);
                     }
 
-                    if (mInMutableAvailable) {
+                    if (renderer == null && mInMutableAvailable) {
                         setInBitmap(factoryOptions, frameBitmap);
                     }
-                    drawFrame(frameBitmap);
+
+                    if (mTimestampPacingEnabled) {
+                        try {
+                            pacer.waitFor(timestamp);
+                        } catch (InterruptedException e) {
+                            Log.i(TAG, "Drawer thread is Interrupted.");
+                            break;
+                        }
+                    }
+                    if (renderer == null) {
+                        drawFrame(frameBitmap);
+                        continue;
+                    }
+                    try {
+                        while (!renderer.present(frameBitmap)) {
+                            if (!mWhileFetching) {
+                                break;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Log.i(TAG, "Drawer thread is Interrupted.");
+                        break;
+                    }
                 }
 
-                if (frameBitmap != null) {
+                if (hardware != null) {
+                    hardware.release();
+                }
+                if (renderer != null) {
+                    // Bitmaps may still be drawn by the render thread. Leave them to GC.
+                    renderer.quit();
+                } else if (frameBitmap != null) {
                     frameBitmap.recycle();
                 }
+                mDrawerBusy = false;
                 mWhileFetching = false;
             }
         };
@@ -224,6 +875,211 @@ public class SimpleStreamSurfaceView extends SurfaceView implements SurfaceHolde
         return true;
     }
 
+    /**
+     * Delays drawing of frames to follow time stamps of the stream.
+     */
+    private static final class FramePacer {
+
+        private long mBaseUptime = -1;
+
+        private long mBaseTimestamp;
+
+        /**
+         * Sleeps until the time of the indicated time stamp, relative to the
+         * first frame.
+         *
+         * @param timestamp time stamp in milliseconds
+         * @throws InterruptedException
+         */
+        void waitFor(long timestamp) throws InterruptedException {
+            // Time stamps are in milliseconds and wrap around at 32 bits.
+            long now = SystemClock.uptimeMillis();
+            long delay = (int) (timestamp - mBaseTimestamp) - (now - mBaseUptime);
+            if (mBaseUptime < 0 || delay < -MAX_PACING_DELAY || MAX_PACING_DELAY < delay) {
+                // First frame, or the stream jumped. Restart the clock.
+                mBaseUptime = now;
+                mBaseTimestamp = timestamp;
+            } else if (0 < delay) {
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Hands Payloads of the stream to the drawer thread or to the
+     * {@link ParallelDecodePipeline}. This is called on the fetch thread.
+     */
+    private final class DisplaySink implements FrameSink {
+
+        private final ParallelDecodePipeline mPipeline;
+
+        DisplaySink(ParallelDecodePipeline pipeline) {
+            mPipeline = pipeline;
+        }
+
+        @Override
+        public void onFrame(SimpleLiveviewSlicer.Payload payload) {
+            // Keep the Payload until the drawer or a decoder releases it.
+            payload.retain();
+            try {
+                handOff(payload);
+            } catch (InterruptedException e) {
+                payload.release();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void handOff(SimpleLiveviewSlicer.Payload payload) throws InterruptedException {
+            if (mPipeline != null) {
+                // Wait for a free decoder slot instead of dropping frames.
+                while (!mPipeline.submit(payload, 100, TimeUnit.MILLISECONDS)) {
+                    if (!mWhileFetching) {
+                        payload.release();
+                        return;
+                    }
+                }
+                return;
+            }
+
+            if (mTimestampPacingEnabled) {
+                // Wait for the drawer instead of dropping frames.
+                while (!mJpegExchanger.put(payload, 100, TimeUnit.MILLISECONDS)) {
+                    if (!mWhileFetching) {
+                        payload.release();
+                        return;
+                    }
+                }
+                return;
+            }
+
+            // The drawer always gets the newest frame. A frame it has not
+            // taken yet goes back to the pool.
+            SimpleLiveviewSlicer.Payload replaced = mJpegExchanger.offer(payload);
+            if (replaced != null) {
+                replaced.release();
+                mDroppedFrameCount++;
+            }
+        }
+    }
+
+    /**
+     * Draws frames decoded by {@link ParallelDecodePipeline} on its presenter
+     * thread.
+     */
+    private final class PipelinePresenter implements ParallelDecodePipeline.Presenter {
+
+        private final FramePacer mPacer = new FramePacer();
+
+        @Override
+        public void present(Bitmap frame, long timestamp) throws InterruptedException {
+            if (mTimestampPacingEnabled) {
+                mPacer.waitFor(timestamp);
+            }
+            drawFrame(frame);
+        }
+
+        @Override
+        public int getSurfaceWidth() {
+            return mSurfaceWidth;
+        }
+
+        @Override
+        public int getSurfaceHeight() {
+            return mSurfaceHeight;
+        }
+    }
+
+    /**
+     * A render thread which draws decoded frames on display vsync. Only the
+     * drawer thread hands frames to it, and only the render thread draws
+     * while it is running.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private final class VsyncRenderer implements Choreographer.FrameCallback {
+
+        private final HandlerThread mThread =
+                new HandlerThread("LiveviewRenderer", Process.THREAD_PRIORITY_DISPLAY);
+
+        private final FrameExchanger<Bitmap> mPendingBitmap = new FrameExchanger<Bitmap>();
+
+        private final AtomicReference<Bitmap> mFreeBitmap = new AtomicReference<Bitmap>();
+
+        private final Runnable mScheduleFrame = new Runnable() {
+            @Override
+            public void run() {
+                if (mChoreographer == null) {
+                    mChoreographer = Choreographer.getInstance();
+                }
+                if (!mFrameScheduled) {
+                    mFrameScheduled = true;
+                    mChoreographer.postFrameCallback(VsyncRenderer.this);
+                }
+            }
+        };
+
+        private Handler mHandler;
+
+        // Accessed only on the render thread.
+        private Choreographer mChoreographer;
+
+        private boolean mFrameScheduled;
+
+        void start() {
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+
+        /**
+         * Hands a decoded frame to the render thread, waiting while the
+         * previous frame is not drawn yet.
+         *
+         * @param bitmap
+         * @return false if the previous frame is still waiting after timeout.
+         * @throws InterruptedException
+         */
+        boolean present(Bitmap bitmap) throws InterruptedException {
+            if (!mPendingBitmap.put(bitmap, 100, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            mHandler.post(mScheduleFrame);
+            return true;
+        }
+
+        /**
+         * Returns a bitmap already drawn, which can be decoded into, or null.
+         *
+         * @return
+         */
+        Bitmap takeFreeBitmap() {
+            return mFreeBitmap.getAndSet(null);
+        }
+
+        void quit() {
+            mThread.quit();
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled = false;
+            Bitmap bitmap = mPendingBitmap.poll();
+            if (bitmap == null) {
+                return;
+            }
+            drawFrame(bitmap);
+            mFreeBitmap.set(bitmap);
+        }
+    }
+
+    /**
+     * Release the Payload left in the exchanger.
+     */
+    private void clearJpegExchanger() {
+        SimpleLiveviewSlicer.Payload payload = mJpegExchanger.poll();
+        if (payload != null) {
+            payload.release();
+        }
+    }
+
     /**
      * Request to stop retrieving and drawing liveview data.
      */
@@ -240,6 +1096,16 @@ public class SimpleStreamSurfaceView extends SurfaceView implements SurfaceHolde
         return mWhileFetching;
     }
 
+    /**
+     * Returns the number of frames dropped by this view because drawing could
+     * not keep up with the stream since the last start().
+     *
+     * @return count of dropped frames
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
     /**
      * Draw focus frame onto a canvas.
      *
@@ -273,6 +1139,105 @@ public class SimpleStreamSurfaceView extends SurfaceView implements SurfaceHolde
         mDownX = xDown;
         mDownY = yDown;
         mFocusFrameSize = size;
+        mRegionTouchPending = true;
+    }
+
+    /**
+     * Compute the region of a frame to be magnified. The region keeps the
+     * aspect ratio of the frame and stays inside it.
+     *
+     * @param frameWidth
+     * @param frameHeight
+     * @param zoom        magnification
+     * @param centerX     center of the region relative to the frame width
+     * @param centerY     center of the region relative to the frame height
+     * @param region      rectangle receiving the region in pixels
+     */
+    static void computeRegion(int frameWidth, int frameHeight, float zoom, float centerX,
+                              float centerY, Rect region) {
+        int width = Math.max(1, Math.round(frameWidth / zoom));
+        int height = Math.max(1, Math.round(frameHeight / zoom));
+        int left = Math.round(centerX * frameWidth - width / 2f);
+        int top = Math.round(centerY * frameHeight - height / 2f);
+        left = Math.max(0, Math.min(left, frameWidth - width));
+        top = Math.max(0, Math.min(top, frameHeight - height));
+        region.left = left;
+        region.top = top;
+        region.right = left + width;
+        region.bottom = top + height;
+    }
+
+    /**
+     * Map a position on the view to the frame, through the letterboxed
+     * region of the frame which is shown on the view.
+     *
+     * @param x           position on the view
+     * @param y           position on the view
+     * @param viewWidth
+     * @param viewHeight
+     * @param shown       region being shown, in pixels of the frame
+     * @param frameWidth
+     * @param frameHeight
+     * @param position    array receiving the position relative to the frame
+     *                    size, clamped into the frame
+     * @return false if the view has no size yet.
+     */
+    static boolean mapViewToFrame(int x, int y, int viewWidth, int viewHeight, Rect shown,
+                                  int frameWidth, int frameHeight, float[] position) {
+        int shownWidth = shown.right - shown.left;
+        int shownHeight = shown.bottom - shown.top;
+        if (viewWidth <= 0 || viewHeight <= 0 || shownWidth <= 0 || shownHeight <= 0) {
+            return false;
+        }
+        float by = Math.min((float) viewWidth / shownWidth, (float) viewHeight / shownHeight);
+        float frameX = shown.left + (x - (viewWidth - shownWidth * by) / 2) / by;
+        float frameY = shown.top + (y - (viewHeight - shownHeight * by) / 2) / by;
+        position[0] = Math.max(0f, Math.min(frameX / frameWidth, 1f));
+        position[1] = Math.max(0f, Math.min(frameY / frameHeight, 1f));
+        return true;
+    }
+
+    /**
+     * Move the center of the region of interest to the position where the
+     * focus frame was shown last.
+     *
+     * @param shown       region being shown, or an empty one for whole frames
+     * @param frameWidth
+     * @param frameHeight
+     * @param center      work array
+     */
+    private void moveRegionCenter(Rect shown, int frameWidth, int frameHeight,
+                                  float[] center) {
+        if (shown.isEmpty()) {
+            shown.set(0, 0, frameWidth, frameHeight);
+        }
+        if (mapViewToFrame(mDownX, mDownY, getWidth(), getHeight(), shown, frameWidth,
+                frameHeight, center)) {
+            mRegionCenterX = center[0];
+            mRegionCenterY = center[1];
+        }
+    }
+
+    /**
+     * Set the part of a decoded frame to be drawn.
+     *
+     * @param frame       decoded frame
+     * @param region      region in pixels of the JPEG image, or null for the
+     *                    whole frame
+     * @param jpegWidth
+     * @param jpegHeight
+     */
+    private void setShownRegion(Bitmap frame, Rect region, int jpegWidth, int jpegHeight) {
+        int w = frame.getWidth();
+        int h = frame.getHeight();
+        synchronized (mShownRegion) {
+            if (region == null || jpegWidth <= 0 || jpegHeight <= 0) {
+                mShownRegion.set(0, 0, w, h);
+            } else {
+                mShownRegion.set(region.left * w / jpegWidth, region.top * h / jpegHeight,
+                        region.right * w / jpegWidth, region.bottom * h / jpegHeight);
+            }
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
@@ -291,49 +1256,116 @@ public class SimpleStreamSurfaceView extends SurfaceView implements SurfaceHolde
 
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     private void setInBitmap(BitmapFactory.Options options, Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT && options.inSampleSize != 1) {
+            // Before KitKat, a bitmap can be reused only by decoding without sampling.
+            options.inBitmap = null;
+            return;
+        }
         options.inBitmap = bitmap;
     }
 
     /**
-     * Draw frame bitmap onto a canvas.
+     * Returns the largest power of two sample size which still decodes the
+     * frame at least as large as it is drawn on the surface.
+     *
+     * @param frameWidth
+     * @param frameHeight
+     * @param surfaceWidth
+     * @param surfaceHeight
+     * @return sample size for BitmapFactory.Options
+     */
+    static int calculateSampleSize(int frameWidth, int frameHeight, int surfaceWidth,
+                                   int surfaceHeight) {
+        if (surfaceWidth <= 0 || surfaceHeight <= 0) {
+            return 1;
+        }
+        float by = Math.min((float) surfaceWidth / frameWidth,
+                (float) surfaceHeight / frameHeight);
+        int sampleSize = 1;
+        while (sampleSize * 2 * by <= 1f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Draw frame bitmap onto a canvas, asserting that nothing is allocated if
+     * tracking is enabled.
      *
      * @param frame
+     * @throws IllegalStateException if a frame with unchanged geometry
+     *                               allocated objects while tracking.
      */
     private void drawFrame(Bitmap frame) {
-        if (frame.getWidth() != mPreviousWidth || frame.getHeight() != mPreviousHeight) {
-            onDetectedFrameSizeChanged(frame.getWidth(), frame.getHeight());
+        if (!mAllocationTrackingEnabled) {
+            renderFrame(frame);
             return;
         }
+        int allocCount = Debug.getThreadAllocCount();
+        boolean steady = renderFrame(frame);
+        allocCount = Debug.getThreadAllocCount() - allocCount;
+        if (steady && allocCount != 0) {
+            throw new IllegalStateException("drawFrame() allocated " + allocCount + " objects.");
+        }
+    }
+
+    /**
+     * Draw frame bitmap onto a canvas. Nothing is allocated here unless the
+     * size of the frame or the view is changed.
+     *
+     * @param frame
+     * @return false if the geometry is changed by this frame.
+     */
+    private boolean renderFrame(Bitmap frame) {
+        int w = frame.getWidth();
+        int h = frame.getHeight();
+        if (w != mPreviousWidth || h != mPreviousHeight) {
+            onDetectedFrameSizeChanged(w, h);
+            return false;
+        }
+        boolean steady = true;
+        if (getWidth() != mGeometryViewWidth || getHeight() != mGeometryViewHeight) {
+            updateFrameGeometry(w, h);
+            steady = false;
+        }
+
         Canvas canvas = getHolder().lockCanvas();
         if (canvas == null) {
-            return;
+            return steady;
         }
 
         // Draw frame bitmap
-        int w = frame.getWidth();
-        int h = frame.getHeight();
-        Rect src = new Rect(0, 0, w, h);
+        synchronized (mShownRegion) {
+            mFrameSrcRect.set(mShownRegion);
+        }
+        Rect dst = mFrameDstRect;
+        canvas.drawBitmap(frame, mFrameSrcRect, dst, mFramePaint);
 
-        float by = Math.min((float) getWidth() / w, (float) getHeight() / h);
-        int offsetX = (getWidth() - (int) (w * by)) / 2;
-        int offsetY = (getHeight() - (int) (h * by)) / 2;
-        Rect dst = new Rect(offsetX, offsetY, getWidth() - offsetX, getHeight() - offsetY);
-        canvas.drawBitmap(frame, src, dst, mFramePaint);
+        // Draw liveview frame information onto a canvas.
+        // Frame information refers to whole frames.
+        if (mFrameInfoEnabled && mDigitalZoom <= 1) {
+            drawFrameInfo(canvas, dst);
+        }
+
+        FocusPeakingOverlay peaking = mFocusPeakingOverlay;
+        if (peaking != null && mDigitalZoom <= 1) {
+            peaking.draw(canvas, dst);
+        }
 
         // Draw focus frame onto a canvas.
         if (System.currentTimeMillis() - mFocusTime < FOCUS_FRAME_TIME) {
             int size = mFocusFrameSize;
 
-            if (mDownX - size <= offsetX) {
-                mDownX = offsetX + size + 2;
-            } else if (mDownX + size >= getWidth() - offsetX) {
-                mDownX = getWidth() - offsetX - size - 2;
+            if (mDownX - size <= dst.left) {
+                mDownX = dst.left + size + 2;
+            } else if (mDownX + size >= dst.right) {
+                mDownX = dst.right - size - 2;
             }
 
-            if (mDownY - size <= offsetY) {
-                mDownY = offsetY + size + 2;
-            } else if (mDownY + size >= getHeight() - offsetY) {
-                mDownY = getHeight() - offsetY - size - 2;
+            if (mDownY - size <= dst.top) {
+                mDownY = dst.top + size + 2;
+            } else if (mDownY + size >= dst.bottom) {
+                mDownY = dst.bottom - size - 2;
             }
 
             int left = mDownX - size;
@@ -344,7 +1376,70 @@ public class SimpleStreamSurfaceView extends SurfaceView implements SurfaceHolde
             canvas.drawRect(left, top, right, bottom, mFocusFramePaint);
         }
 
+        HistogramOverlay histogram = mHistogramOverlay;
+        if (histogram != null) {
+            histogram.draw(canvas);
+        }
+
+        PerformanceHud hud = mPerformanceHud;
+        if (hud != null) {
+            hud.draw(canvas, mDroppedFrameCount);
+        }
+
         getHolder().unlockCanvasAndPost(canvas);
+        return steady;
+    }
+
+    /**
+     * Compute the source and letterboxed destination of frame bitmaps for the
+     * current view size.
+     *
+     * @param frameWidth
+     * @param frameHeight
+     */
+    private void updateFrameGeometry(int frameWidth, int frameHeight) {
+        int viewWidth = getWidth();
+        int viewHeight = getHeight();
+        float by = Math.min((float) viewWidth / frameWidth, (float) viewHeight / frameHeight);
+        int offsetX = (viewWidth - (int) (frameWidth * by)) / 2;
+        int offsetY = (viewHeight - (int) (frameHeight * by)) / 2;
+        mFrameDstRect.set(offsetX, offsetY, viewWidth - offsetX, viewHeight - offsetY);
+
+        mGeometryViewWidth = viewWidth;
+        mGeometryViewHeight = viewHeight;
+    }
+
+    /**
+     * Draw frames of liveview frame information into the indicated area.
+     *
+     * @param canvas
+     * @param area   area where the liveview image is drawn
+     */
+    private void drawFrameInfo(Canvas canvas, Rect area) {
+        float scaleX = (float) (area.right - area.left) / LiveviewFrameInfo.COORDINATE_RANGE;
+        float scaleY = (float) (area.bottom - area.top) / LiveviewFrameInfo.COORDINATE_RANGE;
+        synchronized (mFrameInfo) {
+            for (int i = 0; i < mFrameInfo.getCount(); i++) {
+                if (mFrameInfo.getCategory(i) == LiveviewFrameInfo.CATEGORY_INVALID) {
+                    continue;
+                }
+                switch (mFrameInfo.getStatus(i)) {
+                    case LiveviewFrameInfo.STATUS_FOCUSED:
+                        mFrameInfoPaint.setColor(Color.GREEN);
+                        break;
+                    case LiveviewFrameInfo.STATUS_MAIN:
+                        mFrameInfoPaint.setColor(Color.WHITE);
+                        break;
+                    default:
+                        mFrameInfoPaint.setColor(Color.GRAY);
+                        break;
+                }
+                canvas.drawRect(area.left + mFrameInfo.getLeft(i) * scaleX,
+                        area.top + mFrameInfo.getTop(i) * scaleY,
+                        area.left + mFrameInfo.getRight(i) * scaleX,
+                        area.top + mFrameInfo.getBottom(i) * scaleY, mFrameInfoPaint);
+            }
+        }
     }
 
     /**
@@ -357,6 +1452,7 @@ public class SimpleStreamSurfaceView extends SurfaceView implements SurfaceHolde
         Log.d(TAG, "Change of aspect ratio detected");
         mPreviousWidth = width;
         mPreviousHeight = height;
+        mGeometryViewWidth = -1; // recompute with the new frame size
         drawBlackFrame();
         drawBlackFrame();
         drawBlackFrame(); // delete triple buffers
@@ -371,11 +1467,7 @@ public class SimpleStreamSurfaceView extends SurfaceView implements SurfaceHolde
             return;
         }
 
-        Paint paint = new Paint();
-        paint.setColor(Color.BLACK);
-        paint.setStyle(Paint.Style.FILL);
-
-        canvas.drawRect(new Rect(0, 0, getWidth(), getHeight()), paint);
+        canvas.drawColor(Color.BLACK);
         getHolder().unlockCanvasAndPost(canvas);
     }
 
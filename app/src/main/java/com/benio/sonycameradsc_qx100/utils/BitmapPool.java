@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+import android.graphics.Bitmap;
+
+/**
+ * A pool of mutable bitmaps to be decoded into through
+ * BitmapFactory.Options#inBitmap. Bitmaps are looked up by exact dimensions,
+ * which every platform version accepts for reuse.
+ */
+public final class BitmapPool {
+
+    private final Bitmap[] mFreeBitmaps;
+
+    private int mFreeCount;
+
+    /**
+     * Constructor
+     *
+     * @param maxSize number of free bitmaps kept. The oldest free bitmap is
+     *                recycled when another one is released to a full pool.
+     */
+    public BitmapPool(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive.");
+        }
+        mFreeBitmaps = new Bitmap[maxSize];
+    }
+
+    /**
+     * Returns a free bitmap of the indicated dimensions.
+     *
+     * @param width
+     * @param height
+     * @return bitmap, or null if the pool has no bitmap of the dimensions.
+     */
+    public synchronized Bitmap acquire(int width, int height) {
+        for (int i = mFreeCount - 1; 0 <= i; i--) {
+            Bitmap bitmap = mFreeBitmaps[i];
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                System.arraycopy(mFreeBitmaps, i + 1, mFreeBitmaps, i, mFreeCount - i - 1);
+                mFreeBitmaps[--mFreeCount] = null;
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the indicated bitmap to the pool. The caller must not touch
+     * the bitmap after this call.
+     *
+     * @param bitmap mutable bitmap
+     */
+    public void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        Bitmap evicted = null;
+        synchronized (this) {
+            if (mFreeCount == mFreeBitmaps.length) {
+                evicted = mFreeBitmaps[0];
+                System.arraycopy(mFreeBitmaps, 1, mFreeBitmaps, 0, mFreeCount - 1);
+                mFreeCount--;
+            }
+            mFreeBitmaps[mFreeCount++] = bitmap;
+        }
+        if (evicted != null) {
+            evicted.recycle();
+        }
+    }
+
+    /**
+     * Recycles all free bitmaps.
+     */
+    public void clear() {
+        Bitmap[] bitmaps;
+        synchronized (this) {
+            bitmaps = new Bitmap[mFreeCount];
+            System.arraycopy(mFreeBitmaps, 0, bitmaps, 0, mFreeCount);
+            for (int i = 0; i < mFreeCount; i++) {
+                mFreeBitmaps[i] = null;
+            }
+            mFreeCount = 0;
+        }
+        for (Bitmap bitmap : bitmaps) {
+            bitmap.recycle();
+        }
+    }
+}
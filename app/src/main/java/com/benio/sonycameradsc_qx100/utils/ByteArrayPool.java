@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+/**
+ * A pool of byte arrays grouped by power-of-two size classes. Arrays handed
+ * out by {@link #acquire(int)} may be longer than requested, so callers must
+ * keep track of the valid length by themselves.
+ */
+public final class ByteArrayPool {
+
+    private static final int MIN_CLASS_SHIFT = 10; // 1 KB
+
+    private static final int MAX_CLASS_SHIFT = 24; // 16 MB, the largest payload size of a Packet
+
+    private static final int DEFAULT_MAX_BUFFERS_PER_CLASS = 4;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final byte[][][] mFreeBuffers;
+
+    private final int[] mFreeCounts;
+
+    /**
+     * Constructor
+     */
+    public ByteArrayPool() {
+        this(DEFAULT_MAX_BUFFERS_PER_CLASS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxBuffersPerClass the number of arrays kept for each size
+     *                           class. Arrays released beyond this number are
+     *                           left to GC.
+     */
+    public ByteArrayPool(int maxBuffersPerClass) {
+        if (maxBuffersPerClass < 1) {
+            throw new IllegalArgumentException("maxBuffersPerClass must be positive.");
+        }
+        int classCount = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+        mFreeBuffers = new byte[classCount][maxBuffersPerClass][];
+        mFreeCounts = new int[classCount];
+    }
+
+    /**
+     * Returns an array whose length is equal to or larger than the indicated
+     * length. A new array is allocated only when the pool has no free array
+     * of the size class. A length of 0 returns a shared empty array, which
+     * is ignored by {@link #release(byte[])}.
+     *
+     * @param minLength required length
+     * @return byte array
+     */
+    public byte[] acquire(int minLength) {
+        if (minLength <= 0) {
+            return EMPTY;
+        }
+        int sizeClass = sizeClassOf(minLength);
+        if (sizeClass < 0) {
+            // Too large to be pooled.
+            return new byte[minLength];
+        }
+        synchronized (this) {
+            int count = mFreeCounts[sizeClass];
+            if (0 < count) {
+                byte[] buffer = mFreeBuffers[sizeClass][count - 1];
+                mFreeBuffers[sizeClass][count - 1] = null;
+                mFreeCounts[sizeClass] = count - 1;
+                return buffer;
+            }
+        }
+        return new byte[1 << (sizeClass + MIN_CLASS_SHIFT)];
+    }
+
+    /**
+     * Returns the indicated array to the pool. The caller must not touch the
+     * array after this call.
+     *
+     * @param buffer array obtained by {@link #acquire(int)}
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int sizeClass = sizeClassOf(buffer.length);
+        if (sizeClass < 0 || buffer.length != 1 << (sizeClass + MIN_CLASS_SHIFT)) {
+            // Not an array of this pool.
+            return;
+        }
+        synchronized (this) {
+            int count = mFreeCounts[sizeClass];
+            if (count < mFreeBuffers[sizeClass].length) {
+                mFreeBuffers[sizeClass][count] = buffer;
+                mFreeCounts[sizeClass] = count + 1;
+            }
+        }
+    }
+
+    /**
+     * Drops all free arrays kept by the pool.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mFreeBuffers.length; i++) {
+            for (int j = 0; j < mFreeCounts[i]; j++) {
+                mFreeBuffers[i][j] = null;
+            }
+            mFreeCounts[i] = 0;
+        }
+    }
+
+    /**
+     * Returns index of the smallest size class which can hold the indicated
+     * length, or -1 if the length is too large.
+     *
+     * @param length
+     * @return
+     */
+    private static int sizeClassOf(int length) {
+        int shift = MIN_CLASS_SHIFT;
+        while (shift <= MAX_CLASS_SHIFT && (1 << shift) < length) {
+            shift++;
+        }
+        return shift <= MAX_CLASS_SHIFT ? shift - MIN_CLASS_SHIFT : -1;
+    }
+}
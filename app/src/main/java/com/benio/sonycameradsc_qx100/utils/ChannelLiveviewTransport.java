@@ -0,0 +1,224 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A transport which reads liveview data from a raw SocketChannel. It sends a
+ * minimal HTTP GET request by itself and reads the response body into a large
+ * direct ByteBuffer, so the slicer can take each header and JPEG from the
+ * buffer by bulk copies instead of many small reads through HttpURLConnection.
+ */
+public class ChannelLiveviewTransport implements LiveviewTransport {
+
+    private static final String TAG = ChannelLiveviewTransport.class.getSimpleName();
+
+    private static final int CONNECTION_TIMEOUT = 2000; // [msec]
+
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    private static final int MAX_RESPONSE_HEADER_SIZE = 8 * 1024;
+
+    private SocketChannel mChannel;
+
+    private InputStream mInputStream;
+
+    @Override
+    public InputStream open(String url) throws IOException {
+        if (mInputStream != null || mChannel != null) {
+            throw new IllegalStateException("Transport is already open.");
+        }
+
+        final URL urlObj = new URL(url);
+        if (!"http".equalsIgnoreCase(urlObj.getProtocol())) {
+            throw new IOException("Unsupported protocol: " + urlObj.getProtocol());
+        }
+        String host = urlObj.getHost();
+        int port = urlObj.getPort() < 0 ? urlObj.getDefaultPort() : urlObj.getPort();
+        String path = urlObj.getFile();
+        if (path == null || path.length() == 0) {
+            path = "/";
+        }
+
+        try {
+            mChannel = SocketChannel.open();
+            mChannel.socket().setReceiveBufferSize(READ_BUFFER_SIZE);
+            mChannel.socket().connect(new InetSocketAddress(host, port), CONNECTION_TIMEOUT);
+
+            // HTTP/1.0 is requested so that the server never uses chunked
+            // transfer encoding for the body.
+            String request = "GET " + path + " HTTP/1.0\r\n" //
+                    + "Host: " + host + ":" + port + "\r\n" //
+                    + "Connection: close\r\n" //
+                    + "\r\n";
+            ByteBuffer requestBuffer = ByteBuffer.wrap(request.getBytes("US-ASCII"));
+            while (requestBuffer.hasRemaining()) {
+                mChannel.write(requestBuffer);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            readResponseHeader(mChannel, buffer);
+            mInputStream = new ChannelInputStream(mChannel, buffer);
+            return mInputStream;
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (mInputStream != null) {
+                mInputStream.close();
+                mInputStream = null;
+            }
+            if (mChannel != null) {
+                mChannel.close();
+                mChannel = null;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Close() IOException.");
+        }
+    }
+
+    /**
+     * Reads HTTP response header and checks the status. When this method
+     * returns, the buffer is ready to be read and holds the beginning of the
+     * response body.
+     *
+     * @param channel
+     * @param buffer
+     * @throws IOException
+     */
+    private static void readResponseHeader(ReadableByteChannel channel, ByteBuffer buffer)
+            throws IOException {
+        int headerEnd = -1;
+        int scanned = 0;
+        while (headerEnd < 0) {
+            if (MAX_RESPONSE_HEADER_SIZE <= buffer.position()) {
+                throw new IOException("Response header is too large.");
+            }
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Connection closed while reading response header.");
+            }
+            for (int i = Math.max(scanned, 3); i < buffer.position(); i++) {
+                if (buffer.get(i - 3) == '\r' && buffer.get(i - 2) == '\n'
+                        && buffer.get(i - 1) == '\r' && buffer.get(i) == '\n') {
+                    headerEnd = i + 1;
+                    break;
+                }
+            }
+            scanned = buffer.position();
+        }
+
+        byte[] headerBytes = new byte[headerEnd];
+        for (int i = 0; i < headerEnd; i++) {
+            headerBytes[i] = buffer.get(i);
+        }
+        String[] lines = new String(headerBytes, "US-ASCII").split("\r\n");
+
+        // Status line: "HTTP/1.x 200 OK"
+        String[] status = lines[0].split(" ");
+        if (status.length < 2 || !"200".equals(status[1])) {
+            Log.w(TAG, "Response Code Error: " + lines[0]);
+            throw new IOException("Response Error:" + lines[0]);
+        }
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i].toLowerCase();
+            if (line.startsWith("transfer-encoding:") && line.contains("chunked")) {
+                throw new IOException("Chunked transfer encoding is not supported.");
+            }
+        }
+
+        buffer.limit(buffer.position());
+        buffer.position(headerEnd);
+    }
+
+    /**
+     * An InputStream which serves bytes from the direct buffer and refills
+     * the buffer from the channel only when it is drained.
+     */
+    private static final class ChannelInputStream extends InputStream {
+
+        private final ReadableByteChannel mChannel;
+
+        private final ByteBuffer mBuffer;
+
+        ChannelInputStream(ReadableByteChannel channel, ByteBuffer buffer) {
+            mChannel = channel;
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return mBuffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0 || !fill()) {
+                return 0;
+            }
+            int count = (int) Math.min(n, mBuffer.remaining());
+            mBuffer.position(mBuffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+
+        /**
+         * Refills the buffer if it is drained.
+         *
+         * @return false if the channel reached its end.
+         * @throws IOException
+         */
+        private boolean fill() throws IOException {
+            if (mBuffer.hasRemaining()) {
+                return true;
+            }
+            mBuffer.clear();
+            int readlen;
+            do {
+                readlen = mChannel.read(mBuffer);
+            } while (readlen == 0);
+            mBuffer.flip();
+            return 0 < readlen;
+        }
+    }
+}
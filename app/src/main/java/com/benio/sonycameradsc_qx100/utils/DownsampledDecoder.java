@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Decodes the newest frame of Payloads at a small size into a reused ARGB
+ * pixel array, for analysis of liveview frames. This is not thread safe, and
+ * meant to be owned by a single {@link FrameSink}.
+ */
+public final class DownsampledDecoder {
+
+    private final int mTargetWidth;
+
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+
+    private final int[] mJpegSize = new int[2];
+
+    private int[] mPixels = new int[0];
+
+    private int mWidth;
+
+    private int mHeight;
+
+    /**
+     * Constructor
+     *
+     * @param targetWidth minimum width of decoded frames. Frames are
+     *                    decoded at the largest sample size keeping this.
+     */
+    public DownsampledDecoder(int targetWidth) {
+        mTargetWidth = targetWidth;
+        mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            setInMutable(mOptions);
+        }
+    }
+
+    /**
+     * Decodes the newest frame of the indicated Payload.
+     *
+     * @param payload
+     * @return false if the data is broken.
+     */
+    public boolean decode(SimpleLiveviewSlicer.Payload payload) {
+        int frameIndex = payload.frameCount - 1;
+        int frameOffset = payload.getFrameOffset(frameIndex);
+        int frameLength = payload.getFrameLength(frameIndex);
+
+        int sampleSize = 1;
+        if (JpegHeaderReader.readSize(payload.jpegData, frameOffset, frameLength, mJpegSize)) {
+            while (mTargetWidth <= mJpegSize[0] / (sampleSize * 2)) {
+                sampleSize *= 2;
+            }
+        }
+        mOptions.inSampleSize = sampleSize;
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(payload.jpegData, frameOffset, frameLength,
+                    mOptions);
+        } catch (IllegalArgumentException e) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                setInBitmap(mOptions, null);
+            }
+            return false;
+        }
+        if (bitmap == null) {
+            return false;
+        }
+
+        mWidth = bitmap.getWidth();
+        mHeight = bitmap.getHeight();
+        if (mPixels.length < mWidth * mHeight) {
+            mPixels = new int[mWidth * mHeight];
+        }
+        bitmap.getPixels(mPixels, 0, mWidth, 0, 0, mWidth, mHeight);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Any bitmap large enough can be reused from KitKat.
+            setInBitmap(mOptions, bitmap);
+        } else {
+            bitmap.recycle();
+        }
+        return true;
+    }
+
+    /**
+     * Returns ARGB pixels of the last decoded frame, row by row. The array
+     * may be longer than the frame, and is reused by the next decode().
+     *
+     * @return
+     */
+    public int[] getPixels() {
+        return mPixels;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void setInMutable(BitmapFactory.Options options) {
+        options.inMutable = true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void setInBitmap(BitmapFactory.Options options, Bitmap bitmap) {
+        options.inBitmap = bitmap;
+    }
+}
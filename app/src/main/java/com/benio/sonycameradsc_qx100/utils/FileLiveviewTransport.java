@@ -0,0 +1,234 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * A transport which replays a capture recorded by {@link LiveviewRecorder}
+ * from a "file://" url, so the slicer and its consumers can be run and
+ * measured without a camera.
+ * <p/>
+ * By default, Packets are delivered at the arrival times in the index file.
+ * Add "?timing=fast" to the url to read the capture as fast as possible. A
+ * capture without index file is always read as fast as possible.
+ */
+public class FileLiveviewTransport implements LiveviewTransport {
+
+    private static final String TAG = FileLiveviewTransport.class.getSimpleName();
+
+    /**
+     * Url scheme handled by this transport.
+     */
+    public static final String SCHEME = "file";
+
+    private static final String TIMING_FAST = "timing=fast";
+
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    private InputStream mInputStream;
+
+    /**
+     * Checks if the indicated url is handled by this transport.
+     *
+     * @param url
+     * @return true if the url has "file" scheme.
+     */
+    public static boolean isFileUrl(String url) {
+        return url != null && url.regionMatches(true, 0, SCHEME + ":", 0, SCHEME.length() + 1);
+    }
+
+    @Override
+    public InputStream open(String url) throws IOException {
+        if (mInputStream != null) {
+            throw new IllegalStateException("Transport is already open.");
+        }
+
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid url: " + url);
+        }
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme()) || uri.getPath() == null) {
+            throw new IOException("Unsupported url: " + url);
+        }
+        File dataFile = new File(uri.getPath());
+        boolean fast = uri.getQuery() != null && uri.getQuery().contains(TIMING_FAST);
+
+        InputStream in = new BufferedInputStream(new FileInputStream(dataFile), READ_BUFFER_SIZE);
+        File indexFile = LiveviewRecorder.getIndexFile(dataFile);
+        if (!fast && indexFile.exists()) {
+            try {
+                in = new PacedInputStream(in, readIndex(indexFile));
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        } else if (!fast) {
+            Log.w(TAG, "No index file. Replaying as fast as possible.");
+        }
+        mInputStream = in;
+        return mInputStream;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (mInputStream != null) {
+                mInputStream.close();
+                mInputStream = null;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Close() IOException.");
+        }
+    }
+
+    /**
+     * Reads the index file written by {@link LiveviewRecorder}.
+     *
+     * @param indexFile
+     * @return offsets at even positions and arrival times at odd positions
+     * @throws IOException
+     */
+    private static long[] readIndex(File indexFile) throws IOException {
+        long length = indexFile.length();
+        if (length < LiveviewRecorder.INDEX_HEADER_LENGTH) {
+            throw new IOException("Index file is too short.");
+        }
+        int count = (int) ((length - LiveviewRecorder.INDEX_HEADER_LENGTH)
+                / LiveviewRecorder.INDEX_ENTRY_LENGTH);
+        long[] entries = new long[count * 2];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(indexFile)));
+        try {
+            if (in.readLong() != LiveviewRecorder.INDEX_MAGIC) {
+                throw new IOException("Unexpected data format. (Index file)");
+            }
+            in.readLong(); // start time
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = in.readLong();
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    /**
+     * An InputStream which holds back each Packet until its recorded arrival
+     * time. The first Packet is delivered at the first read.
+     */
+    private static final class PacedInputStream extends FilterInputStream {
+
+        private final long[] mEntries;
+
+        private int mNextEntry;
+
+        private long mPosition;
+
+        private long mStartNanos = -1;
+
+        PacedInputStream(InputStream in, long[] entries) {
+            super(in);
+            mEntries = entries;
+        }
+
+        @Override
+        public int read() throws IOException {
+            limit(1);
+            int b = in.read();
+            if (0 <= b) {
+                mPosition++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int readlen = in.read(b, off, (int) limit(len));
+            if (0 < readlen) {
+                mPosition += readlen;
+            }
+            return readlen;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            long skipped = in.skip(limit(n));
+            if (0 < skipped) {
+                mPosition += skipped;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (mNextEntry * 2 < mEntries.length) {
+                return (int) Math.min(in.available(), mEntries[mNextEntry * 2] - mPosition);
+            }
+            return in.available();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Waits for the arrival time of the Packet starting at the current
+         * position, and returns how many bytes can be read before the next
+         * Packet.
+         *
+         * @param length requested length
+         * @return length to read, at least 1
+         * @throws IOException
+         */
+        private long limit(long length) throws IOException {
+            if (mStartNanos < 0) {
+                long firstArrival = 0 < mEntries.length ? mEntries[1] : 0;
+                mStartNanos = System.nanoTime() - firstArrival;
+            }
+            while (mNextEntry * 2 < mEntries.length && mEntries[mNextEntry * 2] <= mPosition) {
+                waitUntil(mStartNanos + mEntries[mNextEntry * 2 + 1]);
+                mNextEntry++;
+            }
+            if (mNextEntry * 2 < mEntries.length) {
+                return Math.min(length, mEntries[mNextEntry * 2] - mPosition);
+            }
+            return length;
+        }
+
+        private static void waitUntil(long deadlineNanos) throws IOException {
+            long remaining = deadlineNanos - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while pacing replay.");
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes image Payloads from the fetch thread to several
+ * {@link FrameSink}s, each with its own backpressure policy. Payloads are
+ * shared by reference counting, not copied. Sinks other than
+ * {@link FrameSink.Policy#DIRECT} are called on their own threads, which run
+ * between {@link #start()} and {@link #stop()}.
+ */
+public final class FrameDispatcher {
+
+    private static final String TAG = FrameDispatcher.class.getSimpleName();
+
+    private static final long BLOCK_POLL_INTERVAL = 100; // [msec]
+
+    private final Object mLock = new Object();
+
+    // Replaced on every change, so the fetch thread iterates without locking.
+    private volatile SinkChannel[] mChannels = new SinkChannel[0];
+
+    private boolean mRunning;
+
+    /**
+     * Adds a sink.
+     *
+     * @param sink
+     * @param policy any policy except {@link FrameSink.Policy#SAMPLE}
+     */
+    public void addSink(FrameSink sink, FrameSink.Policy policy) {
+        if (policy == FrameSink.Policy.SAMPLE) {
+            throw new IllegalArgumentException("Use addSampledSink() for SAMPLE policy.");
+        }
+        addChannel(new SinkChannel(sink, policy, 1));
+    }
+
+    /**
+     * Adds a sink which is offered every Nth frame with
+     * {@link FrameSink.Policy#SAMPLE} policy.
+     *
+     * @param sink
+     * @param interval N
+     */
+    public void addSampledSink(FrameSink sink, int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval must be positive.");
+        }
+        addChannel(new SinkChannel(sink, FrameSink.Policy.SAMPLE, interval));
+    }
+
+    /**
+     * Removes a sink. A sink with its own thread is not called after this
+     * method returns, except for a call already in progress.
+     *
+     * @param sink
+     */
+    public void removeSink(FrameSink sink) {
+        SinkChannel removed = null;
+        synchronized (mLock) {
+            SinkChannel[] channels = mChannels;
+            for (int i = 0; i < channels.length; i++) {
+                if (channels[i].mSink == sink) {
+                    removed = channels[i];
+                    SinkChannel[] newChannels = new SinkChannel[channels.length - 1];
+                    System.arraycopy(channels, 0, newChannels, 0, i);
+                    System.arraycopy(channels, i + 1, newChannels, i, channels.length - i - 1);
+                    mChannels = newChannels;
+                    break;
+                }
+            }
+        }
+        if (removed != null) {
+            removed.stop();
+        }
+    }
+
+    /**
+     * Returns the number of sinks.
+     *
+     * @return
+     */
+    public int getSinkCount() {
+        return mChannels.length;
+    }
+
+    /**
+     * Returns the number of sinks with the indicated policy.
+     *
+     * @param policy
+     * @return
+     */
+    public int getSinkCount(FrameSink.Policy policy) {
+        int count = 0;
+        for (SinkChannel channel : mChannels) {
+            if (channel.mPolicy == policy) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of frames which the indicated sink did not receive
+     * because it was busy.
+     *
+     * @param sink
+     * @return count of dropped frames, or 0 if the sink is not added.
+     */
+    public long getDroppedFrameCount(FrameSink sink) {
+        for (SinkChannel channel : mChannels) {
+            if (channel.mSink == sink) {
+                return channel.mDroppedCount;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Starts threads of the sinks. This is called when a stream is opened.
+     */
+    public void start() {
+        synchronized (mLock) {
+            mRunning = true;
+            for (SinkChannel channel : mChannels) {
+                channel.start();
+            }
+        }
+    }
+
+    /**
+     * Stops threads of the sinks and releases Payloads waiting for them.
+     * This is called when a stream is closed. Calls of sinks in progress are
+     * not interrupted, and complete after this returns.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            mRunning = false;
+            for (SinkChannel channel : mChannels) {
+                channel.stop();
+            }
+        }
+    }
+
+    /**
+     * Publishes a Payload to all sinks. This must be called only on the fetch
+     * thread. The reference held by the caller is released by this method.
+     *
+     * @param payload
+     */
+    public void dispatch(SimpleLiveviewSlicer.Payload payload) {
+        try {
+            SinkChannel[] channels = mChannels;
+            for (int i = 0; i < channels.length; i++) {
+                channels[i].deliver(payload);
+            }
+        } finally {
+            payload.release();
+        }
+    }
+
+    private void addChannel(SinkChannel channel) {
+        synchronized (mLock) {
+            for (SinkChannel c : mChannels) {
+                if (c.mSink == channel.mSink) {
+                    throw new IllegalStateException("Sink is already added.");
+                }
+            }
+            SinkChannel[] channels = mChannels;
+            SinkChannel[] newChannels = new SinkChannel[channels.length + 1];
+            System.arraycopy(channels, 0, newChannels, 0, channels.length);
+            newChannels[channels.length] = channel;
+            mChannels = newChannels;
+            if (mRunning) {
+                channel.start();
+            }
+        }
+    }
+
+    /**
+     * The route of Payloads to a sink.
+     */
+    private static final class SinkChannel {
+
+        final FrameSink mSink;
+
+        final FrameSink.Policy mPolicy;
+
+        final int mInterval;
+
+        final FrameExchanger<SimpleLiveviewSlicer.Payload> mExchanger =
+                new FrameExchanger<SimpleLiveviewSlicer.Payload>();
+
+        // Accessed only on the fetch thread.
+        long mFrameCount;
+
+        volatile long mDroppedCount;
+
+        volatile Thread mThread;
+
+        // Guarded by this. Whether the thread is inside onFrame() of the sink.
+        private boolean mInSink;
+
+        SinkChannel(FrameSink sink, FrameSink.Policy policy, int interval) {
+            mSink = sink;
+            mPolicy = policy;
+            mInterval = interval;
+        }
+
+        void deliver(SimpleLiveviewSlicer.Payload payload) {
+            switch (mPolicy) {
+                case DIRECT:
+                    mSink.onFrame(payload);
+                    break;
+                case SAMPLE:
+                    if (mFrameCount++ % mInterval != 0) {
+                        break;
+                    }
+                    offer(payload);
+                    break;
+                case DROP:
+                    offer(payload);
+                    break;
+                case BLOCK:
+                    put(payload);
+                    break;
+            }
+        }
+
+        private void offer(SimpleLiveviewSlicer.Payload payload) {
+            if (mThread == null) {
+                return;
+            }
+            payload.retain();
+            SimpleLiveviewSlicer.Payload replaced = mExchanger.offer(payload);
+            if (replaced != null) {
+                replaced.release();
+                mDroppedCount++;
+            }
+        }
+
+        private void put(SimpleLiveviewSlicer.Payload payload) {
+            payload.retain();
+            try {
+                while (!mExchanger.put(payload, BLOCK_POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    if (mThread == null) {
+                        payload.release();
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                payload.release();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void start() {
+            if (mPolicy == FrameSink.Policy.DIRECT || mThread != null) {
+                return;
+            }
+            Thread thread = new Thread("FrameSink-" + mSink.getClass().getSimpleName()) {
+                @Override
+                public void run() {
+                    while (mThread == this) {
+                        SimpleLiveviewSlicer.Payload payload;
+                        try {
+                            payload = mExchanger.take();
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                        synchronized (SinkChannel.this) {
+                            if (mThread != this) {
+                                payload.release();
+                                break;
+                            }
+                            // stop() does not interrupt the sink from here.
+                            mInSink = true;
+                        }
+                        try {
+                            mSink.onFrame(payload);
+                        } catch (RuntimeException e) {
+                            Log.w(TAG, "Sink threw an exception: " + e);
+                        } finally {
+                            synchronized (SinkChannel.this) {
+                                mInSink = false;
+                            }
+                            payload.release();
+                        }
+                    }
+                    drain();
+                }
+            };
+            mThread = thread;
+            thread.start();
+        }
+
+        /**
+         * Stops the thread. The thread is interrupted only while it waits
+         * for a Payload, so that interruptible I/O of the sink is not broken.
+         * A call of the sink in progress completes, and the thread ends
+         * after it.
+         */
+        void stop() {
+            synchronized (this) {
+                Thread thread = mThread;
+                mThread = null;
+                if (thread != null && !mInSink) {
+                    thread.interrupt();
+                }
+            }
+            drain();
+        }
+
+        private void drain() {
+            SimpleLiveviewSlicer.Payload payload = mExchanger.poll();
+            if (payload != null) {
+                payload.release();
+            }
+        }
+    }
+}
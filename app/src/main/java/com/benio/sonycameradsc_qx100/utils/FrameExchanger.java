@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-slot handoff of frames from one producer thread to one consumer
+ * thread. The slot always holds the newest frame: {@link #offer(Object)}
+ * replaces a frame not yet taken and returns it to the producer, so the
+ * producer can recycle it. Threads waiting on the slot are parked instead of
+ * polling, and no lock is taken.
+ *
+ * @param <T> type of frames
+ */
+public final class FrameExchanger<T> {
+
+    private final AtomicReference<T> mSlot = new AtomicReference<T>();
+
+    private volatile Thread mConsumer;
+
+    private volatile Thread mProducer;
+
+    /**
+     * Puts the indicated frame into the slot, replacing a frame which the
+     * consumer has not taken yet.
+     *
+     * @param frame frame, not null
+     * @return replaced frame, or null if the slot was empty.
+     */
+    public T offer(T frame) {
+        if (frame == null) {
+            throw new NullPointerException("frame is null.");
+        }
+        T replaced = mSlot.getAndSet(frame);
+        unpark(mConsumer);
+        return replaced;
+    }
+
+    /**
+     * Puts the indicated frame into the slot, waiting for the consumer to
+     * take the previous frame. No frame is replaced by this method.
+     *
+     * @param frame   frame, not null
+     * @param timeout maximum time to wait
+     * @param unit    unit of timeout
+     * @return true if the frame is put, false if the time ran out.
+     * @throws InterruptedException
+     */
+    public boolean put(T frame, long timeout, TimeUnit unit) throws InterruptedException {
+        if (frame == null) {
+            throw new NullPointerException("frame is null.");
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        mProducer = Thread.currentThread();
+        try {
+            while (!mSlot.compareAndSet(null, frame)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            mProducer = null;
+        }
+        unpark(mConsumer);
+        return true;
+    }
+
+    /**
+     * Takes the newest frame, parking the calling thread until a frame is
+     * offered.
+     *
+     * @return frame
+     * @throws InterruptedException
+     */
+    public T take() throws InterruptedException {
+        mConsumer = Thread.currentThread();
+        try {
+            T frame;
+            while ((frame = mSlot.getAndSet(null)) == null) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            unpark(mProducer);
+            return frame;
+        } finally {
+            mConsumer = null;
+        }
+    }
+
+    /**
+     * Takes the frame in the slot without waiting.
+     *
+     * @return frame, or null if the slot is empty.
+     */
+    public T poll() {
+        T frame = mSlot.getAndSet(null);
+        if (frame != null) {
+            unpark(mProducer);
+        }
+        return frame;
+    }
+
+    private static void unpark(Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+/**
+ * A consumer of image Payloads published by {@link FrameDispatcher}, such as
+ * a view, a recorder, an analyzer or a network server. Payloads are shared
+ * among all sinks without copying.
+ */
+public interface FrameSink {
+
+    /**
+     * How a sink receives frames when it cannot keep up with the stream.
+     */
+    enum Policy {
+        /**
+         * Called on the fetch thread for every frame. The sink must return
+         * quickly, because the fetch thread waits for it.
+         */
+        DIRECT,
+
+        /**
+         * Called on a thread of the sink. A frame arriving while the sink is
+         * busy replaces the frame waiting for it, so the sink always gets
+         * the newest one.
+         */
+        DROP,
+
+        /**
+         * Called on a thread of the sink for every frame. The fetch thread
+         * waits while the sink is busy, which also delays other sinks.
+         */
+        BLOCK,
+
+        /**
+         * Like {@link #DROP}, but only every Nth frame of the stream is
+         * offered to the sink.
+         */
+        SAMPLE
+    }
+
+    /**
+     * Called for each image Payload. The Payload is valid only during this
+     * call. Call {@link SimpleLiveviewSlicer.Payload#retain()} to keep it
+     * longer, and release it when done.
+     * <p/>
+     * The dispatcher never interrupts a thread while it is in this method,
+     * even when the sink is removed or the stream is closed, so a sink can
+     * use interruptible I/O such as a FileChannel. A sink with its own
+     * thread is not called again after it is stopped.
+     *
+     * @param payload
+     */
+    void onFrame(SimpleLiveviewSlicer.Payload payload);
+}
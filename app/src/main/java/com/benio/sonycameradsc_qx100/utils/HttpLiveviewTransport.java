@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * A transport which reads liveview data by HttpURLConnection.
+ */
+public class HttpLiveviewTransport implements LiveviewTransport {
+
+    private static final String TAG = HttpLiveviewTransport.class.getSimpleName();
+
+    private static final int CONNECTION_TIMEOUT = 2000; // [msec]
+
+    private HttpURLConnection mHttpConn;
+
+    private InputStream mInputStream;
+
+    @Override
+    public InputStream open(String url) throws IOException {
+        if (mInputStream != null || mHttpConn != null) {
+            throw new IllegalStateException("Transport is already open.");
+        }
+
+        final URL urlObj = new URL(url);
+        mHttpConn = (HttpURLConnection) urlObj.openConnection();
+        mHttpConn.setRequestMethod("GET");
+        mHttpConn.setConnectTimeout(CONNECTION_TIMEOUT);
+        mHttpConn.connect();
+
+        if (mHttpConn.getResponseCode() == HttpURLConnection.HTTP_OK) {
+            mInputStream = mHttpConn.getInputStream();
+        }
+        return mInputStream;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (mInputStream != null) {
+                mInputStream.close();
+                mInputStream = null;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Close() IOException.");
+        }
+
+        if (mHttpConn != null) {
+            mHttpConn.disconnect();
+            mHttpConn = null;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+/**
+ * Reads image dimensions from the frame header (SOFn) of JPEG data without
+ * decoding it.
+ */
+public final class JpegHeaderReader {
+
+    private JpegHeaderReader() {
+    }
+
+    /**
+     * Reads the width and height of the indicated JPEG data.
+     *
+     * @param data   container of JPEG data
+     * @param offset offset of JPEG data
+     * @param length length of JPEG data
+     * @param size   array receiving width at index 0 and height at index 1
+     * @return true if the dimensions are read, false if the data has no
+     * frame header before its scan data.
+     */
+    public static boolean readSize(byte[] data, int offset, int length, int[] size) {
+        int end = offset + length;
+        if (length < 4 || data[offset] != (byte) 0xFF || data[offset + 1] != (byte) 0xD8) {
+            return false;
+        }
+        int pos = offset + 2;
+        while (pos + 4 <= end) {
+            if (data[pos] != (byte) 0xFF) {
+                return false;
+            }
+            int marker = data[pos + 1] & 0xff;
+            if (marker == 0xFF) {
+                // Fill byte
+                pos++;
+                continue;
+            }
+            if (marker == 0x01 || (0xD0 <= marker && marker <= 0xD7)) {
+                // Markers without length
+                pos += 2;
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                // EOI or SOS came before any frame header.
+                return false;
+            }
+            int segmentLength = ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+            if (isStartOfFrame(marker)) {
+                if (end < pos + 9) {
+                    return false;
+                }
+                size[1] = ((data[pos + 5] & 0xff) << 8) | (data[pos + 6] & 0xff);
+                size[0] = ((data[pos + 7] & 0xff) << 8) | (data[pos + 8] & 0xff);
+                return 0 < size[0] && 0 < size[1];
+            }
+            pos += 2 + segmentLength;
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the indicated marker is one of SOF0 to SOF15, except DHT,
+     * JPG and DAC which share the range.
+     *
+     * @param marker
+     * @return
+     */
+    private static boolean isStartOfFrame(int marker) {
+        return 0xC0 <= marker && marker <= 0xCF
+                && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+/**
+ * Frame information carried by Liveview Frame Information Packets (payload
+ * type 0x02), such as focus frames, face detection frames and tracking
+ * frames. The data is kept in primitive arrays which are reused and grown
+ * only when a Packet has more frames than ever before.
+ * <p/>
+ * Corner positions are expressed between 0 and {@link #COORDINATE_RANGE},
+ * with the upper left of the liveview image as the origin.
+ */
+public final class LiveviewFrameInfo {
+
+    public static final int COORDINATE_RANGE = 10000;
+
+    public static final int CATEGORY_INVALID = 0x00;
+
+    public static final int CATEGORY_CONTRAST_AF = 0x01;
+
+    public static final int CATEGORY_PHASE_DETECTION_AF = 0x02;
+
+    public static final int CATEGORY_FACE = 0x04;
+
+    public static final int CATEGORY_TRACKING = 0x05;
+
+    public static final int STATUS_INVALID = 0x00;
+
+    public static final int STATUS_NORMAL = 0x01;
+
+    public static final int STATUS_MAIN = 0x02;
+
+    public static final int STATUS_SUB = 0x03;
+
+    public static final int STATUS_FOCUSED = 0x04;
+
+    public static final int ADDITIONAL_STATUS_INVALID = 0x00;
+
+    public static final int ADDITIONAL_STATUS_SELECTED = 0x01;
+
+    public static final int ADDITIONAL_STATUS_LARGE_FRAME = 0x02;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static final int MIN_SINGLE_FRAME_SIZE = 4 + 4 + 1 + 1 + 1;
+
+    private int mSequenceNumber = -1;
+
+    private int mCount;
+
+    // left, top, right, bottom of each frame
+    private int[] mCoordinates = new int[INITIAL_CAPACITY * 4];
+
+    private byte[] mCategories = new byte[INITIAL_CAPACITY];
+
+    private byte[] mStatuses = new byte[INITIAL_CAPACITY];
+
+    private byte[] mAdditionalStatuses = new byte[INITIAL_CAPACITY];
+
+    /**
+     * Returns the sequence number of the Packet which carried this
+     * information, or -1 if nothing has been parsed yet.
+     *
+     * @return sequence number
+     */
+    public int getSequenceNumber() {
+        return mSequenceNumber;
+    }
+
+    /**
+     * Returns the number of frames.
+     *
+     * @return number of frames
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    public int getLeft(int index) {
+        return mCoordinates[checkIndex(index) * 4];
+    }
+
+    public int getTop(int index) {
+        return mCoordinates[checkIndex(index) * 4 + 1];
+    }
+
+    public int getRight(int index) {
+        return mCoordinates[checkIndex(index) * 4 + 2];
+    }
+
+    public int getBottom(int index) {
+        return mCoordinates[checkIndex(index) * 4 + 3];
+    }
+
+    public int getCategory(int index) {
+        return mCategories[checkIndex(index)] & 0xff;
+    }
+
+    public int getStatus(int index) {
+        return mStatuses[checkIndex(index)] & 0xff;
+    }
+
+    public int getAdditionalStatus(int index) {
+        return mAdditionalStatuses[checkIndex(index)] & 0xff;
+    }
+
+    /**
+     * Copies the content of the indicated information into this instance.
+     * Consumers on other threads use this to keep the information, because
+     * the instance owned by the slicer is overwritten by the next Packet.
+     *
+     * @param other source
+     */
+    public void copyFrom(LiveviewFrameInfo other) {
+        ensureCapacity(other.mCount);
+        mSequenceNumber = other.mSequenceNumber;
+        mCount = other.mCount;
+        System.arraycopy(other.mCoordinates, 0, mCoordinates, 0, other.mCount * 4);
+        System.arraycopy(other.mCategories, 0, mCategories, 0, other.mCount);
+        System.arraycopy(other.mStatuses, 0, mStatuses, 0, other.mCount);
+        System.arraycopy(other.mAdditionalStatuses, 0, mAdditionalStatuses, 0, other.mCount);
+    }
+
+    /**
+     * Removes all frames.
+     */
+    public void clear() {
+        mSequenceNumber = -1;
+        mCount = 0;
+    }
+
+    /**
+     * Parses Payload data of a Liveview Frame Information Packet.
+     *
+     * @param sequenceNumber  sequence number in Common Header
+     * @param data            Payload data
+     * @param offset          offset of Payload data
+     * @param frameCount      frame count in Payload Header
+     * @param singleFrameSize single frame data size in Payload Header
+     */
+    void parse(int sequenceNumber, byte[] data, int offset, int frameCount,
+               int singleFrameSize) {
+        mSequenceNumber = sequenceNumber;
+        if (singleFrameSize < MIN_SINGLE_FRAME_SIZE) {
+            mCount = 0;
+            return;
+        }
+        ensureCapacity(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            int pos = offset + i * singleFrameSize;
+            mCoordinates[i * 4] = readShort(data, pos);
+            mCoordinates[i * 4 + 1] = readShort(data, pos + 2);
+            mCoordinates[i * 4 + 2] = readShort(data, pos + 4);
+            mCoordinates[i * 4 + 3] = readShort(data, pos + 6);
+            mCategories[i] = data[pos + 8];
+            mStatuses[i] = data[pos + 9];
+            mAdditionalStatuses[i] = data[pos + 10];
+        }
+        mCount = frameCount;
+    }
+
+    private void ensureCapacity(int count) {
+        if (count <= mCategories.length) {
+            return;
+        }
+        int capacity = Math.max(count, mCategories.length * 2);
+        int[] coordinates = new int[capacity * 4];
+        System.arraycopy(mCoordinates, 0, coordinates, 0, mCount * 4);
+        mCoordinates = coordinates;
+        mCategories = grow(mCategories, capacity, mCount);
+        mStatuses = grow(mStatuses, capacity, mCount);
+        mAdditionalStatuses = grow(mAdditionalStatuses, capacity, mCount);
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || mCount <= index) {
+            throw new IndexOutOfBoundsException("index: " + index + ", count: " + mCount);
+        }
+        return index;
+    }
+
+    private static byte[] grow(byte[] array, int capacity, int count) {
+        byte[] ret = new byte[capacity];
+        System.arraycopy(array, 0, ret, 0, count);
+        return ret;
+    }
+
+    private static int readShort(byte[] data, int pos) {
+        return ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+    }
+}
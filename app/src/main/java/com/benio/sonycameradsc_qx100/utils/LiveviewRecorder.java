@@ -0,0 +1,394 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A recorder which appends the raw byte stream of liveview or streaming data
+ * to a memory-mapped file, exactly as received from the server. A small index
+ * file is written next to it, holding the offset and the arrival time of each
+ * Packet.
+ * <p/>
+ * Bytes are copied into mapped segments of the file, so the recording thread
+ * never waits for disk writes. The next segment is mapped ahead by a
+ * background thread.
+ * <p/>
+ * Index file format (big endian): magic (8B), start time by
+ * System.currentTimeMillis() (8B), followed by entries of Packet offset in the
+ * data file (8B) and arrival time in nanoseconds since the start (8B).
+ */
+public final class LiveviewRecorder {
+
+    private static final String TAG = LiveviewRecorder.class.getSimpleName();
+
+    /**
+     * Suffix added to the data file name to make the index file name.
+     */
+    public static final String INDEX_SUFFIX = ".idx";
+
+    static final long INDEX_MAGIC = 0x4C56524958303031L; // "LVRIX001"
+
+    static final int INDEX_HEADER_LENGTH = 8 + 8;
+
+    static final int INDEX_ENTRY_LENGTH = 8 + 8;
+
+    private static final int DATA_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private static final int INDEX_SEGMENT_SIZE = 256 * 1024;
+
+    private static final int SKIP_BUFFER_SIZE = 8 * 1024;
+
+    private final File mDataFile;
+
+    private final int mDataSegmentSize;
+
+    private final int mIndexSegmentSize;
+
+    private ExecutorService mMapper;
+
+    private MappedAppender mData;
+
+    private MappedAppender mIndex;
+
+    private long mStartNanos;
+
+    private long mPacketCount;
+
+    private boolean mFailed;
+
+    /**
+     * Constructor
+     *
+     * @param dataFile file to record the byte stream. The index file is
+     *                 created at the same path with {@link #INDEX_SUFFIX}.
+     */
+    public LiveviewRecorder(File dataFile) {
+        this(dataFile, DATA_SEGMENT_SIZE, INDEX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Constructor with segment sizes.
+     *
+     * @param dataFile
+     * @param dataSegmentSize  size of mapped segments of the data file
+     * @param indexSegmentSize size of mapped segments of the index file, a
+     *                         multiple of 8
+     */
+    LiveviewRecorder(File dataFile, int dataSegmentSize, int indexSegmentSize) {
+        if (dataSegmentSize <= 0 || indexSegmentSize <= 0 || indexSegmentSize % 8 != 0) {
+            throw new IllegalArgumentException("Invalid segment size.");
+        }
+        mDataFile = dataFile;
+        mDataSegmentSize = dataSegmentSize;
+        mIndexSegmentSize = indexSegmentSize;
+    }
+
+    /**
+     * Returns the index file paired with the indicated data file.
+     *
+     * @param dataFile
+     * @return index file
+     */
+    public static File getIndexFile(File dataFile) {
+        return new File(dataFile.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Creates or truncates the data and index files and maps their first
+     * segments.
+     *
+     * @throws IOException generic errors or exception.
+     */
+    public void open() throws IOException {
+        if (mData != null) {
+            throw new IllegalStateException("Recorder is already open.");
+        }
+        mMapper = Executors.newSingleThreadExecutor();
+        try {
+            mData = new MappedAppender(mDataFile, mDataSegmentSize, mMapper);
+            mIndex = new MappedAppender(getIndexFile(mDataFile), mIndexSegmentSize, null);
+            mIndex.putLong(INDEX_MAGIC);
+            mIndex.putLong(System.currentTimeMillis());
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        mStartNanos = System.nanoTime();
+        mPacketCount = 0;
+        mFailed = false;
+    }
+
+    /**
+     * Appends bytes to the data file.
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        mData.put(buffer, offset, length);
+    }
+
+    /**
+     * Adds an index entry for the Packet being read now. Like recording of
+     * data, an error is logged and stops the recording, but is not thrown.
+     *
+     * @param bytesAlreadyWritten number of bytes of the Packet already
+     *                            written to the data file.
+     */
+    public void markPacket(int bytesAlreadyWritten) {
+        if (mFailed) {
+            return;
+        }
+        try {
+            mIndex.putLong(mData.position() - bytesAlreadyWritten);
+            mIndex.putLong(System.nanoTime() - mStartNanos);
+            mPacketCount++;
+        } catch (IOException e) {
+            Log.w(TAG, "Recording stopped by IOException: " + e.getMessage());
+            mFailed = true;
+        }
+    }
+
+    /**
+     * Returns the number of bytes written to the data file.
+     *
+     * @return
+     */
+    public long getWrittenBytes() {
+        return mData != null ? mData.position() : 0;
+    }
+
+    /**
+     * Returns the number of Packets in the index.
+     *
+     * @return
+     */
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * Returns a stream which records every byte read or skipped through it.
+     * A recording error is logged and stops the recording, but does not
+     * affect reading.
+     *
+     * @param in stream to be recorded
+     * @return recording stream
+     */
+    public InputStream tee(InputStream in) {
+        return new TeeInputStream(in);
+    }
+
+    /**
+     * Truncates the files to the recorded length and closes them.
+     */
+    public void close() {
+        try {
+            try {
+                if (mData != null) {
+                    mData.close();
+                }
+            } finally {
+                if (mIndex != null) {
+                    mIndex.close();
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Close() IOException: " + e.getMessage());
+        } finally {
+            mData = null;
+            mIndex = null;
+            if (mMapper != null) {
+                mMapper.shutdown();
+                mMapper = null;
+            }
+        }
+    }
+
+    private void record(byte[] buffer, int offset, int length) {
+        if (mFailed || length <= 0) {
+            return;
+        }
+        try {
+            write(buffer, offset, length);
+        } catch (IOException e) {
+            Log.w(TAG, "Recording stopped by IOException: " + e.getMessage());
+            mFailed = true;
+        }
+    }
+
+    /**
+     * An InputStream which copies everything read from it to the recorder.
+     */
+    private final class TeeInputStream extends FilterInputStream {
+
+        private final byte[] mOneByte = new byte[1];
+
+        private byte[] mSkipBuffer;
+
+        TeeInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (0 <= b) {
+                mOneByte[0] = (byte) b;
+                record(mOneByte, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int readlen = in.read(b, off, len);
+            record(b, off, readlen);
+            return readlen;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (mFailed) {
+                return in.skip(n);
+            }
+            // Skipped bytes have to be recorded as well.
+            if (mSkipBuffer == null) {
+                mSkipBuffer = new byte[SKIP_BUFFER_SIZE];
+            }
+            int readlen = read(mSkipBuffer, 0, (int) Math.min(n, mSkipBuffer.length));
+            return Math.max(readlen, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Appends bytes to a file through mapped segments.
+     */
+    private static final class MappedAppender {
+
+        private final RandomAccessFile mFile;
+
+        private final FileChannel mChannel;
+
+        private final int mSegmentSize;
+
+        private final ExecutorService mMapper;
+
+        private MappedByteBuffer mSegment;
+
+        private long mSegmentBase;
+
+        private Future<MappedByteBuffer> mNextSegment;
+
+        MappedAppender(File file, int segmentSize, ExecutorService mapper) throws IOException {
+            mFile = new RandomAccessFile(file, "rw");
+            mFile.setLength(0);
+            mChannel = mFile.getChannel();
+            mSegmentSize = segmentSize;
+            mMapper = mapper;
+            mSegmentBase = 0;
+            mSegment = map(0);
+            prefetch();
+        }
+
+        long position() {
+            return mSegmentBase + mSegment.position();
+        }
+
+        void put(byte[] buffer, int offset, int length) throws IOException {
+            while (0 < length) {
+                if (!mSegment.hasRemaining()) {
+                    advance();
+                }
+                int count = Math.min(length, mSegment.remaining());
+                mSegment.put(buffer, offset, count);
+                offset += count;
+                length -= count;
+            }
+        }
+
+        void putLong(long value) throws IOException {
+            // Segment size is a multiple of 8, so a long never straddles.
+            if (mSegment.remaining() < 8) {
+                advance();
+            }
+            mSegment.putLong(value);
+        }
+
+        void close() throws IOException {
+            try {
+                long length = position();
+                if (mNextSegment != null) {
+                    awaitSegment(mNextSegment);
+                    mNextSegment = null;
+                }
+                mChannel.truncate(length);
+            } finally {
+                mFile.close();
+            }
+        }
+
+        private void advance() throws IOException {
+            mSegmentBase += mSegmentSize;
+            if (mNextSegment != null) {
+                mSegment = awaitSegment(mNextSegment);
+                mNextSegment = null;
+            } else {
+                mSegment = map(mSegmentBase);
+            }
+            prefetch();
+        }
+
+        private void prefetch() {
+            if (mMapper == null) {
+                return;
+            }
+            final long base = mSegmentBase + mSegmentSize;
+            mNextSegment = mMapper.submit(new Callable<MappedByteBuffer>() {
+                @Override
+                public MappedByteBuffer call() throws IOException {
+                    return map(base);
+                }
+            });
+        }
+
+        private MappedByteBuffer map(long base) throws IOException {
+            return mChannel.map(FileChannel.MapMode.READ_WRITE, base, mSegmentSize);
+        }
+
+        private static MappedByteBuffer awaitSegment(Future<MappedByteBuffer> future)
+                throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while mapping a segment.");
+            } catch (ExecutionException e) {
+                throw new IOException("Cannot map a segment: " + e.getCause());
+            }
+        }
+    }
+}
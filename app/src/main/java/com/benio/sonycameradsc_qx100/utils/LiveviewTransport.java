@@ -0,0 +1,30 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A connection used by {@link SimpleLiveviewSlicer} to obtain the byte stream
+ * of liveview or streaming data.
+ */
+public interface LiveviewTransport {
+
+    /**
+     * Opens the indicated url and returns the stream of Packet data.
+     *
+     * @param url Liveview or streaming data url.
+     * @return stream of Packet data
+     * @throws IOException generic errors or exception.
+     */
+    InputStream open(String url) throws IOException;
+
+    /**
+     * Closes the connection. This method must be safe to be called even if
+     * the connection is not open.
+     */
+    void close();
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link FrameSink} computing a luminance histogram and highlight and
+ * shadow clipping of liveview frames, to check exposure without taking
+ * pictures. Frames are decoded at a small size, at most once per update
+ * interval, so this is meant to be added with {@link FrameSink.Policy#DROP}.
+ * Work arrays are preallocated, and results are published without locking.
+ */
+public final class LuminanceAnalyzer implements FrameSink {
+
+    /**
+     * Luminance at or above which a pixel is counted as clipped highlight.
+     */
+    public static final int HIGHLIGHT_THRESHOLD = 250;
+
+    /**
+     * Luminance at or below which a pixel is counted as clipped shadow.
+     */
+    public static final int SHADOW_THRESHOLD = 5;
+
+    private static final int ANALYSIS_WIDTH = 160;
+
+    /**
+     * A luminance histogram of a frame.
+     */
+    public static final class Histogram {
+
+        /**
+         * Number of pixels for each luminance from 0 to 255.
+         */
+        public final int[] bins = new int[256];
+
+        private int mPixelCount;
+
+        private long mTimestamp;
+
+        /**
+         * Returns the number of pixels analyzed.
+         *
+         * @return
+         */
+        public int getPixelCount() {
+            return mPixelCount;
+        }
+
+        /**
+         * Returns the time stamp of the analyzed Payload.
+         *
+         * @return
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * Returns the percentage of pixels clipped in highlights.
+         *
+         * @return
+         */
+        public float getHighlightClipping() {
+            return percentage(HIGHLIGHT_THRESHOLD, 255);
+        }
+
+        /**
+         * Returns the percentage of pixels clipped in shadows.
+         *
+         * @return
+         */
+        public float getShadowClipping() {
+            return percentage(0, SHADOW_THRESHOLD);
+        }
+
+        private float percentage(int from, int to) {
+            if (mPixelCount == 0) {
+                return 0;
+            }
+            int count = 0;
+            for (int i = from; i <= to; i++) {
+                count += bins[i];
+            }
+            return count * 100f / mPixelCount;
+        }
+    }
+
+    private final long mIntervalMillis;
+
+    // Accessed only on the thread calling onFrame().
+    private final DownsampledDecoder mDecoder = new DownsampledDecoder(ANALYSIS_WIDTH);
+
+    private long mLastAnalysisUptime = -1;
+
+    private Histogram mWritingHistogram;
+
+    // Handoff of results from the analyzing thread to the reading thread.
+    private final FrameExchanger<Histogram> mPublished = new FrameExchanger<Histogram>();
+
+    private final AtomicReference<Histogram> mFreeHistogram = new AtomicReference<Histogram>();
+
+    // Accessed only on the thread calling acquireLatest().
+    private Histogram mReadingHistogram;
+
+    /**
+     * Constructor
+     *
+     * @param intervalMillis minimum interval of analysis in milliseconds
+     */
+    public LuminanceAnalyzer(long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("intervalMillis must not be negative.");
+        }
+        mIntervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void onFrame(SimpleLiveviewSlicer.Payload payload) {
+        long now = SystemClock.uptimeMillis();
+        if (0 <= mLastAnalysisUptime && now - mLastAnalysisUptime < mIntervalMillis) {
+            return;
+        }
+        mLastAnalysisUptime = now;
+
+        if (!mDecoder.decode(payload)) {
+            // Broken JPEG data.
+            return;
+        }
+        int pixelCount = mDecoder.getWidth() * mDecoder.getHeight();
+
+        Histogram histogram = mWritingHistogram;
+        if (histogram == null) {
+            histogram = mFreeHistogram.getAndSet(null);
+            if (histogram == null) {
+                histogram = new Histogram();
+            }
+        }
+        computeHistogram(mDecoder.getPixels(), pixelCount, histogram.bins);
+        histogram.mPixelCount = pixelCount;
+        histogram.mTimestamp = payload.timestamp;
+
+        // An unread result is replaced, and written over next time.
+        mWritingHistogram = mPublished.offer(histogram);
+    }
+
+    /**
+     * Returns the newest result. The result returned by the previous call
+     * may be written over after this call, so this must be called on a
+     * single thread.
+     *
+     * @return histogram, or null if no frame is analyzed yet.
+     */
+    public Histogram acquireLatest() {
+        Histogram latest = mPublished.poll();
+        if (latest != null) {
+            if (mReadingHistogram != null) {
+                mFreeHistogram.set(mReadingHistogram);
+            }
+            mReadingHistogram = latest;
+        }
+        return mReadingHistogram;
+    }
+
+    /**
+     * Counts the Rec. 601 luminance of ARGB pixels.
+     *
+     * @param pixels
+     * @param count  number of pixels
+     * @param bins   array of 256 counts to be overwritten
+     */
+    static void computeHistogram(int[] pixels, int count, int[] bins) {
+        Arrays.fill(bins, 0);
+        for (int i = 0; i < count; i++) {
+            int pixel = pixels[i];
+            int luminance = (77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff)
+                    + 29 * (pixel & 0xff)) >> 8;
+            bins[luminance]++;
+        }
+    }
+}
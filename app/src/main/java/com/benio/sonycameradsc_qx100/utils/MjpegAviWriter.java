@@ -0,0 +1,301 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes JPEG frames as they are into a Motion JPEG AVI file, for
+ * timelapses of liveview. Frames are streamed to the file through a
+ * FileChannel, and the index is kept in a preallocated buffer until the
+ * file is closed, when it is appended and the headers are completed. The
+ * frame size in the headers is read from the first frame, and frames are
+ * never decoded.
+ */
+public final class MjpegAviWriter implements Closeable {
+
+    /**
+     * Largest size of a file, for players reading only AVI 1.0 files.
+     */
+    static final long MAX_FILE_SIZE = 1L << 30;
+
+    static final int HEADER_LENGTH = 224;
+
+    // Offsets in the headers, patched when the file is closed.
+    private static final int RIFF_SIZE_OFFSET = 4;
+
+    private static final int HDRL_LIST_TYPE_OFFSET = 20;
+
+    private static final int AVIH_OFFSET = 24;
+
+    private static final int STRL_LIST_TYPE_OFFSET = 96;
+
+    private static final int STRH_OFFSET = 100;
+
+    private static final int STRF_OFFSET = 164;
+
+    private static final int MOVI_LIST_OFFSET = 212;
+
+    private static final int MOVI_SIZE_OFFSET = 216;
+
+    private static final int MOVI_LIST_TYPE_OFFSET = 220;
+
+    private static final int INDEX_ENTRY_LENGTH = 16;
+
+    private static final int AVIF_HASINDEX = 0x10;
+
+    private static final int AVIIF_KEYFRAME = 0x10;
+
+    private final RandomAccessFile mFile;
+
+    private final FileChannel mChannel;
+
+    private final int mFrameRate;
+
+    private final ByteBuffer mChunkHeader =
+            ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+    private final ByteBuffer mPadding = ByteBuffer.allocate(1);
+
+    private final ByteBuffer[] mChunk = new ByteBuffer[3];
+
+    private final int[] mFrameSize = new int[2];
+
+    private ByteBuffer mIndex;
+
+    private long mPosition = HEADER_LENGTH;
+
+    private int mFrameCount;
+
+    private int mMaxFrameLength;
+
+    private int mWidth;
+
+    private int mHeight;
+
+    private boolean mClosed;
+
+    /**
+     * Constructor. The file is created or truncated.
+     *
+     * @param file
+     * @param frameRate      frames per second when played
+     * @param expectedFrames number of frames the index is allocated for. It
+     *                       grows when more frames are written.
+     * @throws IOException
+     */
+    public MjpegAviWriter(File file, int frameRate, int expectedFrames) throws IOException {
+        if (frameRate < 1) {
+            throw new IllegalArgumentException("frameRate must be positive.");
+        }
+        mFrameRate = frameRate;
+        mIndex = ByteBuffer.allocate(Math.max(1, expectedFrames) * INDEX_ENTRY_LENGTH)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            mFile.setLength(0);
+            mChannel = mFile.getChannel();
+            writeFully(buildHeader(), 0);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends a JPEG frame.
+     *
+     * @param data   container of JPEG data
+     * @param offset offset of JPEG data
+     * @param length length of JPEG data
+     * @return false if the file has reached its maximum size, in which case
+     * the frame is not written.
+     * @throws IOException
+     */
+    public boolean writeFrame(byte[] data, int offset, int length) throws IOException {
+        if (mClosed) {
+            throw new IOException("Writer is closed.");
+        }
+        int padding = length & 1;
+        long chunkLength = 8 + length + padding;
+        long indexLength = (mFrameCount + 1L) * INDEX_ENTRY_LENGTH;
+        if (MAX_FILE_SIZE < mPosition + chunkLength + 8 + indexLength) {
+            return false;
+        }
+        if (mFrameCount == 0 && JpegHeaderReader.readSize(data, offset, length, mFrameSize)) {
+            mWidth = mFrameSize[0];
+            mHeight = mFrameSize[1];
+        }
+
+        mChunkHeader.clear();
+        mChunkHeader.put((byte) '0').put((byte) '0').put((byte) 'd').put((byte) 'c');
+        mChunkHeader.putInt(length);
+        mChunkHeader.flip();
+        mChunk[0] = mChunkHeader;
+        mChunk[1] = ByteBuffer.wrap(data, offset, length);
+        mPadding.clear();
+        mPadding.limit(padding);
+        mChunk[2] = mPadding;
+        mChannel.position(mPosition);
+        long remaining = chunkLength;
+        while (0 < remaining) {
+            remaining -= mChannel.write(mChunk);
+        }
+        mChunk[1] = null;
+
+        if (mIndex.remaining() < INDEX_ENTRY_LENGTH) {
+            ByteBuffer index = ByteBuffer.allocate(mIndex.capacity() * 2)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            mIndex.flip();
+            index.put(mIndex);
+            mIndex = index;
+        }
+        mIndex.put((byte) '0').put((byte) '0').put((byte) 'd').put((byte) 'c');
+        mIndex.putInt(AVIIF_KEYFRAME);
+        // Offsets are relative to the list type of the movi list.
+        mIndex.putInt((int) (mPosition - MOVI_LIST_TYPE_OFFSET));
+        mIndex.putInt(length);
+
+        mPosition += chunkLength;
+        mFrameCount++;
+        mMaxFrameLength = Math.max(mMaxFrameLength, length);
+        return true;
+    }
+
+    /**
+     * Returns the number of frames written.
+     *
+     * @return
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Appends the index, completes the headers and closes the file.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mIndex.flip();
+            ByteBuffer indexHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            indexHeader.put((byte) 'i').put((byte) 'd').put((byte) 'x').put((byte) '1');
+            indexHeader.putInt(mIndex.remaining());
+            indexHeader.flip();
+            writeFully(indexHeader, mPosition);
+            writeFully(mIndex, mPosition + 8);
+            long fileLength = mPosition + 8 + mFrameCount * INDEX_ENTRY_LENGTH;
+
+            ByteBuffer header = buildHeader();
+            header.putInt(RIFF_SIZE_OFFSET, (int) (fileLength - 8));
+            header.putInt(MOVI_SIZE_OFFSET, (int) (mPosition - MOVI_LIST_TYPE_OFFSET));
+            writeFully(header, 0);
+            mChannel.truncate(fileLength);
+            mChannel.force(false);
+        } finally {
+            mFile.close();
+        }
+    }
+
+    /**
+     * Builds the headers up to the list type of the movi list, for the
+     * current frame count and size.
+     *
+     * @return
+     */
+    private ByteBuffer buildHeader() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        putFourCc(header, "RIFF");
+        header.putInt(0); // patched by close()
+        putFourCc(header, "AVI ");
+        putFourCc(header, "LIST");
+        header.putInt(MOVI_LIST_OFFSET - HDRL_LIST_TYPE_OFFSET);
+        putFourCc(header, "hdrl");
+
+        // Main AVI header
+        assert header.position() == AVIH_OFFSET;
+        putFourCc(header, "avih");
+        header.putInt(56);
+        header.putInt(1000000 / mFrameRate); // dwMicroSecPerFrame
+        header.putInt(mMaxFrameLength * mFrameRate); // dwMaxBytesPerSec
+        header.putInt(0); // dwPaddingGranularity
+        header.putInt(AVIF_HASINDEX); // dwFlags
+        header.putInt(mFrameCount); // dwTotalFrames
+        header.putInt(0); // dwInitialFrames
+        header.putInt(1); // dwStreams
+        header.putInt(mMaxFrameLength); // dwSuggestedBufferSize
+        header.putInt(mWidth);
+        header.putInt(mHeight);
+        header.putInt(0).putInt(0).putInt(0).putInt(0); // dwReserved
+
+        putFourCc(header, "LIST");
+        header.putInt(MOVI_LIST_OFFSET - STRL_LIST_TYPE_OFFSET);
+        putFourCc(header, "strl");
+
+        // Stream header
+        assert header.position() == STRH_OFFSET;
+        putFourCc(header, "strh");
+        header.putInt(56);
+        putFourCc(header, "vids");
+        putFourCc(header, "MJPG");
+        header.putInt(0); // dwFlags
+        header.putShort((short) 0); // wPriority
+        header.putShort((short) 0); // wLanguage
+        header.putInt(0); // dwInitialFrames
+        header.putInt(1); // dwScale
+        header.putInt(mFrameRate); // dwRate
+        header.putInt(0); // dwStart
+        header.putInt(mFrameCount); // dwLength
+        header.putInt(mMaxFrameLength); // dwSuggestedBufferSize
+        header.putInt(-1); // dwQuality
+        header.putInt(0); // dwSampleSize
+        header.putShort((short) 0).putShort((short) 0); // rcFrame
+        header.putShort((short) mWidth).putShort((short) mHeight);
+
+        // Stream format
+        assert header.position() == STRF_OFFSET;
+        putFourCc(header, "strf");
+        header.putInt(40);
+        header.putInt(40); // biSize
+        header.putInt(mWidth);
+        header.putInt(mHeight);
+        header.putShort((short) 1); // biPlanes
+        header.putShort((short) 24); // biBitCount
+        putFourCc(header, "MJPG"); // biCompression
+        header.putInt(mWidth * mHeight * 3); // biSizeImage
+        header.putInt(0).putInt(0).putInt(0).putInt(0);
+
+        assert header.position() == MOVI_LIST_OFFSET;
+        putFourCc(header, "LIST");
+        header.putInt(4); // patched by close()
+        putFourCc(header, "movi");
+        header.flip();
+        return header;
+    }
+
+    private static void putFourCc(ByteBuffer buffer, String fourCc) {
+        for (int i = 0; i < 4; i++) {
+            buffer.put((byte) fourCc.charAt(i));
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+}
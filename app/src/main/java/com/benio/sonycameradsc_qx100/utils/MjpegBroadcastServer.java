@@ -0,0 +1,528 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link FrameSink} serving liveview to local HTTP clients as a
+ * multipart/x-mixed-replace stream of JPEG images, so that several browsers
+ * or players can watch the one liveview connection of the camera. Every
+ * client has a bounded queue of Payloads of its own and a thread writing
+ * them out. Payloads are shared with the queues by reference counting, and
+ * JPEG data is written to the sockets from the containers in place. A full
+ * queue drops frames by its policy, so a slow client never delays the
+ * stream or other clients. This is meant to be added with
+ * {@link FrameSink.Policy#DIRECT}.
+ * <p/>
+ * A client can choose its queue by the query of the url, for example
+ * "http://host:port/?queue=4&drop=newest". Connections over the maximum
+ * number of clients are closed as soon as they are accepted.
+ */
+public final class MjpegBroadcastServer implements FrameSink {
+
+    private static final String TAG = MjpegBroadcastServer.class.getSimpleName();
+
+    private static final String BOUNDARY = "liveviewframe";
+
+    private static final int MAX_CLIENTS = 8;
+
+    private static final int MAX_QUEUE_CAPACITY = 32;
+
+    private static final int MAX_REQUEST_LINES = 64;
+
+    private static final int REQUEST_TIMEOUT = 5000; // [msec]
+
+    // Small enough for JPEG data to bypass it, large enough for headers.
+    private static final int WRITE_BUFFER_SIZE = 512;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Which frame a full queue drops.
+     */
+    public enum DropPolicy {
+        /**
+         * Drop the oldest queued frame, so that clients see the latest
+         * image.
+         */
+        OLDEST,
+        /**
+         * Drop the arriving frame, so that queued frames are all sent.
+         */
+        NEWEST
+    }
+
+    private final int mQueueCapacity;
+
+    private final DropPolicy mDropPolicy;
+
+    private final Object mLock = new Object();
+
+    // Replaced on every change, so the fetch thread iterates without locking.
+    private volatile Client[] mClients = new Client[0];
+
+    private final AtomicLong mDroppedFrameCount = new AtomicLong();
+
+    // Connections with a thread, including ones still sending the request.
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+
+    private ServerSocket mServerSocket;
+
+    private Thread mAcceptThread;
+
+    /**
+     * Constructor
+     *
+     * @param queueCapacity default number of frames queued for a client
+     * @param dropPolicy    default policy of a full queue
+     */
+    public MjpegBroadcastServer(int queueCapacity, DropPolicy dropPolicy) {
+        if (queueCapacity < 1 || MAX_QUEUE_CAPACITY < queueCapacity) {
+            throw new IllegalArgumentException("queueCapacity is out of range.");
+        }
+        mQueueCapacity = queueCapacity;
+        mDropPolicy = dropPolicy;
+    }
+
+    /**
+     * Starts accepting clients on the indicated port of all local addresses.
+     *
+     * @param port port number, or 0 for any free port
+     * @throws IOException
+     */
+    public void start(int port) throws IOException {
+        start(null, port);
+    }
+
+    /**
+     * Starts accepting clients on the indicated port of a local address, for
+     * example only of the network interface connected to the viewers.
+     *
+     * @param bindAddress local address, or null for all local addresses
+     * @param port        port number, or 0 for any free port
+     * @throws IOException
+     */
+    public void start(InetAddress bindAddress, int port) throws IOException {
+        synchronized (mLock) {
+            if (mServerSocket != null) {
+                throw new IllegalStateException("Server is already started.");
+            }
+            final ServerSocket serverSocket = new ServerSocket(port, 0, bindAddress);
+            mServerSocket = serverSocket;
+            mAcceptThread = new Thread("MjpegBroadcast-accept") {
+                @Override
+                public void run() {
+                    Log.d(TAG, "Accepting clients on port " + serverSocket.getLocalPort());
+                    while (!serverSocket.isClosed()) {
+                        Socket socket;
+                        try {
+                            socket = serverSocket.accept();
+                        } catch (IOException e) {
+                            // Closed by stop().
+                            break;
+                        }
+                        // Only this thread adds connections, so the count
+                        // cannot exceed the maximum.
+                        if (MAX_CLIENTS <= mConnectionCount.get()) {
+                            Log.w(TAG, "Refused " + socket.getInetAddress().getHostAddress()
+                                    + ": too many clients.");
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                Log.w(TAG, "Failed to close refused socket.");
+                            }
+                            continue;
+                        }
+                        mConnectionCount.incrementAndGet();
+                        Client client = new Client(socket);
+                        new Thread(client, client.mName).start();
+                    }
+                }
+            };
+            mAcceptThread.start();
+        }
+    }
+
+    /**
+     * Stops accepting clients, and disconnects all clients.
+     */
+    public void stop() {
+        Client[] clients;
+        synchronized (mLock) {
+            if (mServerSocket == null) {
+                return;
+            }
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close server socket.");
+            }
+            mServerSocket = null;
+            mAcceptThread = null;
+            clients = mClients;
+            mClients = new Client[0];
+        }
+        for (Client client : clients) {
+            client.close();
+        }
+    }
+
+    /**
+     * Returns the port accepting clients.
+     *
+     * @return port number, or -1 if not started.
+     */
+    public int getPort() {
+        synchronized (mLock) {
+            return mServerSocket != null ? mServerSocket.getLocalPort() : -1;
+        }
+    }
+
+    /**
+     * Returns the number of clients receiving frames.
+     *
+     * @return
+     */
+    public int getClientCount() {
+        return mClients.length;
+    }
+
+    /**
+     * Returns the number of frames dropped by full queues of all clients.
+     *
+     * @return
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount.get();
+    }
+
+    @Override
+    public void onFrame(SimpleLiveviewSlicer.Payload payload) {
+        Client[] clients = mClients;
+        for (int i = 0; i < clients.length; i++) {
+            clients[i].offer(payload);
+        }
+    }
+
+    private boolean addClient(Client client) {
+        synchronized (mLock) {
+            Client[] clients = mClients;
+            if (mServerSocket == null) {
+                return false;
+            }
+            Client[] newClients = new Client[clients.length + 1];
+            System.arraycopy(clients, 0, newClients, 0, clients.length);
+            newClients[clients.length] = client;
+            mClients = newClients;
+            return true;
+        }
+    }
+
+    private void removeClient(Client client) {
+        synchronized (mLock) {
+            Client[] clients = mClients;
+            for (int i = 0; i < clients.length; i++) {
+                if (clients[i] == client) {
+                    Client[] newClients = new Client[clients.length - 1];
+                    System.arraycopy(clients, 0, newClients, 0, i);
+                    System.arraycopy(clients, i + 1, newClients, i, clients.length - i - 1);
+                    mClients = newClients;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * A bounded queue of Payloads, which drops a frame by its policy when it
+     * is full. Queued Payloads are retained, and released when taken out and
+     * sent, dropped, or cleared.
+     */
+    static final class FrameQueue {
+
+        private final SimpleLiveviewSlicer.Payload[] mPayloads;
+
+        private final DropPolicy mPolicy;
+
+        private int mHead;
+
+        private int mCount;
+
+        private boolean mClosed;
+
+        /**
+         * Constructor
+         *
+         * @param capacity
+         * @param policy
+         */
+        FrameQueue(int capacity, DropPolicy policy) {
+            mPayloads = new SimpleLiveviewSlicer.Payload[capacity];
+            mPolicy = policy;
+        }
+
+        /**
+         * Queues a Payload, dropping a frame if the queue is full. Payloads
+         * offered after close() are ignored.
+         *
+         * @param payload
+         * @return false if a frame is dropped.
+         */
+        synchronized boolean offer(SimpleLiveviewSlicer.Payload payload) {
+            if (mClosed) {
+                return true;
+            }
+            boolean dropped = false;
+            if (mCount == mPayloads.length) {
+                dropped = true;
+                if (mPolicy == DropPolicy.NEWEST) {
+                    return false;
+                }
+                mPayloads[mHead].release();
+                mPayloads[mHead] = null;
+                mHead = (mHead + 1) % mPayloads.length;
+                mCount--;
+            }
+            payload.retain();
+            mPayloads[(mHead + mCount) % mPayloads.length] = payload;
+            mCount++;
+            notifyAll();
+            return !dropped;
+        }
+
+        /**
+         * Takes the oldest queued Payload, waiting for one if needed. The
+         * caller releases it.
+         *
+         * @return Payload, or null if the queue is closed.
+         * @throws InterruptedException
+         */
+        synchronized SimpleLiveviewSlicer.Payload take() throws InterruptedException {
+            while (mCount == 0 && !mClosed) {
+                wait();
+            }
+            if (mClosed) {
+                return null;
+            }
+            SimpleLiveviewSlicer.Payload payload = mPayloads[mHead];
+            mPayloads[mHead] = null;
+            mHead = (mHead + 1) % mPayloads.length;
+            mCount--;
+            return payload;
+        }
+
+        /**
+         * Returns the number of queued Payloads.
+         *
+         * @return
+         */
+        synchronized int size() {
+            return mCount;
+        }
+
+        /**
+         * Releases queued Payloads, and makes take() return null.
+         */
+        synchronized void close() {
+            mClosed = true;
+            for (int i = 0; i < mCount; i++) {
+                int index = (mHead + i) % mPayloads.length;
+                mPayloads[index].release();
+                mPayloads[index] = null;
+            }
+            mCount = 0;
+            notifyAll();
+        }
+    }
+
+    /**
+     * A connected client, with its queue and writing thread.
+     */
+    private final class Client implements Runnable {
+
+        final String mName;
+
+        private final Socket mSocket;
+
+        // Set before the client is added, and published by mClients.
+        private FrameQueue mQueue;
+
+        Client(Socket socket) {
+            mName = "MjpegBroadcast-" + socket.getInetAddress().getHostAddress();
+            mSocket = socket;
+        }
+
+        /**
+         * Queues a Payload, counting a dropped frame if the queue is full.
+         *
+         * @param payload
+         */
+        void offer(SimpleLiveviewSlicer.Payload payload) {
+            if (!mQueue.offer(payload)) {
+                mDroppedFrameCount.incrementAndGet();
+            }
+        }
+
+        /**
+         * Disconnects the client. The writing thread ends soon after.
+         */
+        void close() {
+            FrameQueue queue = mQueue;
+            if (queue != null) {
+                queue.close();
+            }
+            try {
+                // Unblocks a write to a stalled client.
+                mSocket.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close client socket.");
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean added = false;
+            try {
+                mSocket.setSoTimeout(REQUEST_TIMEOUT);
+                mSocket.setTcpNoDelay(true);
+                OutputStream out = new BufferedOutputStream(mSocket.getOutputStream(),
+                        WRITE_BUFFER_SIZE);
+                int status = readRequest();
+                if (status == 200) {
+                    added = addClient(this);
+                    if (!added) {
+                        status = 503;
+                    }
+                }
+                if (status != 200) {
+                    writeText(out, String.format(Locale.US,
+                            "HTTP/1.0 %d %s\r\nConnection: close\r\n\r\n", status,
+                            getReasonPhrase(status)));
+                    out.flush();
+                    return;
+                }
+                Log.d(TAG, mName + " connected.");
+                writeText(out, "HTTP/1.0 200 OK\r\n"
+                        + "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n"
+                        + "Cache-Control: no-cache\r\n"
+                        + "Pragma: no-cache\r\n"
+                        + "Connection: close\r\n\r\n");
+                out.flush();
+
+                SimpleLiveviewSlicer.Payload payload;
+                while ((payload = mQueue.take()) != null) {
+                    try {
+                        for (int i = 0; i < payload.frameCount; i++) {
+                            int length = payload.getFrameLength(i);
+                            writeText(out, "--" + BOUNDARY + "\r\n"
+                                    + "Content-Type: image/jpeg\r\n"
+                                    + "Content-Length: " + length + "\r\n\r\n");
+                            // Written from the container, without copying
+                            // into the buffer.
+                            out.write(payload.jpegData, payload.getFrameOffset(i), length);
+                            writeText(out, "\r\n");
+                            out.flush();
+                        }
+                    } finally {
+                        payload.release();
+                    }
+                }
+            } catch (IOException e) {
+                Log.d(TAG, mName + " disconnected: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Log.d(TAG, mName + " interrupted.");
+            } finally {
+                if (added) {
+                    removeClient(this);
+                }
+                close();
+                mConnectionCount.decrementAndGet();
+            }
+        }
+
+        /**
+         * Reads the request, and sets up the queue by its query.
+         *
+         * @return HTTP status code of the response
+         * @throws IOException
+         */
+        private int readRequest() throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    mSocket.getInputStream(), ASCII));
+            String requestLine = in.readLine();
+            if (requestLine == null) {
+                throw new IOException("No request.");
+            }
+            // Headers are not used.
+            int lines = 0;
+            String line;
+            while ((line = in.readLine()) != null && line.length() != 0) {
+                if (MAX_REQUEST_LINES < ++lines) {
+                    return 400;
+                }
+            }
+
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2) {
+                return 400;
+            }
+            if (!"GET".equals(parts[0])) {
+                return 405;
+            }
+            int capacity = mQueueCapacity;
+            DropPolicy policy = mDropPolicy;
+            int queryStart = parts[1].indexOf('?');
+            if (0 <= queryStart) {
+                for (String parameter : parts[1].substring(queryStart + 1).split("&")) {
+                    if (parameter.startsWith("queue=")) {
+                        try {
+                            capacity = Integer.parseInt(parameter.substring(6));
+                        } catch (NumberFormatException e) {
+                            return 400;
+                        }
+                        if (capacity < 1 || MAX_QUEUE_CAPACITY < capacity) {
+                            return 400;
+                        }
+                    } else if ("drop=oldest".equals(parameter)) {
+                        policy = DropPolicy.OLDEST;
+                    } else if ("drop=newest".equals(parameter)) {
+                        policy = DropPolicy.NEWEST;
+                    }
+                }
+            }
+            mQueue = new FrameQueue(capacity, policy);
+            return 200;
+        }
+
+        private String getReasonPhrase(int status) {
+            switch (status) {
+                case 400:
+                    return "Bad Request";
+                case 405:
+                    return "Method Not Allowed";
+                default:
+                    return "Service Unavailable";
+            }
+        }
+
+        private void writeText(OutputStream out, String text) throws IOException {
+            out.write(text.getBytes(ASCII));
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A {@link FrameSink} detecting motion in liveview frames. Each frame is
+ * decoded at a small size and reduced to the mean luminance of 8x8 pixel
+ * blocks, which is compared with the previous frame. When enough blocks
+ * changed, the listener is called, for example to take a picture. A change
+ * of the overall brightness is not counted as motion. This is meant to be
+ * added with {@link FrameSink.Policy#DROP}, so that the analysis runs on a
+ * thread of its own and never delays the stream.
+ */
+public final class MotionDetector implements FrameSink {
+
+    private static final String TAG = MotionDetector.class.getSimpleName();
+
+    private static final int ANALYSIS_WIDTH = 160;
+
+    private static final int BLOCK_SIZE = 8;
+
+    /**
+     * The listener of motion.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the thread of the sink when motion is detected.
+         *
+         * @param changedArea fraction of blocks which changed
+         */
+        void onMotionDetected(float changedArea);
+    }
+
+    private final Listener mListener;
+
+    private volatile int mLuminanceThreshold = 24;
+
+    private volatile float mAreaThreshold = 0.02f;
+
+    private volatile long mCooldownMillis = 5000;
+
+    private volatile float mChangedArea;
+
+    // Accessed only on the thread calling onFrame().
+    private final DownsampledDecoder mDecoder = new DownsampledDecoder(ANALYSIS_WIDTH);
+
+    private int[] mPreviousBlocks = new int[0];
+
+    private int[] mCurrentBlocks = new int[0];
+
+    private int mBlockCount;
+
+    private boolean mPreviousValid;
+
+    private long mLastTriggerUptime = -1;
+
+    /**
+     * Constructor
+     *
+     * @param listener
+     */
+    public MotionDetector(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Set how much change is motion.
+     *
+     * @param luminanceThreshold difference of mean luminance from 0 to 255
+     *                           for a block to be counted as changed
+     * @param areaThreshold      fraction of changed blocks to be motion
+     */
+    public void setThreshold(int luminanceThreshold, float areaThreshold) {
+        mLuminanceThreshold = luminanceThreshold;
+        mAreaThreshold = areaThreshold;
+    }
+
+    /**
+     * Set the time after a detection during which no motion is reported,
+     * leaving the camera time to take the picture.
+     *
+     * @param millis
+     */
+    public void setCooldown(long millis) {
+        mCooldownMillis = millis;
+    }
+
+    /**
+     * Returns the fraction of blocks which changed in the last analyzed
+     * frame, to tune the thresholds.
+     *
+     * @return
+     */
+    public float getChangedArea() {
+        return mChangedArea;
+    }
+
+    @Override
+    public void onFrame(SimpleLiveviewSlicer.Payload payload) {
+        if (!mDecoder.decode(payload)) {
+            // Broken JPEG data.
+            return;
+        }
+        int columns = mDecoder.getWidth() / BLOCK_SIZE;
+        int rows = mDecoder.getHeight() / BLOCK_SIZE;
+        int blockCount = columns * rows;
+        if (blockCount == 0) {
+            return;
+        }
+        if (blockCount != mBlockCount) {
+            // First frame, or the frame size changed.
+            mPreviousBlocks = new int[blockCount];
+            mCurrentBlocks = new int[blockCount];
+            mBlockCount = blockCount;
+            mPreviousValid = false;
+        }
+
+        computeBlockLuminance(mDecoder.getPixels(), mDecoder.getWidth(), columns, rows,
+                BLOCK_SIZE, mCurrentBlocks);
+        int changed = 0;
+        if (mPreviousValid) {
+            changed = countChangedBlocks(mPreviousBlocks, mCurrentBlocks, blockCount,
+                    mLuminanceThreshold);
+        }
+        int[] blocks = mPreviousBlocks;
+        mPreviousBlocks = mCurrentBlocks;
+        mCurrentBlocks = blocks;
+        mPreviousValid = true;
+
+        float changedArea = (float) changed / blockCount;
+        mChangedArea = changedArea;
+        if (changedArea < mAreaThreshold || changed == 0) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (0 <= mLastTriggerUptime && now - mLastTriggerUptime < mCooldownMillis) {
+            return;
+        }
+        mLastTriggerUptime = now;
+        Log.i(TAG, "Motion detected in " + (int) (changedArea * 100) + "% of the frame.");
+        mListener.onMotionDetected(changedArea);
+    }
+
+    /**
+     * Computes the mean luminance of each block of ARGB pixels. Pixels at
+     * the right and bottom edges not filling a block are ignored.
+     *
+     * @param pixels    pixels row by row
+     * @param width     width of the pixels
+     * @param columns   number of blocks in a row
+     * @param rows      number of blocks in a column
+     * @param blockSize width and height of a block
+     * @param blocks    array receiving the luminance of blocks row by row
+     */
+    static void computeBlockLuminance(int[] pixels, int width, int columns, int rows,
+                                      int blockSize, int[] blocks) {
+        int blockPixels = blockSize * blockSize;
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int sum = 0;
+                int lineStart = row * blockSize * width + column * blockSize;
+                for (int y = 0; y < blockSize; y++) {
+                    int end = lineStart + blockSize;
+                    for (int i = lineStart; i < end; i++) {
+                        int pixel = pixels[i];
+                        sum += 77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff)
+                                + 29 * (pixel & 0xff);
+                    }
+                    lineStart += width;
+                }
+                blocks[row * columns + column] = (sum >> 8) / blockPixels;
+            }
+        }
+    }
+
+    /**
+     * Counts blocks whose luminance changed more than the threshold, after
+     * removing the mean change of all blocks.
+     *
+     * @param previous
+     * @param current
+     * @param count     number of blocks
+     * @param threshold
+     * @return number of changed blocks
+     */
+    static int countChangedBlocks(int[] previous, int[] current, int count, int threshold) {
+        int sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += current[i] - previous[i];
+        }
+        int mean = sum / count;
+        int changed = 0;
+        for (int i = 0; i < count; i++) {
+            int difference = current[i] - previous[i] - mean;
+            if (threshold < difference || difference < -threshold) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A {@link FrameSink} keeping the JPEG data of recent liveview frames in a
+ * ring of off-heap storage, to save what happened just before a picture was
+ * taken. Frames are copied into the ring as they arrive, evicting the oldest
+ * ones, which allocates nothing. Frames being saved are never evicted, and
+ * arriving frames which would evict them are dropped instead until they are
+ * copied out. This is meant to be added with
+ * {@link FrameSink.Policy#DIRECT}, so that every frame is offered.
+ */
+public final class PreShotBuffer implements FrameSink {
+
+    private static final String TAG = PreShotBuffer.class.getSimpleName();
+
+    private final long mDurationMillis;
+
+    private final ByteBuffer mStorage;
+
+    // Entries of frames in order of arrival, oldest first from mFirst.
+    private final int[] mOffsets;
+
+    private final int[] mLengths;
+
+    private final long[] mUptimes;
+
+    private int mFirst;
+
+    // Sequence number of the frame at mFirst, counting all inserted frames.
+    private long mFirstSequence;
+
+    private int mCount;
+
+    private int mWritePosition;
+
+    // Frames of saves not copied out yet, which are not evicted.
+    private final List<SaveRange> mPendingSaves = new ArrayList<SaveRange>();
+
+    private int mDroppedFrameCount;
+
+    private ExecutorService mWriter;
+
+    /**
+     * Constructor
+     *
+     * @param durationMillis length of time to keep frames for
+     * @param capacityBytes  size of the storage. Older frames are evicted
+     *                       earlier when it is full.
+     * @param maxFrames      maximum number of frames kept
+     */
+    public PreShotBuffer(long durationMillis, int capacityBytes, int maxFrames) {
+        this(durationMillis, capacityBytes, maxFrames, null);
+    }
+
+    /**
+     * Constructor with the executor writing saved frames.
+     *
+     * @param durationMillis
+     * @param capacityBytes
+     * @param maxFrames
+     * @param writer         executor, or null to create one when needed
+     */
+    PreShotBuffer(long durationMillis, int capacityBytes, int maxFrames,
+                  ExecutorService writer) {
+        mDurationMillis = durationMillis;
+        mStorage = ByteBuffer.allocateDirect(capacityBytes);
+        mOffsets = new int[maxFrames];
+        mLengths = new int[maxFrames];
+        mUptimes = new long[maxFrames];
+        mWriter = writer;
+    }
+
+    @Override
+    public void onFrame(SimpleLiveviewSlicer.Payload payload) {
+        int frameIndex = payload.frameCount - 1;
+        insert(payload.jpegData, payload.getFrameOffset(frameIndex),
+                payload.getFrameLength(frameIndex), SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Copies a frame into the ring, evicting the oldest frames in its way.
+     * The frame is dropped if it would evict a frame being saved.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @param uptime arrival time of the frame
+     */
+    synchronized void insert(byte[] data, int offset, int length, long uptime) {
+        int capacity = mStorage.capacity();
+        if (capacity < length) {
+            return;
+        }
+        boolean wrap = capacity < mWritePosition + length;
+        int start = wrap ? 0 : mWritePosition;
+        long pinnedSequence = getPinnedSequence();
+        while (0 < mCount) {
+            int oldest = mOffsets[mFirst];
+            boolean inTail = wrap && mWritePosition <= oldest;
+            boolean overlapping = oldest < start + length && start < oldest + mLengths[mFirst];
+            if (!inTail && !overlapping && mCount < mOffsets.length) {
+                break;
+            }
+            if (pinnedSequence <= mFirstSequence) {
+                mDroppedFrameCount++;
+                return;
+            }
+            mFirst = (mFirst + 1) % mOffsets.length;
+            mFirstSequence++;
+            mCount--;
+        }
+
+        mStorage.position(start);
+        mStorage.put(data, offset, length);
+        int entry = (mFirst + mCount) % mOffsets.length;
+        mOffsets[entry] = start;
+        mLengths[entry] = length;
+        mUptimes[entry] = uptime;
+        mCount++;
+        mWritePosition = start + length;
+    }
+
+    /**
+     * Returns the number of frames in the ring, including ones older than
+     * the duration.
+     *
+     * @return
+     */
+    public synchronized int getFrameCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the first sequence number of frames which are not evicted.
+     * Called with the lock held.
+     *
+     * @return sequence number, or Long.MAX_VALUE if no frame is being saved.
+     */
+    private long getPinnedSequence() {
+        long pinned = Long.MAX_VALUE;
+        for (int i = 0; i < mPendingSaves.size(); i++) {
+            pinned = Math.min(pinned, mPendingSaves.get(i).mNextSequence);
+        }
+        return pinned;
+    }
+
+    /**
+     * Copies the next frame of a save out of the ring, and lets it be
+     * evicted.
+     *
+     * @param range
+     * @param buffer array receiving the frame from its start
+     * @return false if the frame is not kept.
+     */
+    private synchronized boolean copyNextFrame(SaveRange range, byte[] buffer) {
+        return copyFrame(range.mNextSequence++, buffer);
+    }
+
+    /**
+     * Copies a frame out of the ring, if it is still kept.
+     *
+     * @param sequence sequence number of the frame, counting from 0 for the
+     *                 first frame inserted
+     * @param buffer   array receiving the frame from its start
+     * @return false if the frame is evicted or not inserted yet.
+     */
+    synchronized boolean copyFrame(long sequence, byte[] buffer) {
+        if (sequence < mFirstSequence || mFirstSequence + mCount <= sequence) {
+            return false;
+        }
+        int entry = (int) ((mFirst + sequence - mFirstSequence) % mOffsets.length);
+        mStorage.position(mOffsets[entry]);
+        mStorage.get(buffer, 0, mLengths[entry]);
+        return true;
+    }
+
+    /**
+     * Saves frames of the last duration as JPEG files into the indicated
+     * directory, named by their time relative to this call. The frames are
+     * kept in the ring until they are copied out one at a time and written
+     * on a background thread, so that insert() is delayed no longer than a
+     * copy.
+     *
+     * @param directory
+     */
+    public void save(File directory) {
+        save(directory, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Saves frames of the duration before the indicated time.
+     *
+     * @param directory
+     * @param now       uptime of the save
+     */
+    void save(final File directory, long now) {
+        final SaveRange range;
+        ExecutorService writer;
+        synchronized (this) {
+            int skipped = 0;
+            while (skipped < mCount
+                    && mDurationMillis < now - mUptimes[(mFirst + skipped) % mOffsets.length]) {
+                skipped++;
+            }
+            int count = mCount - skipped;
+            if (count == 0) {
+                return;
+            }
+            range = new SaveRange(mFirstSequence + skipped, count);
+            for (int i = 0; i < count; i++) {
+                int entry = (mFirst + skipped + i) % mOffsets.length;
+                range.mLengths[i] = mLengths[entry];
+                range.mAges[i] = now - mUptimes[entry];
+            }
+            if (mWriter == null) {
+                mWriter = Executors.newSingleThreadExecutor();
+            }
+            writer = mWriter;
+            mPendingSaves.add(range);
+        }
+
+        try {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeFrames(directory, range);
+                    } finally {
+                        finishSave(range);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Not saved, since the buffer is shut down.");
+            finishSave(range);
+        }
+    }
+
+    /**
+     * Lets the frames of a save be evicted.
+     *
+     * @param range
+     */
+    private synchronized void finishSave(SaveRange range) {
+        mPendingSaves.remove(range);
+        if (mPendingSaves.isEmpty() && 0 < mDroppedFrameCount) {
+            Log.w(TAG, mDroppedFrameCount + " frames were dropped while saving.");
+            mDroppedFrameCount = 0;
+        }
+    }
+
+    /**
+     * Copies out and writes the frames of a save. Called on the writing
+     * thread.
+     *
+     * @param directory
+     * @param range
+     */
+    private void writeFrames(File directory, SaveRange range) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Cannot create " + directory);
+            return;
+        }
+        int maxLength = 0;
+        for (int length : range.mLengths) {
+            maxLength = Math.max(maxLength, length);
+        }
+        byte[] buffer = new byte[maxLength];
+        for (int i = 0; i < range.mLengths.length; i++) {
+            if (!copyNextFrame(range, buffer)) {
+                Log.w(TAG, "Frame " + i + " is lost.");
+                continue;
+            }
+            File file = new File(directory, String.format(Locale.US, "%04d_-%dms.jpg",
+                    i, range.mAges[i]));
+            FileOutputStream output = null;
+            try {
+                output = new FileOutputStream(file);
+                output.write(buffer, 0, range.mLengths[i]);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to save " + file + ": " + e.getMessage());
+                return;
+            } finally {
+                if (output != null) {
+                    try {
+                        output.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to close " + file);
+                    }
+                }
+            }
+        }
+        Log.d(TAG, "Saved " + range.mLengths.length + " frames to " + directory);
+    }
+
+    /**
+     * Stops the writing thread after pending saves are done.
+     */
+    public synchronized void shutdown() {
+        if (mWriter != null) {
+            mWriter.shutdown();
+            mWriter = null;
+        }
+    }
+
+    /**
+     * Frames of a save, from the next one to be copied out.
+     */
+    private static final class SaveRange {
+
+        // Guarded by the buffer.
+        long mNextSequence;
+
+        final int[] mLengths;
+
+        final long[] mAges;
+
+        SaveRange(long firstSequence, int count) {
+            mNextSequence = firstSequence;
+            mLengths = new int[count];
+            mAges = new long[count];
+        }
+    }
+}
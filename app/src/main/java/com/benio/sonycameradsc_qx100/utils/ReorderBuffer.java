@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ticket bookkeeping for work which is processed out of order by several
+ * workers and consumed in the original order. The producer issues a ticket
+ * for each item, workers complete tickets in any order, and the consumer
+ * takes tickets strictly in issue order. Each ticket maps to a slot
+ * {@code ticket % capacity} which the caller uses to store the item, and the
+ * slot is not reissued until the consumer releases its ticket.
+ */
+public final class ReorderBuffer {
+
+    private final boolean[] mCompleted;
+
+    private long mIssuedCount;
+
+    private long mNextTicket;
+
+    private long mReleasedCount;
+
+    /**
+     * Constructor
+     *
+     * @param capacity maximum number of tickets in flight
+     */
+    public ReorderBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive.");
+        }
+        mCompleted = new boolean[capacity];
+    }
+
+    /**
+     * Returns the number of slots.
+     *
+     * @return capacity
+     */
+    public int getCapacity() {
+        return mCompleted.length;
+    }
+
+    /**
+     * Returns the slot index of the indicated ticket.
+     *
+     * @param ticket
+     * @return slot index
+     */
+    public int slotOf(long ticket) {
+        return (int) (ticket % mCompleted.length);
+    }
+
+    /**
+     * Issues the next ticket, waiting while all slots are in use.
+     *
+     * @param timeout maximum time to wait
+     * @param unit    unit of timeout
+     * @return ticket, or -1 if the time ran out.
+     * @throws InterruptedException
+     */
+    public synchronized long issue(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mCompleted.length <= mIssuedCount - mReleasedCount) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return -1;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return mIssuedCount++;
+    }
+
+    /**
+     * Marks the indicated ticket as completed. Writes to its slot made before
+     * this call are visible to the consumer after {@link #takeNext()}.
+     *
+     * @param ticket
+     */
+    public synchronized void complete(long ticket) {
+        mCompleted[slotOf(ticket)] = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the oldest ticket not taken yet is completed, and returns
+     * it.
+     *
+     * @return ticket
+     * @throws InterruptedException
+     */
+    public synchronized long takeNext() throws InterruptedException {
+        int slot = slotOf(mNextTicket);
+        while (mNextTicket == mIssuedCount || !mCompleted[slot]) {
+            wait();
+        }
+        mCompleted[slot] = false;
+        return mNextTicket++;
+    }
+
+    /**
+     * Frees the slot of a ticket returned by {@link #takeNext()}. Tickets
+     * must be released in the order they are taken.
+     *
+     * @param ticket
+     */
+    public synchronized void release(long ticket) {
+        if (ticket != mReleasedCount) {
+            throw new IllegalStateException("ticket " + ticket + " is released out of order.");
+        }
+        mReleasedCount++;
+        notifyAll();
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link FrameSink} measuring sharpness of liveview frames, to check focus
+ * numerically. Each frame is decoded at a small size, and the gradient
+ * energy of its luminance is summed over a grid of cells, in bands of rows
+ * computed on a pool of threads sized to the device's cores. The score is
+ * the root mean square gradient in luminance levels, for the whole frame
+ * and for each cell. Optionally, an edge mask for focus peaking is made
+ * from pixels with strong gradients. This is meant to be added with
+ * {@link FrameSink.Policy#DROP}.
+ */
+public final class SharpnessAnalyzer implements FrameSink {
+
+    private static final int ANALYSIS_WIDTH = 320;
+
+    /**
+     * Number of cells in each row and column of the grid.
+     */
+    public static final int GRID_SIZE = 8;
+
+    /**
+     * Color of edge pixels in the mask.
+     */
+    public static final int EDGE_COLOR = 0xFFFF0000;
+
+    /**
+     * An edge mask of a frame, in ARGB pixels row by row.
+     */
+    public static final class EdgeMask {
+
+        private int[] mPixels = new int[0];
+
+        private int mWidth;
+
+        private int mHeight;
+
+        public int[] getPixels() {
+            return mPixels;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+    }
+
+    // Accessed only on the thread calling onFrame(), and by band tasks while
+    // it waits for them.
+    private final DownsampledDecoder mDecoder = new DownsampledDecoder(ANALYSIS_WIDTH);
+
+    private int[] mLuminance = new int[0];
+
+    private int[] mColumnCells = new int[0];
+
+    private final long[] mCellEnergy = new long[GRID_SIZE * GRID_SIZE];
+
+    private final int[] mCellPixels = new int[GRID_SIZE * GRID_SIZE];
+
+    private int mWidth;
+
+    private int mHeight;
+
+    private EdgeMask mWritingMask;
+
+    private final ExecutorService mExecutor;
+
+    private final BandTask[] mTasks;
+
+    private final Object mBandLock = new Object();
+
+    private int mPendingBands;
+
+    private volatile int mEdgeThreshold = 48;
+
+    private volatile boolean mEdgeMaskEnabled;
+
+    // Results
+    private volatile float mScore;
+
+    // Published scores of cells, swapped with the array written next.
+    private volatile float[] mCellScores = new float[GRID_SIZE * GRID_SIZE];
+
+    private float[] mWritingCellScores = new float[GRID_SIZE * GRID_SIZE];
+
+    private final FrameExchanger<EdgeMask> mPublishedMask = new FrameExchanger<EdgeMask>();
+
+    private final AtomicReference<EdgeMask> mFreeMask = new AtomicReference<EdgeMask>();
+
+    /**
+     * Constructor
+     */
+    public SharpnessAnalyzer() {
+        int bandCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                GRID_SIZE));
+        mTasks = new BandTask[bandCount];
+        for (int i = 0; i < bandCount; i++) {
+            // Bands are aligned to rows of cells, so no two tasks share a cell.
+            mTasks[i] = new BandTask(GRID_SIZE * i / bandCount, GRID_SIZE * (i + 1) / bandCount);
+        }
+        // The analyzing thread computes a band too.
+        mExecutor = 1 < bandCount ? Executors.newFixedThreadPool(bandCount - 1,
+                new ThreadFactory() {
+                    private int mCount;
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "SharpnessBand-" + mCount++);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }) : null;
+    }
+
+    /**
+     * Set the gradient from which a pixel is an edge in the mask.
+     *
+     * @param threshold gradient in luminance levels
+     */
+    public void setEdgeThreshold(int threshold) {
+        mEdgeThreshold = threshold;
+    }
+
+    /**
+     * Enable making of edge masks for {@link #acquireEdgeMask()}.
+     *
+     * @param enabled
+     */
+    public void setEdgeMaskEnabled(boolean enabled) {
+        mEdgeMaskEnabled = enabled;
+    }
+
+    /**
+     * Returns the sharpness of the last analyzed frame.
+     *
+     * @return root mean square gradient in luminance levels
+     */
+    public float getScore() {
+        return mScore;
+    }
+
+    /**
+     * Returns the sharpness of the cell at the indicated position of the
+     * last analyzed frame. Score arrays are reused every other frame, so a
+     * racing call can return the score of a newer frame.
+     *
+     * @param x position relative to the frame width, from 0 to 1
+     * @param y position relative to the frame height, from 0 to 1
+     * @return root mean square gradient in luminance levels
+     */
+    public float getScore(float x, float y) {
+        int column = Math.max(0, Math.min((int) (x * GRID_SIZE), GRID_SIZE - 1));
+        int row = Math.max(0, Math.min((int) (y * GRID_SIZE), GRID_SIZE - 1));
+        return mCellScores[row * GRID_SIZE + column];
+    }
+
+    /**
+     * Takes the newest edge mask. Give it back by
+     * {@link #releaseEdgeMask(EdgeMask)} when done.
+     *
+     * @return mask, or null if no new mask is made since the last call.
+     */
+    public EdgeMask acquireEdgeMask() {
+        return mPublishedMask.poll();
+    }
+
+    /**
+     * Gives back a mask taken by {@link #acquireEdgeMask()} for reuse.
+     *
+     * @param mask
+     */
+    public void releaseEdgeMask(EdgeMask mask) {
+        mFreeMask.set(mask);
+    }
+
+    /**
+     * Stops the threads of the pool. The analyzer must not be used after
+     * this.
+     */
+    public void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+
+    @Override
+    public void onFrame(SimpleLiveviewSlicer.Payload payload) {
+        if (!mDecoder.decode(payload)) {
+            // Broken JPEG data.
+            return;
+        }
+        int width = mDecoder.getWidth();
+        int height = mDecoder.getHeight();
+        if (width < 3 || height < 3) {
+            return;
+        }
+        if (mLuminance.length < width * height) {
+            mLuminance = new int[width * height];
+        }
+        if (width != mWidth) {
+            if (mColumnCells.length < width) {
+                mColumnCells = new int[width];
+            }
+            for (int x = 0; x < width; x++) {
+                mColumnCells[x] = x * GRID_SIZE / width;
+            }
+        }
+        mWidth = width;
+        mHeight = height;
+        computeLuminance(mDecoder.getPixels(), width * height, mLuminance);
+
+        EdgeMask mask = null;
+        if (mEdgeMaskEnabled) {
+            mask = mWritingMask;
+            if (mask == null) {
+                mask = mFreeMask.getAndSet(null);
+                if (mask == null) {
+                    mask = new EdgeMask();
+                }
+            }
+            if (mask.mPixels.length < width * height) {
+                mask.mPixels = new int[width * height];
+            }
+            mask.mWidth = width;
+            mask.mHeight = height;
+        }
+
+        Arrays.fill(mCellEnergy, 0);
+        Arrays.fill(mCellPixels, 0);
+        runBands(mask);
+
+        long energy = 0;
+        int pixels = 0;
+        float[] cellScores = mWritingCellScores;
+        for (int i = 0; i < cellScores.length; i++) {
+            energy += mCellEnergy[i];
+            pixels += mCellPixels[i];
+            cellScores[i] = mCellPixels[i] != 0
+                    ? (float) Math.sqrt((double) mCellEnergy[i] / mCellPixels[i]) : 0;
+        }
+        mWritingCellScores = mCellScores;
+        mCellScores = cellScores;
+        mScore = pixels != 0 ? (float) Math.sqrt((double) energy / pixels) : 0;
+
+        if (mask != null) {
+            // An unshown mask is replaced, and written over next time.
+            mWritingMask = mPublishedMask.offer(mask);
+        }
+    }
+
+    /**
+     * Computes all bands, the last one on this thread.
+     *
+     * @param mask mask to write edges into, or null
+     */
+    private void runBands(EdgeMask mask) {
+        int threshold = mEdgeThreshold;
+        int last = mTasks.length - 1;
+        synchronized (mBandLock) {
+            mPendingBands = last;
+        }
+        for (int i = 0; i < last; i++) {
+            mTasks[i].prepare(mask, threshold);
+            mExecutor.execute(mTasks[i]);
+        }
+        mTasks[last].prepare(mask, threshold);
+        mTasks[last].compute();
+
+        // Bands are short. Wait for them even if interrupted, as they write
+        // into the arrays of the next frame otherwise.
+        boolean interrupted = false;
+        synchronized (mBandLock) {
+            while (0 < mPendingBands) {
+                try {
+                    mBandLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Computes the Rec. 601 luminance of ARGB pixels.
+     *
+     * @param pixels
+     * @param count     number of pixels
+     * @param luminance array receiving luminance from 0 to 255
+     */
+    static void computeLuminance(int[] pixels, int count, int[] luminance) {
+        for (int i = 0; i < count; i++) {
+            int pixel = pixels[i];
+            luminance[i] = (77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff)
+                    + 29 * (pixel & 0xff)) >> 8;
+        }
+    }
+
+    /**
+     * Sums the squared central difference gradient of the indicated rows
+     * into cells. Border pixels have no gradient, and are left out.
+     *
+     * @param luminance     luminance row by row
+     * @param width
+     * @param height
+     * @param fromRow       first row
+     * @param toRow         row after the last one
+     * @param columnCells   column of cell for each x
+     * @param cellRow       row of cell of these rows
+     * @param cellEnergy    sums of squared gradients of cells
+     * @param cellPixels    numbers of pixels of cells
+     * @param mask          edge mask to write, or null
+     * @param edgeThreshold squared gradient from which a pixel is an edge
+     */
+    static void accumulateGradient(int[] luminance, int width, int height, int fromRow,
+                                   int toRow, int[] columnCells, int cellRow,
+                                   long[] cellEnergy, int[] cellPixels, int[] mask,
+                                   int edgeThreshold) {
+        int cellBase = cellRow * GRID_SIZE;
+        for (int y = Math.max(fromRow, 1); y < Math.min(toRow, height - 1); y++) {
+            int rowStart = y * width;
+            int end = rowStart + width - 1;
+            if (mask != null) {
+                mask[rowStart] = 0;
+                mask[end] = 0;
+            }
+            for (int i = rowStart + 1; i < end; i++) {
+                int gx = luminance[i + 1] - luminance[i - 1];
+                int gy = luminance[i + width] - luminance[i - width];
+                int energy = gx * gx + gy * gy;
+                int cell = cellBase + columnCells[i - rowStart];
+                cellEnergy[cell] += energy;
+                cellPixels[cell]++;
+                if (mask != null) {
+                    mask[i] = edgeThreshold <= energy ? EDGE_COLOR : 0;
+                }
+            }
+        }
+        if (mask != null) {
+            // Rows at the top and bottom borders.
+            if (fromRow == 0) {
+                Arrays.fill(mask, 0, width, 0);
+            }
+            if (height <= toRow) {
+                Arrays.fill(mask, (height - 1) * width, height * width, 0);
+            }
+        }
+    }
+
+    /**
+     * Computes rows of cells from one to another.
+     */
+    private final class BandTask implements Runnable {
+
+        private final int mFromCellRow;
+
+        private final int mToCellRow;
+
+        private int[] mMaskPixels;
+
+        private int mEdgeThreshold;
+
+        BandTask(int fromCellRow, int toCellRow) {
+            mFromCellRow = fromCellRow;
+            mToCellRow = toCellRow;
+        }
+
+        void prepare(EdgeMask mask, int edgeThreshold) {
+            mMaskPixels = mask != null ? mask.mPixels : null;
+            mEdgeThreshold = edgeThreshold * edgeThreshold;
+        }
+
+        void compute() {
+            for (int cellRow = mFromCellRow; cellRow < mToCellRow; cellRow++) {
+                accumulateGradient(mLuminance, mWidth, mHeight,
+                        (cellRow * mHeight + GRID_SIZE - 1) / GRID_SIZE,
+                        ((cellRow + 1) * mHeight + GRID_SIZE - 1) / GRID_SIZE,
+                        mColumnCells, cellRow, mCellEnergy, mCellPixels, mMaskPixels,
+                        mEdgeThreshold);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                compute();
+            } finally {
+                synchronized (mBandLock) {
+                    mPendingBands--;
+                    mBandLock.notifyAll();
+                }
+            }
+        }
+    }
+}
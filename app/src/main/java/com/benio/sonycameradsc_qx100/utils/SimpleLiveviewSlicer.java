@@ -4,72 +4,511 @@
 
 package com.benio.sonycameradsc_qx100.utils;
 
-import android.util.Log;
-
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.ByteBuffer;
 
 /**
  * A parser class for Liveview data Packet defined by Camera Remote API
  */
 public class SimpleLiveviewSlicer {
 
-    private static final String TAG = SimpleLiveviewSlicer.class.getSimpleName();
-
     /**
      * Payload data class. See also Camera Remote API specification document to
      * know the data structure.
      */
     public static final class Payload {
+        /**
+         * sequence number in Common Header. It increments every frame and
+         * wraps around at 0xFFFF.
+         */
+        public final int sequenceNumber;
+
+        /**
+         * time stamp in Common Header. The unit is milliseconds and the start
+         * time depends on the server.
+         */
+        public final long timestamp;
+
         /**
          * jpeg data container
          */
         public final byte[] jpegData;
 
+        /**
+         * length of valid jpeg data. It can be smaller than the length of
+         * jpegData when the container is borrowed from a pool.
+         */
+        public final int jpegLength;
+
         /**
          * padding data container
          */
         public final byte[] paddingData;
 
+        /**
+         * length of valid padding data.
+         */
+        public final int paddingLength;
+
+        /**
+         * Liveview frame information of this image, or null if frame
+         * information is disabled or not received. The instance is owned by
+         * the slicer and overwritten by the next frame information Packet,
+         * so consumers on other threads should copy it by
+         * {@link LiveviewFrameInfo#copyFrom(LiveviewFrameInfo)}.
+         */
+        public final LiveviewFrameInfo frameInfo;
+
+        /**
+         * number of frames in jpeg data container. Multi-frame payloads hold
+         * frames of the same size back to back, and each of them can be
+         * accessed in place by {@link #getFrameOffset(int)} and
+         * {@link #getFrameLength(int)}. Other payloads hold one frame.
+         */
+        public final int frameCount;
+
+        private final int mFrameSize;
+
+        private final ByteArrayPool mPool;
+
+        private int mReferenceCount = 1;
+
         /**
          * Constructor
          */
-        private Payload(byte[] jpeg, byte[] padding) {
+        private Payload(int sequenceNumber, long timestamp, byte[] jpeg, int jpegLength,
+                        byte[] padding, int paddingLength, ByteArrayPool pool,
+                        LiveviewFrameInfo frameInfo, int frameCount, int frameSize) {
+            this.sequenceNumber = sequenceNumber;
+            this.timestamp = timestamp;
             this.jpegData = jpeg;
+            this.jpegLength = jpegLength;
             this.paddingData = padding;
+            this.paddingLength = paddingLength;
+            this.mPool = pool;
+            this.frameInfo = frameInfo;
+            this.frameCount = frameCount;
+            this.mFrameSize = frameSize;
+        }
+
+        /**
+         * Returns the offset of the indicated frame in jpeg data container.
+         *
+         * @param index frame index, from 0 to frameCount - 1
+         * @return offset in jpegData
+         */
+        public int getFrameOffset(int index) {
+            checkFrameIndex(index);
+            return index * mFrameSize;
+        }
+
+        /**
+         * Returns the length of the indicated frame.
+         *
+         * @param index frame index, from 0 to frameCount - 1
+         * @return length of the frame
+         */
+        public int getFrameLength(int index) {
+            checkFrameIndex(index);
+            return mFrameSize;
         }
+
+        /**
+         * Returns a view of the indicated frame. The view shares jpeg data
+         * container without copying it, so it is valid only until
+         * {@link #release()}.
+         *
+         * @param index frame index, from 0 to frameCount - 1
+         * @return read-only view of the frame
+         */
+        public ByteBuffer getFrame(int index) {
+            return ByteBuffer.wrap(jpegData, getFrameOffset(index), mFrameSize).slice()
+                    .asReadOnlyBuffer();
+        }
+
+        private void checkFrameIndex(int index) {
+            if (index < 0 || frameCount <= index) {
+                throw new IndexOutOfBoundsException(
+                        "index: " + index + ", frameCount: " + frameCount);
+            }
+        }
+
+        /**
+         * Adds a reference to a Payload read in pooled mode, so that it can
+         * be shared by several consumers without copying. Each reference has
+         * to be dropped by {@link #release()}. Calling this for a Payload
+         * read in normal mode has no effect.
+         */
+        public void retain() {
+            if (mPool == null) {
+                return;
+            }
+            synchronized (this) {
+                if (mReferenceCount <= 0) {
+                    throw new IllegalStateException("Payload is already released.");
+                }
+                mReferenceCount++;
+            }
+        }
+
+        /**
+         * Drops a reference, and returns the borrowed containers to the pool
+         * when no reference is left. This must be called once the consumer
+         * is done with a Payload read in pooled mode, and the containers must
+         * not be touched after that. Calling this for a Payload read in
+         * normal mode has no effect.
+         */
+        public void release() {
+            if (mPool == null) {
+                return;
+            }
+            synchronized (this) {
+                if (mReferenceCount <= 0) {
+                    return;
+                }
+                mReferenceCount--;
+                if (0 < mReferenceCount) {
+                    return;
+                }
+            }
+            mPool.release(jpegData);
+            mPool.release(paddingData);
+        }
+    }
+
+    /**
+     * A signal from the consumer of Payloads telling the slicer that it
+     * cannot take another image now.
+     */
+    public interface BackpressureSignal {
+
+        /**
+         * Called by the slicer for each image Packet, right after its Payload
+         * Header is read.
+         *
+         * @return true to discard the image without reading it into memory.
+         */
+        boolean isConsumerLagging();
+    }
+
+    /**
+     * A listener for Streaming Playback Information Packets.
+     */
+    public interface PlaybackInfoListener {
+
+        /**
+         * Called on the thread calling {@link #nextPayload()} for each
+         * Streaming Playback Information Packet. The instance is reused for
+         * all Packets and is valid only during this call.
+         *
+         * @param info playback information
+         */
+        void onPlaybackInfo(StreamingPlaybackInfo info);
     }
 
-    private static final int CONNECTION_TIMEOUT = 2000; // [msec]
+    private static final int COMMON_HEADER_LENGTH = 1 + 1 + 2 + 4;
+
+    private static final int PAYLOAD_HEADER_LENGTH = 128;
+
+    private static final int START_CODE_LENGTH = 4;
 
-    private HttpURLConnection mHttpConn;
+    private static final int PLAYBACK_INFO_LENGTH = 4 + 4;
+
+    private LiveviewTransport mTransport = new HttpLiveviewTransport();
+
+    private LiveviewTransport mOpenTransport;
 
     private InputStream mInputStream;
 
+    private ByteArrayPool mBufferPool;
+
+    private final byte[] mCommonHeader = new byte[COMMON_HEADER_LENGTH];
+
+    private final byte[] mPayloadHeader = new byte[PAYLOAD_HEADER_LENGTH];
+
+    private final byte[] mResyncWindow = new byte[COMMON_HEADER_LENGTH + START_CODE_LENGTH];
+
+    private boolean mResyncEnabled;
+
+    private boolean mFrameInfoEnabled;
+
+    private final LiveviewFrameInfo mFrameInfo = new LiveviewFrameInfo();
+
+    private boolean mFrameInfoPending;
+
+    private byte[] mInfoBuffer = new byte[1024];
+
+    private PlaybackInfoListener mPlaybackInfoListener;
+
+    private final StreamingPlaybackInfo mPlaybackInfo = new StreamingPlaybackInfo();
+
+    private int mLastImageSequence = -1;
+
+    private long mLastImageTimestamp;
+
+    private long mLastImageArrivalNanos;
+
+    private volatile long mReceivedFrameCount;
+
+    private volatile long mReceivedBytes;
+
+    private volatile long mSequenceGapCount;
+
+    private volatile long mLostFrameCount;
+
+    private volatile long mDuplicateFrameCount;
+
+    private volatile float mJitterMillis;
+
+    private BackpressureSignal mBackpressureSignal;
+
+    private boolean mMultiFrameEnabled;
+
+    private volatile long mDiscardedFrameCount;
+
+    private volatile long mResyncCount;
+
+    private volatile long mSkippedBytes;
+
+    private File mRecordingFile;
+
+    private LiveviewRecorder mRecorder;
+
+    /**
+     * Enables pooled mode. In pooled mode, jpeg and padding data are read
+     * directly into arrays borrowed from the indicated pool, and the consumer
+     * has to call {@link Payload#release()} after using each Payload.
+     *
+     * @param pool buffer pool, or null to disable pooled mode.
+     */
+    public void setBufferPool(ByteArrayPool pool) {
+        mBufferPool = pool;
+    }
+
+    /**
+     * Enables recovery mode. In recovery mode, a broken Packet does not make
+     * {@link #nextPayload()} throw IOException. Instead, the slicer drops the
+     * Packet and scans the stream forward for the next Common Header followed
+     * by the start code of Payload Header.
+     *
+     * @param enabled true to enable recovery mode.
+     */
+    public void setResyncEnabled(boolean enabled) {
+        mResyncEnabled = enabled;
+    }
+
+    /**
+     * Enables parsing of Liveview Frame Information Packets. The server sends
+     * them only after setLiveviewFrameInfo API is called with true. When
+     * enabled, each image Payload carries the frame information received for
+     * the same sequence number. Frame information of an image which has
+     * already passed is dropped.
+     *
+     * @param enabled true to parse frame information, false to skip it.
+     */
+    public void setFrameInfoEnabled(boolean enabled) {
+        mFrameInfoEnabled = enabled;
+        if (!enabled) {
+            mFrameInfoPending = false;
+        }
+    }
+
+    /**
+     * Enables lossy skip-ahead mode. While the indicated signal reports that
+     * the consumer is lagging, {@link #nextPayload()} reads only the headers
+     * of image Packets and skips their JPEG and padding bytes in the stream,
+     * then returns the first image read after the consumer catches up.
+     *
+     * @param signal backpressure signal, or null to read every image.
+     */
+    public void setBackpressureSignal(BackpressureSignal signal) {
+        mBackpressureSignal = signal;
+    }
+
+    /**
+     * Returns the number of images skipped in lossy skip-ahead mode. This can
+     * be called from any thread.
+     *
+     * @return count of skipped images
+     */
+    public long getDiscardedFrameCount() {
+        return mDiscardedFrameCount;
+    }
+
+    /**
+     * Enables multi-frame payloads for liveview images. When enabled, a
+     * liveview image Packet whose Payload Header carries frame count (bytes
+     * 10-11) and single frame size (bytes 12-13) is returned as one Payload
+     * exposing each frame as a view into the shared jpeg data container, like
+     * {@link #readLiveviewPayload()}.
+     * <p/>
+     * This is the layout of Liveview Frame Information Packets, which
+     * {@link #readLiveviewPayload()} applies to images. Camera Remote API
+     * defines these bytes of a liveview image Packet as reserved and zero, so
+     * cameras never send multi-frame images, and Packets with zero there are
+     * read as single frames as usual. This is meant for servers or recorded
+     * captures which pack frames that way. Disabled by default.
+     *
+     * @param enabled
+     */
+    public void setMultiFrameEnabled(boolean enabled) {
+        mMultiFrameEnabled = enabled;
+    }
+
+    /**
+     * Sets a listener for Streaming Playback Information Packets. Without a
+     * listener, those Packets are skipped.
+     *
+     * @param listener listener, or null.
+     */
+    public void setPlaybackInfoListener(PlaybackInfoListener listener) {
+        mPlaybackInfoListener = listener;
+    }
+
+    /**
+     * Returns how many times the slicer has dropped a broken Packet and
+     * resynchronized with the stream. This can be called from any thread.
+     *
+     * @return count of resync events
+     */
+    public long getResyncCount() {
+        return mResyncCount;
+    }
+
+    /**
+     * Returns how many bytes the slicer has skipped while resynchronizing.
+     * This can be called from any thread.
+     *
+     * @return count of skipped bytes
+     */
+    public long getSkippedBytes() {
+        return mSkippedBytes;
+    }
+
+    /**
+     * Returns the number of image Packets received from the server. This can
+     * be called from any thread, as well as other statistics below.
+     *
+     * @return count of image Packets
+     */
+    public long getReceivedFrameCount() {
+        return mReceivedFrameCount;
+    }
+
+    /**
+     * Returns the number of bytes of Packets read from the stream, not
+     * including bytes skipped while resynchronizing.
+     *
+     * @return count of Packet bytes
+     */
+    public long getReceivedBytes() {
+        return mReceivedBytes;
+    }
+
+    /**
+     * Returns how many times the sequence number of image Packets has jumped
+     * forward. Because the stream is carried over TCP, gaps mean frames
+     * dropped by the server, not by this client.
+     *
+     * @return count of sequence gaps
+     */
+    public long getSequenceGapCount() {
+        return mSequenceGapCount;
+    }
+
+    /**
+     * Returns the total number of frames missing in sequence gaps.
+     *
+     * @return count of frames dropped by the server
+     */
+    public long getLostFrameCount() {
+        return mLostFrameCount;
+    }
+
+    /**
+     * Returns the number of image Packets which repeated the sequence number
+     * of the previous one.
+     *
+     * @return count of duplicated frames
+     */
+    public long getDuplicateFrameCount() {
+        return mDuplicateFrameCount;
+    }
+
+    /**
+     * Returns the inter-frame arrival jitter, which is the smoothed
+     * difference between the arrival interval measured by this client and
+     * the interval of time stamps given by the server, in the same way as
+     * RTP (RFC 3550).
+     *
+     * @return jitter in milliseconds
+     */
+    public float getJitterMillis() {
+        return mJitterMillis;
+    }
+
+    /**
+     * Enables raw recording. When a file is set, the next
+     * {@link #open(String)} starts a {@link LiveviewRecorder} which writes
+     * every byte received from the server to the file, including the bytes
+     * skipped by the slicer, and {@link #close()} finishes it.
+     *
+     * @param file file to record to, or null to disable recording.
+     */
+    public void setRecordingFile(File file) {
+        if (mInputStream != null) {
+            throw new IllegalStateException("Slicer is already open.");
+        }
+        mRecordingFile = file;
+    }
+
+    /**
+     * Sets the transport used by the next {@link #open(String)}. The default
+     * transport is {@link HttpLiveviewTransport}. A "file://" url is always
+     * opened by {@link FileLiveviewTransport} to replay a recorded capture.
+     *
+     * @param transport transport to obtain the liveview data stream.
+     */
+    public void setTransport(LiveviewTransport transport) {
+        if (transport == null) {
+            throw new IllegalArgumentException("transport is null.");
+        }
+        if (mInputStream != null) {
+            throw new IllegalStateException("Slicer is already open.");
+        }
+        mTransport = transport;
+    }
+
     /**
      * Opens Liveview HTTP GET connection and prepares for reading Packet data.
      *
      * @param liveviewUrl Liveview data url that is obtained by DD.xml or result
-     *                    of startLiveview API.
+     *                    of startLiveview API, or "file://" url of a capture
+     *                    recorded by {@link LiveviewRecorder}.
      * @throws IOException generic errors or exception.
      */
     public void open(String liveviewUrl) throws IOException {
-        if (mInputStream != null || mHttpConn != null) {
+        if (mInputStream != null) {
             throw new IllegalStateException("Slicer is already open.");
         }
 
-        final URL urlObj = new URL(liveviewUrl);
-        mHttpConn = (HttpURLConnection) urlObj.openConnection();
-        mHttpConn.setRequestMethod("GET");
-        mHttpConn.setConnectTimeout(CONNECTION_TIMEOUT);
-        mHttpConn.connect();
-
-        if (mHttpConn.getResponseCode() == HttpURLConnection.HTTP_OK) {
-            mInputStream = mHttpConn.getInputStream();
+        mOpenTransport = FileLiveviewTransport.isFileUrl(liveviewUrl)
+                ? new FileLiveviewTransport() : mTransport;
+        InputStream in = mOpenTransport.open(liveviewUrl);
+        if (in != null && mRecordingFile != null) {
+            LiveviewRecorder recorder = new LiveviewRecorder(mRecordingFile);
+            try {
+                recorder.open();
+            } catch (IOException e) {
+                mOpenTransport.close();
+                throw e;
+            }
+            mRecorder = recorder;
+            in = recorder.tee(in);
         }
+        mInputStream = in;
     }
 
     /**
@@ -78,20 +517,15 @@ public class SimpleLiveviewSlicer {
      * @throws IOException generic errors or exception.
      */
     public void close() {
-        try {
-            if (mInputStream != null) {
-                mInputStream.close();
-                mInputStream = null;
-            }
-        } catch (IOException e) {
-            Log.w(TAG, "Close() IOException.");
+        mInputStream = null;
+        if (mOpenTransport != null) {
+            mOpenTransport.close();
+            mOpenTransport = null;
         }
-
-        if (mHttpConn != null) {
-            mHttpConn.disconnect();
-            mHttpConn = null;
+        if (mRecorder != null) {
+            mRecorder.close();
+            mRecorder = null;
         }
-
     }
 
     public Payload nextPayload() throws IOException {
@@ -99,73 +533,337 @@ public class SimpleLiveviewSlicer {
         Payload payload = null;
 
         while (mInputStream != null && payload == null) {
-            // Common Header
-            int readLength = 1 + 1 + 2 + 4;
-            byte[] commonHeader = readBytes(mInputStream, readLength);
-            if (commonHeader == null || commonHeader.length != readLength) {
-                throw new IOException("Cannot read stream for common header.");
+            // Common Header and start code of Payload Header
+            readPacketStart();
+            long arrivalNanos = System.nanoTime();
+            if (mRecorder != null) {
+                mRecorder.markPacket(COMMON_HEADER_LENGTH + START_CODE_LENGTH);
             }
+            byte[] commonHeader = mCommonHeader;
 
-            if (commonHeader[0] != (byte) 0xFF) {
-                throw new IOException("Unexpected data format. (Start byte)");
+            // Rest of Payload Header
+            byte[] payloadHeader = mPayloadHeader;
+            if (readFully(mInputStream, payloadHeader, START_CODE_LENGTH,
+                    PAYLOAD_HEADER_LENGTH - START_CODE_LENGTH)
+                    != PAYLOAD_HEADER_LENGTH - START_CODE_LENGTH) {
+                throw new IOException("Cannot read stream for payload header.");
             }
+            int dataSize = bytesToInt(payloadHeader, 4, 3);
+            int paddingSize = bytesToInt(payloadHeader, 7, 1);
+            mReceivedBytes += COMMON_HEADER_LENGTH + PAYLOAD_HEADER_LENGTH + dataSize
+                    + paddingSize;
 
             switch (commonHeader[1]) {
                 case (byte) 0x02:// For Liveview Frame Information
-                    // This is information header for Liveview.
-                    // skip this packet.
-                    commonHeader = null;
-                    readPayload();
+                    if (mFrameInfoEnabled) {
+                        readFrameInfo(bytesToInt(commonHeader, 2, 2), dataSize, paddingSize);
+                    } else {
+                        // skip this packet.
+                        skipFully(mInputStream, dataSize + paddingSize);
+                    }
                     break;
                 case (byte) 0x01:// For liveview images
-                    payload = readPayload();
-                    break;
                 case (byte) 0x11:// For Streaming Images
-                    payload = readPayload();
+                    LiveviewFrameInfo frameInfo = takeFrameInfo(bytesToInt(commonHeader, 2, 2));
+                    updateFrameStatistics(arrivalNanos);
+                    BackpressureSignal signal = mBackpressureSignal;
+                    if (signal != null && signal.isConsumerLagging()) {
+                        // The consumer would throw this image away. skip it.
+                        skipFully(mInputStream, dataSize + paddingSize);
+                        mDiscardedFrameCount++;
+                        break;
+                    }
+                    int frameCount = 1;
+                    int singleFrameSize = dataSize;
+                    if (mMultiFrameEnabled && commonHeader[1] == (byte) 0x01
+                            && (payloadHeader[10] | payloadHeader[11]) != 0) {
+                        frameCount = bytesToInt(payloadHeader, 10, 2);
+                        singleFrameSize = bytesToInt(payloadHeader, 12, 2);
+                        if (frameCount * singleFrameSize != dataSize) {
+                            if (!mResyncEnabled) {
+                                throw new IOException(
+                                        "Unexpected data format.(Frame information data)");
+                            }
+                            skipFully(mInputStream, dataSize + paddingSize);
+                            mResyncCount++;
+                            break;
+                        }
+                    }
+                    payload = readPayloadData(dataSize, paddingSize, frameInfo, frameCount,
+                            singleFrameSize);
+                    if (mResyncEnabled && !isJpeg(payload)) {
+                        // The sizes in Payload Header were broken.
+                        payload.release();
+                        payload = null;
+                        mResyncCount++;
+                    }
                     break;
                 case (byte) 0x12://For Streaming Playback Information
-                    // This is information header for streaming.
-                    // skip this packet.
-                    readLength = 4 + 3 + 1 + 2 + 118 + 4 + 4 + 24;
-                    commonHeader = null;
-                    readBytes(mInputStream, readLength);
+                    if (mPlaybackInfoListener != null) {
+                        readPlaybackInfo(dataSize, paddingSize);
+                    } else {
+                        // skip this packet.
+                        skipFully(mInputStream, dataSize + paddingSize);
+                    }
                     break;
                 default:
+                    // Unknown payload type. skip this packet.
+                    skipFully(mInputStream, dataSize + paddingSize);
                     break;
             }
         }
         return payload;
     }
 
+    /**
+     * Updates sequence and jitter statistics with Common Header of an image
+     * Packet. This must be called after {@link #takeFrameInfo(int)} for the
+     * same Packet.
+     *
+     * @param arrivalNanos arrival time of the Packet by System.nanoTime()
+     */
+    private void updateFrameStatistics(long arrivalNanos) {
+        int sequenceNumber = bytesToInt(mCommonHeader, 2, 2);
+        long timestamp = bytesToInt(mCommonHeader, 4, 4) & 0xFFFFFFFFL;
+
+        if (0 < mReceivedFrameCount) {
+            int delta = (sequenceNumber - mLastImageSequence) & 0xFFFF;
+            if (delta == 0) {
+                mDuplicateFrameCount++;
+            } else if (1 < delta && delta < 0x8000) {
+                mSequenceGapCount++;
+                mLostFrameCount += delta - 1;
+            }
+
+            // A backward jump means the server restarted numbering. Neither
+            // gap nor jitter is counted for it.
+            if (delta < 0x8000) {
+                // Cast to int for wrap around of 32 bit time stamps.
+                int timestampDelta = (int) (timestamp - mLastImageTimestamp);
+                float transit = (arrivalNanos - mLastImageArrivalNanos) / 1000000f
+                        - timestampDelta;
+                mJitterMillis += (Math.abs(transit) - mJitterMillis) / 16;
+            }
+        }
+        mReceivedFrameCount++;
+        mLastImageSequence = sequenceNumber;
+        mLastImageTimestamp = timestamp;
+        mLastImageArrivalNanos = arrivalNanos;
+    }
+
+    /**
+     * Reads Payload data of a Liveview Frame Information Packet into the
+     * reused frame information.
+     *
+     * @param sequenceNumber
+     * @param dataSize
+     * @param paddingSize
+     * @throws IOException
+     */
+    private void readFrameInfo(int sequenceNumber, int dataSize, int paddingSize)
+            throws IOException {
+        byte[] payloadHeader = mPayloadHeader;
+        int majorVersion = payloadHeader[8] & 0xff;
+        int frameCount = bytesToInt(payloadHeader, 10, 2);
+        int singleFrameSize = bytesToInt(payloadHeader, 12, 2);
+        if (majorVersion != 1 || dataSize < frameCount * singleFrameSize) {
+            // Unknown data version or broken header. skip this packet.
+            skipFully(mInputStream, dataSize + paddingSize);
+            return;
+        }
+
+        if (mInfoBuffer.length < dataSize) {
+            mInfoBuffer = new byte[Math.max(dataSize, mInfoBuffer.length * 2)];
+        }
+        if (readFully(mInputStream, mInfoBuffer, 0, dataSize) != dataSize) {
+            throw new IOException("Cannot read stream for frame information data.");
+        }
+        skipFully(mInputStream, paddingSize);
+
+        mFrameInfo.parse(sequenceNumber, mInfoBuffer, 0, frameCount, singleFrameSize);
+        mFrameInfoPending = true;
+    }
+
+    /**
+     * Reads Payload data of a Streaming Playback Information Packet and
+     * notifies the listener.
+     *
+     * @param dataSize
+     * @param paddingSize
+     * @throws IOException
+     */
+    private void readPlaybackInfo(int dataSize, int paddingSize) throws IOException {
+        byte[] commonHeader = mCommonHeader;
+        int dataVersion = bytesToInt(mPayloadHeader, 8, 2);
+        if (dataVersion >> 8 != 1 || dataSize < PLAYBACK_INFO_LENGTH
+                || mInfoBuffer.length < dataSize) {
+            // Unknown data version or broken header. skip this packet.
+            skipFully(mInputStream, dataSize + paddingSize);
+            return;
+        }
+        if (readFully(mInputStream, mInfoBuffer, 0, dataSize) != dataSize) {
+            throw new IOException("Cannot read stream for playback information data.");
+        }
+        skipFully(mInputStream, paddingSize);
+
+        mPlaybackInfo.set(bytesToInt(commonHeader, 2, 2),
+                bytesToInt(commonHeader, 4, 4) & 0xFFFFFFFFL, dataVersion,
+                bytesToInt(mInfoBuffer, 0, 4) & 0xFFFFFFFFL,
+                bytesToInt(mInfoBuffer, 4, 4) & 0xFFFFFFFFL);
+        PlaybackInfoListener listener = mPlaybackInfoListener;
+        if (listener != null) {
+            listener.onPlaybackInfo(mPlaybackInfo);
+        }
+    }
+
+    /**
+     * Returns the frame information to be paired with the image of the
+     * indicated sequence number, or null. Pending frame information of an
+     * earlier image is dropped, as its rectangles do not match this image.
+     *
+     * @param sequenceNumber
+     * @return
+     */
+    private LiveviewFrameInfo takeFrameInfo(int sequenceNumber) {
+        if (!mFrameInfoPending) {
+            return null;
+        }
+        int delta = (sequenceNumber - mFrameInfo.getSequenceNumber()) & 0xFFFF;
+        if (delta == 0) {
+            mFrameInfoPending = false;
+            return mFrameInfo;
+        }
+        if (delta < 0x8000) {
+            // For an image which has already passed.
+            mFrameInfoPending = false;
+        }
+        return null;
+    }
+
+    /**
+     * Reads Common Header and the start code of Payload Header. In recovery
+     * mode, the stream is scanned forward until a valid pair of them is found.
+     *
+     * @throws IOException
+     */
+    private void readPacketStart() throws IOException {
+        byte[] commonHeader = mCommonHeader;
+        byte[] payloadHeader = mPayloadHeader;
+        if (readFully(mInputStream, commonHeader, 0, COMMON_HEADER_LENGTH)
+                != COMMON_HEADER_LENGTH) {
+            throw new IOException("Cannot read stream for common header.");
+        }
+        if (commonHeader[0] != (byte) 0xFF && !mResyncEnabled) {
+            throw new IOException("Unexpected data format. (Start byte)");
+        }
+        if (readFully(mInputStream, payloadHeader, 0, START_CODE_LENGTH) != START_CODE_LENGTH) {
+            throw new IOException("Cannot read stream for payload header.");
+        }
+        if (!isStartCode(payloadHeader, 0) && !mResyncEnabled) {
+            throw new IOException("Unexpected data format. (Start code)");
+        }
+        if (mResyncEnabled && (commonHeader[0] != (byte) 0xFF
+                || !isKnownPayloadType(commonHeader[1]) || !isStartCode(payloadHeader, 0))) {
+            resynchronize();
+        }
+    }
+
+    /**
+     * Scans the stream forward byte by byte until Common Header of a known
+     * payload type followed by the start code appears.
+     *
+     * @throws IOException
+     */
+    private void resynchronize() throws IOException {
+        mResyncCount++;
+        byte[] window = mResyncWindow;
+        System.arraycopy(mCommonHeader, 0, window, 0, COMMON_HEADER_LENGTH);
+        System.arraycopy(mPayloadHeader, 0, window, COMMON_HEADER_LENGTH, START_CODE_LENGTH);
+
+        long skipped = 0;
+        while (window[0] != (byte) 0xFF || !isKnownPayloadType(window[1])
+                || !isStartCode(window, COMMON_HEADER_LENGTH)) {
+            int b = mInputStream.read();
+            if (b < 0) {
+                throw new IOException("Cannot read stream while resynchronizing.");
+            }
+            System.arraycopy(window, 1, window, 0, window.length - 1);
+            window[window.length - 1] = (byte) b;
+            skipped++;
+        }
+        mSkippedBytes += skipped;
+
+        System.arraycopy(window, 0, mCommonHeader, 0, COMMON_HEADER_LENGTH);
+        System.arraycopy(window, COMMON_HEADER_LENGTH, mPayloadHeader, 0, START_CODE_LENGTH);
+    }
+
+    /**
+     * Checks if the indicated bytes are the start code of Payload Header.
+     *
+     * @param data
+     * @param offset
+     * @return
+     */
+    private static boolean isStartCode(byte[] data, int offset) {
+        return data[offset] == (byte) 0x24 && data[offset + 1] == (byte) 0x35
+                && data[offset + 2] == (byte) 0x68 && data[offset + 3] == (byte) 0x79;
+    }
+
+    /**
+     * Checks if the indicated payload type is defined by Camera Remote API.
+     *
+     * @param payloadType
+     * @return
+     */
+    private static boolean isKnownPayloadType(byte payloadType) {
+        return payloadType == (byte) 0x01 || payloadType == (byte) 0x02
+                || payloadType == (byte) 0x11 || payloadType == (byte) 0x12;
+    }
+
+    /**
+     * Checks if the Payload data starts with JPEG SOI marker.
+     *
+     * @param payload
+     * @return
+     */
+    private static boolean isJpeg(Payload payload) {
+        return 2 <= payload.jpegLength && payload.jpegData[0] == (byte) 0xFF
+                && payload.jpegData[1] == (byte) 0xD8;
+    }
+
+    /**
+     * Reads Payload Header and Payload data of a liveview image Packet which
+     * may hold multiple frames. The frames are not copied but exposed as
+     * views into the jpeg data container of the returned Payload. A header
+     * without frame count is read as a single frame payload.
+     *
+     * @return Payload data of sliced Packet
+     * @throws IOException generic errors or exception.
+     */
     public Payload readLiveviewPayload() throws IOException {
 
         if (mInputStream != null) {
             // Payload Header
-            int readLength = 128;
-            byte[] payloadHeader = readBytes(mInputStream, readLength);
-            if (payloadHeader == null || payloadHeader.length != readLength) {
-                throw new IOException("Cannot read stream for payload header.");
-            }
-            if (payloadHeader[0] != (byte) 0x24 || payloadHeader[1] != (byte) 0x35
-                    || payloadHeader[2] != (byte) 0x68
-                    || payloadHeader[3] != (byte) 0x79) {
-                throw new IOException("Unexpected data format. (Start code)");
-            }
+            byte[] payloadHeader = readPayloadHeader();
             int frameSize = bytesToInt(payloadHeader, 4, 3);
             int paddingSize = bytesToInt(payloadHeader, 7, 1);
-
-            // Payload Data
-            byte[] frameData = readBytes(mInputStream, frameSize);
-            byte[] paddingData = readBytes(mInputStream, paddingSize);
-
             int frameCount = bytesToInt(payloadHeader, 10, 2);
             int singleFrameSize = bytesToInt(payloadHeader, 12, 2);
+            if (frameCount == 0 && singleFrameSize == 0) {
+                frameCount = 1;
+                singleFrameSize = frameSize;
+            }
 
-            if (frameData == null || frameData.length != frameCount * singleFrameSize) {
+            // Payload Data
+            Payload payload = readPayloadData(frameSize, paddingSize, null, frameCount,
+                    singleFrameSize);
+
+            if (payload.jpegLength != frameCount * singleFrameSize) {
+                payload.release();
                 throw new IOException("Unexpected data format.(Frame information data)");
             }
 
-            return new Payload(frameData, paddingData);
+            return payload;
         }
         return null;
     }
@@ -182,28 +880,77 @@ public class SimpleLiveviewSlicer {
 
         if (mInputStream != null) {
             // Payload Header
-            int readLength = 128;
-            byte[] payloadHeader = readBytes(mInputStream, readLength);
-            if (payloadHeader == null || payloadHeader.length != readLength) {
-                throw new IOException("Cannot read stream for payload header.");
-            }
-            if (payloadHeader[0] != (byte) 0x24 || payloadHeader[1] != (byte) 0x35
-                    || payloadHeader[2] != (byte) 0x68
-                    || payloadHeader[3] != (byte) 0x79) {
-                throw new IOException("Unexpected data format. (Start code)");
-            }
+            byte[] payloadHeader = readPayloadHeader();
             int jpegSize = bytesToInt(payloadHeader, 4, 3);
             int paddingSize = bytesToInt(payloadHeader, 7, 1);
 
             // Payload Data
-            byte[] jpegData = readBytes(mInputStream, jpegSize);
-            byte[] paddingData = readBytes(mInputStream, paddingSize);
-
-            return new Payload(jpegData, paddingData);
+            return readPayloadData(jpegSize, paddingSize, null, 1, jpegSize);
         }
         return null;
     }
 
+    /**
+     * Reads Payload Header into the internal buffer and checks its start
+     * code.
+     *
+     * @return the internal buffer holding Payload Header
+     * @throws IOException
+     */
+    private byte[] readPayloadHeader() throws IOException {
+        byte[] payloadHeader = mPayloadHeader;
+        if (readFully(mInputStream, payloadHeader, 0, PAYLOAD_HEADER_LENGTH)
+                != PAYLOAD_HEADER_LENGTH) {
+            throw new IOException("Cannot read stream for payload header.");
+        }
+        if (!isStartCode(payloadHeader, 0)) {
+            throw new IOException("Unexpected data format. (Start code)");
+        }
+        return payloadHeader;
+    }
+
+    /**
+     * Reads Payload Data following Payload Header. In pooled mode, the data
+     * is read into arrays borrowed from the pool. Sequence number and time
+     * stamp are taken from the last Common Header.
+     *
+     * @param dataSize
+     * @param paddingSize
+     * @param frameInfo
+     * @param frameCount      number of frames in the data
+     * @param singleFrameSize size of each frame
+     * @return
+     * @throws IOException
+     */
+    private Payload readPayloadData(int dataSize, int paddingSize, LiveviewFrameInfo frameInfo,
+                                    int frameCount, int singleFrameSize) throws IOException {
+        int sequenceNumber = bytesToInt(mCommonHeader, 2, 2);
+        long timestamp = bytesToInt(mCommonHeader, 4, 4) & 0xFFFFFFFFL;
+        ByteArrayPool pool = mBufferPool;
+        if (pool == null) {
+            byte[] data = new byte[dataSize];
+            byte[] padding = new byte[paddingSize];
+            int dataLength = readFully(mInputStream, data, 0, dataSize);
+            int paddingLength = readFully(mInputStream, padding, 0, paddingSize);
+            if (dataLength < dataSize || paddingLength < paddingSize) {
+                throw new IOException("Cannot read stream for payload data.");
+            }
+            return new Payload(sequenceNumber, timestamp, data, dataSize, padding, paddingSize,
+                    null, frameInfo, frameCount, singleFrameSize);
+        }
+
+        byte[] data = pool.acquire(dataSize);
+        byte[] padding = pool.acquire(paddingSize);
+        Payload payload = new Payload(sequenceNumber, timestamp, data, dataSize, padding,
+                paddingSize, pool, frameInfo, frameCount, singleFrameSize);
+        if (readFully(mInputStream, data, 0, dataSize) < dataSize
+                || readFully(mInputStream, padding, 0, paddingSize) < paddingSize) {
+            payload.release();
+            throw new IOException("Cannot read stream for payload data.");
+        }
+        return payload;
+    }
+
     /**
      * Converts byte array to int.
      *
@@ -221,29 +968,46 @@ public class SimpleLiveviewSlicer {
     }
 
     /**
-     * Reads byte array from the indicated input stream.
+     * Reads bytes from the indicated input stream until the indicated length
+     * is filled or the stream reaches its end.
      *
      * @param in
+     * @param buffer
+     * @param offset
      * @param length
-     * @return
+     * @return number of bytes actually read
      * @throws IOException
      */
-    private static byte[] readBytes(InputStream in, int length) throws IOException {
-        ByteArrayOutputStream tmpByteArray = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        while (true) {
-            int trialReadlen = Math.min(buffer.length, length - tmpByteArray.size());
-            int readlen = in.read(buffer, 0, trialReadlen);
+    private static int readFully(InputStream in, byte[] buffer, int offset, int length)
+            throws IOException {
+        int total = 0;
+        while (total < length) {
+            int readlen = in.read(buffer, offset + total, length - total);
             if (readlen < 0) {
                 break;
             }
-            tmpByteArray.write(buffer, 0, readlen);
-            if (length <= tmpByteArray.size()) {
-                break;
+            total += readlen;
+        }
+        return total;
+    }
+
+    /**
+     * Skips bytes of the indicated input stream.
+     *
+     * @param in
+     * @param length
+     * @throws IOException
+     */
+    private static void skipFully(InputStream in, long length) throws IOException {
+        while (0 < length) {
+            long skipped = in.skip(length);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new IOException("Cannot skip stream.");
+                }
+                skipped = 1;
             }
+            length -= skipped;
         }
-        byte[] ret = tmpByteArray.toByteArray();
-        tmpByteArray.close();
-        return ret;
     }
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+/**
+ * Playback information carried by Streaming Playback Information Packets
+ * (payload type 0x12). The slicer reuses one instance for all Packets, so a
+ * listener must copy the values it wants to keep.
+ */
+public final class StreamingPlaybackInfo {
+
+    private int mSequenceNumber = -1;
+
+    private long mTimestamp;
+
+    private int mDataVersion;
+
+    private long mDurationMillis;
+
+    private long mPositionMillis;
+
+    /**
+     * Returns the sequence number of the Packet.
+     *
+     * @return sequence number
+     */
+    public int getSequenceNumber() {
+        return mSequenceNumber;
+    }
+
+    /**
+     * Returns the time stamp of the Packet.
+     *
+     * @return time stamp in Common Header
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Returns the data version. The high order byte is the major version and
+     * the low order byte is the minor version.
+     *
+     * @return data version, such as 0x0100 for version 1.0
+     */
+    public int getDataVersion() {
+        return mDataVersion;
+    }
+
+    /**
+     * Returns the duration of the content.
+     *
+     * @return duration in milliseconds
+     */
+    public long getDurationMillis() {
+        return mDurationMillis;
+    }
+
+    /**
+     * Returns the current playback position.
+     *
+     * @return playback position in milliseconds
+     */
+    public long getPositionMillis() {
+        return mPositionMillis;
+    }
+
+    /**
+     * Checks if the playback position has reached the end of the content.
+     *
+     * @return true if the playback is completed
+     */
+    public boolean isCompleted() {
+        return 0 < mDurationMillis && mDurationMillis <= mPositionMillis;
+    }
+
+    void set(int sequenceNumber, long timestamp, int dataVersion, long durationMillis,
+             long positionMillis) {
+        mSequenceNumber = sequenceNumber;
+        mTimestamp = timestamp;
+        mDataVersion = dataVersion;
+        mDurationMillis = durationMillis;
+        mPositionMillis = positionMillis;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Sony Corporation
+ */
+
+package com.benio.sonycameradsc_qx100.utils;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A {@link FrameSink} recording a timelapse of liveview into a Motion JPEG
+ * AVI file with {@link MjpegAviWriter}. A frame is kept at each capture
+ * interval, measured by the time stamps of the frames, and its JPEG data is
+ * written as it is. Recording stops by itself when writing fails or the file
+ * is full. This is meant to be added with {@link FrameSink.Policy#DROP}, so
+ * that disk writes never delay the stream.
+ */
+public final class TimelapseRecorder implements FrameSink {
+
+    private static final String TAG = TimelapseRecorder.class.getSimpleName();
+
+    private final MjpegAviWriter mWriter;
+
+    private final long mIntervalMillis;
+
+    private long mLastTimestamp;
+
+    private boolean mStopped;
+
+    /**
+     * Constructor. The file is created at once.
+     *
+     * @param file
+     * @param intervalMillis  time between captured frames
+     * @param frameRate       frames per second when played
+     * @param expectedFrames  number of frames the index is allocated for
+     * @throws IOException
+     */
+    public TimelapseRecorder(File file, long intervalMillis, int frameRate, int expectedFrames)
+            throws IOException {
+        mIntervalMillis = intervalMillis;
+        mWriter = new MjpegAviWriter(file, frameRate, expectedFrames);
+    }
+
+    @Override
+    public synchronized void onFrame(SimpleLiveviewSlicer.Payload payload) {
+        if (mStopped) {
+            return;
+        }
+        // Cast to int for wrap around of 32 bit time stamps.
+        if (0 < mWriter.getFrameCount()
+                && (int) (payload.timestamp - mLastTimestamp) < mIntervalMillis) {
+            return;
+        }
+        int frameIndex = payload.frameCount - 1;
+        try {
+            if (!mWriter.writeFrame(payload.jpegData, payload.getFrameOffset(frameIndex),
+                    payload.getFrameLength(frameIndex))) {
+                Log.w(TAG, "Timelapse file is full.");
+                stop();
+                return;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write timelapse: " + e.getMessage());
+            stop();
+            return;
+        }
+        mLastTimestamp = payload.timestamp;
+    }
+
+    /**
+     * Returns the number of frames recorded.
+     *
+     * @return
+     */
+    public synchronized int getFrameCount() {
+        return mWriter.getFrameCount();
+    }
+
+    /**
+     * Finishes the file. Frames arriving after this are ignored.
+     */
+    public synchronized void stop() {
+        if (mStopped) {
+            return;
+        }
+        mStopped = true;
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to finish timelapse: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.benio.sonycameradsc_qx100;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class HardwareDecodePathTest {
+
+    /**
+     * A decoder recording calls, which can be made unavailable or failing.
+     */
+    private static final class FakeFrameDecoder implements FrameDecoder {
+        boolean available = true;
+
+        boolean failing;
+
+        int configureCount;
+
+        int configuredWidth;
+
+        int configuredHeight;
+
+        int decodeCount;
+
+        int releaseCount;
+
+        @Override
+        public boolean configure(int width, int height) {
+            configureCount++;
+            configuredWidth = width;
+            configuredHeight = height;
+            return available;
+        }
+
+        @Override
+        public void decode(byte[] data, int offset, int length) throws IOException {
+            if (failing) {
+                throw new IOException("fake failure");
+            }
+            decodeCount++;
+        }
+
+        @Override
+        public void release() {
+            releaseCount++;
+        }
+    }
+
+    private FakeFrameDecoder mDecoder;
+
+    private HardwareDecodePath mPath;
+
+    @Before
+    public void setUp() {
+        mDecoder = new FakeFrameDecoder();
+        mPath = new HardwareDecodePath(mDecoder);
+    }
+
+    private static byte[] jpeg(int width, int height) {
+        byte[] data = new byte[32];
+        data[0] = (byte) 0xFF;
+        data[1] = (byte) 0xD8;
+        // SOF0
+        data[2] = (byte) 0xFF;
+        data[3] = (byte) 0xC0;
+        data[5] = 17;
+        data[6] = 8;
+        data[7] = (byte) (height >> 8);
+        data[8] = (byte) height;
+        data[9] = (byte) (width >> 8);
+        data[10] = (byte) width;
+        return data;
+    }
+
+    @Test
+    public void render_configuresOnceForSameSize() {
+        byte[] frame = jpeg(640, 480);
+        assertTrue(mPath.render(frame, 0, frame.length));
+        assertTrue(mPath.render(frame, 0, frame.length));
+
+        assertEquals(1, mDecoder.configureCount);
+        assertEquals(640, mDecoder.configuredWidth);
+        assertEquals(480, mDecoder.configuredHeight);
+        assertEquals(2, mDecoder.decodeCount);
+        assertFalse(mPath.isFallenBack());
+    }
+
+    @Test
+    public void render_reconfiguresOnSizeChange() {
+        byte[] small = jpeg(640, 480);
+        byte[] large = jpeg(1024, 768);
+        mPath.render(small, 0, small.length);
+        assertTrue(mPath.render(large, 0, large.length));
+
+        assertEquals(2, mDecoder.configureCount);
+        assertEquals(1, mDecoder.releaseCount);
+        assertEquals(1024, mDecoder.configuredWidth);
+        assertEquals(768, mDecoder.configuredHeight);
+    }
+
+    @Test
+    public void render_fallsBackWhenUnavailable() {
+        mDecoder.available = false;
+        byte[] frame = jpeg(640, 480);
+        assertFalse(mPath.render(frame, 0, frame.length));
+        assertTrue(mPath.isFallenBack());
+
+        // The decoder is not tried again.
+        mDecoder.available = true;
+        assertFalse(mPath.render(frame, 0, frame.length));
+        assertEquals(1, mDecoder.configureCount);
+        assertEquals(0, mDecoder.decodeCount);
+    }
+
+    @Test
+    public void render_fallsBackAndReleasesOnFailure() {
+        byte[] frame = jpeg(640, 480);
+        assertTrue(mPath.render(frame, 0, frame.length));
+        mDecoder.failing = true;
+        assertFalse(mPath.render(frame, 0, frame.length));
+
+        assertTrue(mPath.isFallenBack());
+        assertEquals(1, mDecoder.releaseCount);
+        mPath.release();
+        assertEquals(1, mDecoder.releaseCount);
+    }
+
+    @Test
+    public void render_fallsBackWhenReconfigureAfterReleaseIsRefused() {
+        byte[] frame = jpeg(640, 480);
+        assertTrue(mPath.render(frame, 0, frame.length));
+        mPath.release();
+        assertEquals(1, mDecoder.releaseCount);
+
+        // The surface is no longer accepted, as after canvas drawing.
+        mDecoder.available = false;
+        assertFalse(mPath.render(frame, 0, frame.length));
+        assertTrue(mPath.isFallenBack());
+        assertEquals(2, mDecoder.configureCount);
+        assertEquals(1, mDecoder.decodeCount);
+
+        // Neither tried nor released again.
+        mDecoder.available = true;
+        assertFalse(mPath.render(frame, 0, frame.length));
+        assertEquals(2, mDecoder.configureCount);
+        mPath.release();
+        assertEquals(1, mDecoder.releaseCount);
+    }
+
+    @Test
+    public void render_skipsBrokenFrame() {
+        byte[] broken = new byte[32];
+        assertTrue(mPath.render(broken, 0, broken.length));
+
+        assertEquals(0, mDecoder.configureCount);
+        assertEquals(0, mDecoder.decodeCount);
+        assertFalse(mPath.isFallenBack());
+    }
+
+    @Test
+    public void render_readsFrameAtOffset() {
+        byte[] frame = jpeg(320, 240);
+        byte[] container = new byte[frame.length + 100];
+        System.arraycopy(frame, 0, container, 50, frame.length);
+        assertTrue(mPath.render(container, 50, frame.length));
+
+        assertEquals(320, mDecoder.configuredWidth);
+        assertEquals(240, mDecoder.configuredHeight);
+    }
+
+    @Test
+    public void release_releasesConfiguredDecoderOnce() {
+        mPath.release();
+        assertEquals(0, mDecoder.releaseCount);
+
+        byte[] frame = jpeg(640, 480);
+        mPath.render(frame, 0, frame.length);
+        mPath.release();
+        mPath.release();
+        assertEquals(1, mDecoder.releaseCount);
+    }
+}
@@ -0,0 +1,123 @@
+package com.benio.sonycameradsc_qx100;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SimpleStreamSurfaceViewTest {
+
+    private static final float DELTA = 1e-4f;
+
+    // Rect methods are stubs in unit tests, so fields are set directly.
+    private static Rect rect(int left, int top, int right, int bottom) {
+        Rect rect = new Rect();
+        rect.left = left;
+        rect.top = top;
+        rect.right = right;
+        rect.bottom = bottom;
+        return rect;
+    }
+
+    private static void assertRect(int left, int top, int right, int bottom, Rect rect) {
+        assertEquals(left, rect.left);
+        assertEquals(top, rect.top);
+        assertEquals(right, rect.right);
+        assertEquals(bottom, rect.bottom);
+    }
+
+    @Test
+    public void computeRegionCentersRegion() {
+        Rect region = new Rect();
+        SimpleStreamSurfaceView.computeRegion(640, 480, 2f, 0.5f, 0.5f, region);
+        assertRect(160, 120, 480, 360, region);
+    }
+
+    @Test
+    public void computeRegionKeepsAspectRatio() {
+        Rect region = new Rect();
+        SimpleStreamSurfaceView.computeRegion(1024, 576, 4f, 0.3f, 0.6f, region);
+        assertEquals(256, region.right - region.left);
+        assertEquals(144, region.bottom - region.top);
+    }
+
+    @Test
+    public void computeRegionStaysInsideFrame() {
+        Rect region = new Rect();
+        SimpleStreamSurfaceView.computeRegion(640, 480, 2f, 0f, 0f, region);
+        assertRect(0, 0, 320, 240, region);
+
+        SimpleStreamSurfaceView.computeRegion(640, 480, 2f, 1f, 1f, region);
+        assertRect(320, 240, 640, 480, region);
+    }
+
+    @Test
+    public void computeRegionOfWholeFrame() {
+        Rect region = new Rect();
+        SimpleStreamSurfaceView.computeRegion(640, 480, 1f, 0.2f, 0.8f, region);
+        assertRect(0, 0, 640, 480, region);
+    }
+
+    @Test
+    public void computeRegionIsNeverEmpty() {
+        Rect region = new Rect();
+        SimpleStreamSurfaceView.computeRegion(4, 4, 100f, 0.5f, 0.5f, region);
+        assertEquals(1, region.right - region.left);
+        assertEquals(1, region.bottom - region.top);
+    }
+
+    @Test
+    public void mapViewToFrameOfWholeFrame() {
+        float[] position = new float[2];
+        // 640x480 frame fills a 640x480 view.
+        assertTrue(SimpleStreamSurfaceView.mapViewToFrame(160, 360, 640, 480,
+                rect(0, 0, 640, 480), 640, 480, position));
+        assertEquals(0.25f, position[0], DELTA);
+        assertEquals(0.75f, position[1], DELTA);
+    }
+
+    @Test
+    public void mapViewToFrameThroughLetterbox() {
+        float[] position = new float[2];
+        // 640x480 frame is shown 800x600 in the middle of a 1000x600 view.
+        assertTrue(SimpleStreamSurfaceView.mapViewToFrame(100, 300, 1000, 600,
+                rect(0, 0, 640, 480), 640, 480, position));
+        assertEquals(0f, position[0], DELTA);
+        assertEquals(0.5f, position[1], DELTA);
+
+        assertTrue(SimpleStreamSurfaceView.mapViewToFrame(900, 0, 1000, 600,
+                rect(0, 0, 640, 480), 640, 480, position));
+        assertEquals(1f, position[0], DELTA);
+        assertEquals(0f, position[1], DELTA);
+    }
+
+    @Test
+    public void mapViewToFrameThroughRegion() {
+        float[] position = new float[2];
+        // The right half of the region shown magnified by 2.
+        assertTrue(SimpleStreamSurfaceView.mapViewToFrame(480, 240, 640, 480,
+                rect(160, 120, 480, 360), 640, 480, position));
+        assertEquals(0.625f, position[0], DELTA);
+        assertEquals(0.5f, position[1], DELTA);
+    }
+
+    @Test
+    public void mapViewToFrameClampsIntoFrame() {
+        float[] position = new float[2];
+        // Touched on the black band left of the letterboxed frame.
+        assertTrue(SimpleStreamSurfaceView.mapViewToFrame(10, 300, 1000, 600,
+                rect(0, 0, 640, 480), 640, 480, position));
+        assertEquals(0f, position[0], DELTA);
+        assertEquals(0.5f, position[1], DELTA);
+    }
+
+    @Test
+    public void mapViewToFrameWithoutViewSize() {
+        float[] position = {0.5f, 0.5f};
+        assertFalse(SimpleStreamSurfaceView.mapViewToFrame(10, 10, 0, 0,
+                rect(0, 0, 640, 480), 640, 480, position));
+        assertEquals(0.5f, position[0], DELTA);
+        assertEquals(0.5f, position[1], DELTA);
+    }
+}
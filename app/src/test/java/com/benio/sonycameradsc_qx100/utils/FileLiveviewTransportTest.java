@@ -0,0 +1,126 @@
+package com.benio.sonycameradsc_qx100.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FileLiveviewTransportTest {
+
+    private static final int FRAMES = 10;
+
+    private static final long INTERVAL_NANOS = 30 * 1000000L;
+
+    private File mCaptureFile;
+
+    private File mIndexFile;
+
+    private List<byte[]> mJpegs;
+
+    @Before
+    public void setUp() throws IOException {
+        mCaptureFile = File.createTempFile("liveview", ".dat");
+        mIndexFile = LiveviewRecorder.getIndexFile(mCaptureFile);
+        mJpegs = MjpegAviWriterTest.recordCapture(mCaptureFile, FRAMES, 33);
+    }
+
+    @After
+    public void tearDown() {
+        mCaptureFile.delete();
+        mIndexFile.delete();
+    }
+
+    /**
+     * Writes an index as {@link LiveviewRecorder} does, with Packets arriving
+     * at a fixed interval.
+     */
+    private void writeIndex(long magic) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mIndexFile));
+        try {
+            out.writeLong(magic);
+            out.writeLong(System.currentTimeMillis());
+            long offset = 0;
+            for (int i = 0; i < FRAMES; i++) {
+                out.writeLong(offset);
+                out.writeLong(i * INTERVAL_NANOS);
+                // Common Header, Payload Header, data and padding.
+                offset += 8 + 128 + mJpegs.get(i).length + i % 4;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Replays the capture, checking every frame.
+     *
+     * @return nanoseconds from the start to the last frame
+     */
+    private long replay(String url) throws IOException {
+        SimpleLiveviewSlicer slicer = new SimpleLiveviewSlicer();
+        slicer.open(url);
+        // Pacing starts at the first read.
+        long startNanos = System.nanoTime();
+        try {
+            for (int i = 0; i < FRAMES; i++) {
+                SimpleLiveviewSlicer.Payload payload = slicer.nextPayload();
+                assertEquals(i, payload.sequenceNumber);
+                assertEquals(i * 33, payload.timestamp);
+                assertEquals(mJpegs.get(i).length, payload.jpegLength);
+                for (int j = 0; j < payload.jpegLength; j++) {
+                    assertEquals(mJpegs.get(i)[j], payload.jpegData[j]);
+                }
+            }
+        } finally {
+            slicer.close();
+        }
+        return System.nanoTime() - startNanos;
+    }
+
+    @Test
+    public void pacesReplayByIndex() throws IOException {
+        writeIndex(LiveviewRecorder.INDEX_MAGIC);
+        long elapsed = replay(mCaptureFile.toURI().toString());
+        // Never earlier than recorded. Later is allowed for a busy machine.
+        assertTrue("elapsed " + elapsed, (FRAMES - 1) * INTERVAL_NANOS <= elapsed);
+    }
+
+    @Test
+    public void replaysFastWhenRequested() throws IOException {
+        writeIndex(LiveviewRecorder.INDEX_MAGIC);
+        long elapsed = replay(mCaptureFile.toURI() + "?timing=fast");
+        assertTrue("elapsed " + elapsed, elapsed < (FRAMES - 1) * INTERVAL_NANOS);
+    }
+
+    @Test
+    public void replaysWithoutIndex() throws IOException {
+        replay(mCaptureFile.toURI().toString());
+    }
+
+    @Test
+    public void rejectsBrokenIndex() throws IOException {
+        writeIndex(0);
+        FileLiveviewTransport transport = new FileLiveviewTransport();
+        try {
+            transport.open(mCaptureFile.toURI().toString());
+            fail();
+        } catch (IOException e) {
+            // expected
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void rejectsOtherSchemes() {
+        assertFalse(FileLiveviewTransport.isFileUrl("http://192.168.122.1:8080/liveview"));
+        assertTrue(FileLiveviewTransport.isFileUrl("FILE:///sdcard/liveview.dat"));
+    }
+}
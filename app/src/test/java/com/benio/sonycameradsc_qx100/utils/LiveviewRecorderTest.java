@@ -0,0 +1,144 @@
+package com.benio.sonycameradsc_qx100.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class LiveviewRecorderTest {
+
+    private File mCaptureFile;
+
+    private File mRecordingFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mCaptureFile = File.createTempFile("liveview", ".dat");
+        mRecordingFile = File.createTempFile("recording", ".dat");
+    }
+
+    @After
+    public void tearDown() {
+        mCaptureFile.delete();
+        mRecordingFile.delete();
+        LiveviewRecorder.getIndexFile(mRecordingFile).delete();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads the index file as offsets at even positions and arrival times at
+     * odd positions.
+     */
+    private static long[] readIndex(File indexFile) throws IOException {
+        long length = indexFile.length();
+        assertEquals(0, (length - LiveviewRecorder.INDEX_HEADER_LENGTH)
+                % LiveviewRecorder.INDEX_ENTRY_LENGTH);
+        long[] entries = new long[(int) ((length - LiveviewRecorder.INDEX_HEADER_LENGTH) / 8)];
+        DataInputStream in = new DataInputStream(new FileInputStream(indexFile));
+        try {
+            assertEquals(LiveviewRecorder.INDEX_MAGIC, in.readLong());
+            in.readLong(); // start time
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = in.readLong();
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    @Test
+    public void recordsAcrossSegments() throws IOException {
+        byte[] source = new byte[10000];
+        for (int i = 0; i < source.length; i++) {
+            source[i] = (byte) (i * 31);
+        }
+        // Segments far smaller than the data and the index.
+        LiveviewRecorder recorder = new LiveviewRecorder(mRecordingFile, 1000, 64);
+        recorder.open();
+        InputStream in = recorder.tee(new ByteArrayInputStream(source));
+        byte[] buffer = new byte[777];
+        int position = 0;
+        int packets = 0;
+        while (position < source.length) {
+            // One packet of each kind of read, marked after its first byte.
+            assertEquals(source[position] & 0xFF, in.read());
+            position++;
+            recorder.markPacket(1);
+            packets++;
+            position += Math.max(0, in.read(buffer, 0, buffer.length));
+            long skipped = in.skip(300);
+            position += skipped;
+        }
+        assertEquals(source.length, recorder.getWrittenBytes());
+        assertEquals(packets, recorder.getPacketCount());
+        recorder.close();
+
+        assertArrayEquals(source, readFile(mRecordingFile));
+        long[] entries = readIndex(LiveviewRecorder.getIndexFile(mRecordingFile));
+        assertEquals(packets * 2, entries.length);
+        long previousTime = 0;
+        for (int i = 0; i < packets; i++) {
+            assertEquals(i * (1 + 777 + 300), entries[i * 2]);
+            assertTrue(previousTime <= entries[i * 2 + 1]);
+            previousTime = entries[i * 2 + 1];
+        }
+    }
+
+    @Test
+    public void indexesPacketsReadBySlicer() throws IOException {
+        MjpegAviWriterTest.recordCapture(mCaptureFile, 20, 33);
+        SimpleLiveviewSlicer slicer = new SimpleLiveviewSlicer();
+        slicer.setRecordingFile(mRecordingFile);
+        slicer.open(mCaptureFile.toURI() + "?timing=fast");
+        try {
+            for (int i = 0; i < 20; i++) {
+                assertEquals(i, slicer.nextPayload().sequenceNumber);
+            }
+        } finally {
+            slicer.close();
+        }
+
+        byte[] capture = readFile(mCaptureFile);
+        byte[] recording = readFile(mRecordingFile);
+        assertArrayEquals(capture, recording);
+        long[] entries = readIndex(LiveviewRecorder.getIndexFile(mRecordingFile));
+        assertEquals(20 * 2, entries.length);
+        for (int i = 0; i < 20; i++) {
+            int offset = (int) entries[i * 2];
+            assertEquals((byte) 0xFF, recording[offset]);
+            assertEquals((byte) 0x01, recording[offset + 1]);
+            assertEquals(i, ((recording[offset + 2] & 0xFF) << 8) | (recording[offset + 3] & 0xFF));
+            assertEquals((byte) 0x24, recording[offset + 8]);
+        }
+    }
+
+    @Test
+    public void closesEmptyRecording() throws IOException {
+        LiveviewRecorder recorder = new LiveviewRecorder(mRecordingFile, 1000, 64);
+        recorder.open();
+        recorder.close();
+
+        assertEquals(0, mRecordingFile.length());
+        assertEquals(0, readIndex(LiveviewRecorder.getIndexFile(mRecordingFile)).length);
+    }
+}
@@ -0,0 +1,262 @@
+package com.benio.sonycameradsc_qx100.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MjpegAviWriterTest {
+
+    private static final int WIDTH = 640;
+
+    private static final int HEIGHT = 480;
+
+    private File mCaptureFile;
+
+    private File mAviFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mCaptureFile = File.createTempFile("liveview", ".dat");
+        mAviFile = File.createTempFile("timelapse", ".avi");
+    }
+
+    @After
+    public void tearDown() {
+        mCaptureFile.delete();
+        mAviFile.delete();
+    }
+
+    /**
+     * Makes JPEG-like data with a SOF0 segment of the indicated size.
+     */
+    static byte[] makeJpeg(int length, int width, int height, int seed) {
+        byte[] data = new byte[length];
+        data[0] = (byte) 0xFF;
+        data[1] = (byte) 0xD8;
+        data[2] = (byte) 0xFF;
+        data[3] = (byte) 0xC0;
+        data[5] = 17;
+        data[6] = 8;
+        data[7] = (byte) (height >> 8);
+        data[8] = (byte) height;
+        data[9] = (byte) (width >> 8);
+        data[10] = (byte) width;
+        for (int i = 21; i < length - 2; i++) {
+            data[i] = (byte) (i * 7 + seed);
+        }
+        data[length - 2] = (byte) 0xFF;
+        data[length - 1] = (byte) 0xD9;
+        return data;
+    }
+
+    /**
+     * Writes a liveview image Packet as sent by the camera.
+     */
+    static void writePacket(OutputStream out, int sequenceNumber, int timestamp, byte[] jpeg,
+                            int paddingSize) throws IOException {
+        out.write(new byte[]{
+                (byte) 0xFF, 0x01, (byte) (sequenceNumber >> 8), (byte) sequenceNumber,
+                (byte) (timestamp >> 24), (byte) (timestamp >> 16), (byte) (timestamp >> 8),
+                (byte) timestamp});
+        byte[] payloadHeader = new byte[128];
+        payloadHeader[0] = 0x24;
+        payloadHeader[1] = 0x35;
+        payloadHeader[2] = 0x68;
+        payloadHeader[3] = 0x79;
+        payloadHeader[4] = (byte) (jpeg.length >> 16);
+        payloadHeader[5] = (byte) (jpeg.length >> 8);
+        payloadHeader[6] = (byte) jpeg.length;
+        payloadHeader[7] = (byte) paddingSize;
+        out.write(payloadHeader);
+        out.write(jpeg);
+        out.write(new byte[paddingSize]);
+    }
+
+    /**
+     * Records a capture of liveview frames, with odd and even lengths.
+     */
+    static List<byte[]> recordCapture(File file, int frames, int intervalMillis)
+            throws IOException {
+        List<byte[]> jpegs = new ArrayList<byte[]>();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (int i = 0; i < frames; i++) {
+                byte[] jpeg = makeJpeg(1000 + i * 37, WIDTH, HEIGHT, i);
+                jpegs.add(jpeg);
+                writePacket(out, i, i * intervalMillis, jpeg, i % 4);
+            }
+        } finally {
+            out.close();
+        }
+        return jpegs;
+    }
+
+    static SimpleLiveviewSlicer openReplay(File capture) throws IOException {
+        SimpleLiveviewSlicer slicer = new SimpleLiveviewSlicer();
+        slicer.open(capture.toURI() + "?timing=fast");
+        return slicer;
+    }
+
+    /**
+     * Reads the frames of an AVI file through its index, checking the
+     * structure on the way.
+     */
+    static List<byte[]> readAvi(File file, int[] size) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        ByteBuffer avi = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("RIFF", fourCc(avi, 0));
+        assertEquals(bytes.length - 8, avi.getInt(4));
+        assertEquals("AVI ", fourCc(avi, 8));
+        assertEquals("hdrl", fourCc(avi, 20));
+        assertEquals(192, avi.getInt(16));
+        assertEquals("avih", fourCc(avi, 24));
+        assertEquals("strl", fourCc(avi, 96));
+        assertEquals(116, avi.getInt(92));
+        assertEquals("strh", fourCc(avi, 100));
+        assertEquals("vids", fourCc(avi, 108));
+        assertEquals("MJPG", fourCc(avi, 112));
+        assertEquals("strf", fourCc(avi, 164));
+        assertEquals("MJPG", fourCc(avi, 188));
+        int totalFrames = avi.getInt(48);
+        assertEquals(totalFrames, avi.getInt(140));
+        size[0] = avi.getInt(64);
+        size[1] = avi.getInt(68);
+        assertEquals(size[0], avi.getInt(176));
+        assertEquals(size[1], avi.getInt(180));
+
+        assertEquals("LIST", fourCc(avi, 212));
+        assertEquals("movi", fourCc(avi, 220));
+        int moviEnd = 220 + avi.getInt(216);
+        assertEquals("idx1", fourCc(avi, moviEnd));
+        int indexLength = avi.getInt(moviEnd + 4);
+        assertEquals(totalFrames * 16, indexLength);
+        assertEquals(bytes.length, moviEnd + 8 + indexLength);
+
+        List<byte[]> frames = new ArrayList<byte[]>();
+        int expectedChunk = 224;
+        for (int entry = moviEnd + 8; entry < moviEnd + 8 + indexLength; entry += 16) {
+            assertEquals("00dc", fourCc(avi, entry));
+            assertEquals(0x10, avi.getInt(entry + 4));
+            int chunk = 220 + avi.getInt(entry + 8);
+            int length = avi.getInt(entry + 12);
+            assertEquals(expectedChunk, chunk);
+            assertEquals("00dc", fourCc(avi, chunk));
+            assertEquals(length, avi.getInt(chunk + 4));
+            frames.add(Arrays.copyOfRange(bytes, chunk + 8, chunk + 8 + length));
+            expectedChunk = chunk + 8 + length + (length & 1);
+        }
+        assertEquals(moviEnd, expectedChunk);
+        return frames;
+    }
+
+    private static String fourCc(ByteBuffer buffer, int offset) {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) {
+            chars[i] = (char) buffer.get(offset + i);
+        }
+        return new String(chars);
+    }
+
+    @Test
+    public void writesReplayedFramesAsTheyAre() throws IOException {
+        List<byte[]> jpegs = recordCapture(mCaptureFile, 12, 33);
+        SimpleLiveviewSlicer slicer = openReplay(mCaptureFile);
+        MjpegAviWriter writer = new MjpegAviWriter(mAviFile, 25, 12);
+        try {
+            for (int i = 0; i < jpegs.size(); i++) {
+                SimpleLiveviewSlicer.Payload payload = slicer.nextPayload();
+                assertTrue(writer.writeFrame(payload.jpegData, payload.getFrameOffset(0),
+                        payload.getFrameLength(0)));
+                payload.release();
+            }
+        } finally {
+            slicer.close();
+            writer.close();
+        }
+        assertEquals(12, writer.getFrameCount());
+
+        int[] size = new int[2];
+        List<byte[]> frames = readAvi(mAviFile, size);
+        assertEquals(WIDTH, size[0]);
+        assertEquals(HEIGHT, size[1]);
+        assertEquals(jpegs.size(), frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            assertArrayEquals(jpegs.get(i), frames.get(i));
+        }
+    }
+
+    @Test
+    public void growsIndexBeyondExpectedFrames() throws IOException {
+        MjpegAviWriter writer = new MjpegAviWriter(mAviFile, 10, 1);
+        for (int i = 0; i < 9; i++) {
+            byte[] jpeg = makeJpeg(501 + i, 320, 240, i);
+            assertTrue(writer.writeFrame(jpeg, 0, jpeg.length));
+        }
+        writer.close();
+
+        int[] size = new int[2];
+        List<byte[]> frames = readAvi(mAviFile, size);
+        assertEquals(9, frames.size());
+        assertEquals(320, size[0]);
+        assertEquals(240, size[1]);
+        assertArrayEquals(makeJpeg(509, 320, 240, 8), frames.get(8));
+    }
+
+    @Test
+    public void writesFrameFromMiddleOfBuffer() throws IOException {
+        byte[] jpeg = makeJpeg(777, WIDTH, HEIGHT, 3);
+        ByteArrayOutputStream container = new ByteArrayOutputStream();
+        container.write(new byte[33]);
+        container.write(jpeg);
+        container.write(new byte[5]);
+        MjpegAviWriter writer = new MjpegAviWriter(mAviFile, 25, 4);
+        assertTrue(writer.writeFrame(container.toByteArray(), 33, jpeg.length));
+        writer.close();
+
+        List<byte[]> frames = readAvi(mAviFile, new int[2]);
+        assertEquals(1, frames.size());
+        assertArrayEquals(jpeg, frames.get(0));
+    }
+
+    @Test
+    public void closesEmptyFile() throws IOException {
+        MjpegAviWriter writer = new MjpegAviWriter(mAviFile, 25, 16);
+        writer.close();
+        writer.close();
+
+        assertEquals(0, readAvi(mAviFile, new int[2]).size());
+    }
+
+    @Test
+    public void rejectsFramesAfterClose() throws IOException {
+        MjpegAviWriter writer = new MjpegAviWriter(mAviFile, 25, 16);
+        writer.close();
+        byte[] jpeg = makeJpeg(100, WIDTH, HEIGHT, 0);
+        try {
+            writer.writeFrame(jpeg, 0, jpeg.length);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
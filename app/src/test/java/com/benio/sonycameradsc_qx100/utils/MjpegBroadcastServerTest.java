@@ -0,0 +1,265 @@
+package com.benio.sonycameradsc_qx100.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MjpegBroadcastServerTest {
+
+    private static final int FRAMES = 6;
+
+    private File mCaptureFile;
+
+    private List<byte[]> mJpegs;
+
+    private SimpleLiveviewSlicer mSlicer;
+
+    private MjpegBroadcastServer mServer;
+
+    private final List<Socket> mSockets = new ArrayList<Socket>();
+
+    @Before
+    public void setUp() throws IOException {
+        mCaptureFile = File.createTempFile("liveview", ".dat");
+        mJpegs = MjpegAviWriterTest.recordCapture(mCaptureFile, FRAMES, 33);
+        mSlicer = new SimpleLiveviewSlicer();
+        mSlicer.setBufferPool(new ByteArrayPool());
+        mSlicer.open(mCaptureFile.toURI() + "?timing=fast");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Socket socket : mSockets) {
+            socket.close();
+        }
+        if (mServer != null) {
+            mServer.stop();
+        }
+        mSlicer.close();
+        mCaptureFile.delete();
+    }
+
+    private static boolean isReleased(SimpleLiveviewSlicer.Payload payload) {
+        try {
+            payload.retain();
+        } catch (IllegalStateException e) {
+            return true;
+        }
+        payload.release();
+        return false;
+    }
+
+    /**
+     * Offers the next Payloads to a queue, keeping none of them.
+     */
+    private List<SimpleLiveviewSlicer.Payload> offer(MjpegBroadcastServer.FrameQueue queue,
+                                                     int count, boolean[] accepted)
+            throws IOException {
+        List<SimpleLiveviewSlicer.Payload> payloads =
+                new ArrayList<SimpleLiveviewSlicer.Payload>();
+        for (int i = 0; i < count; i++) {
+            SimpleLiveviewSlicer.Payload payload = mSlicer.nextPayload();
+            accepted[i] = queue.offer(payload);
+            payload.release();
+            payloads.add(payload);
+        }
+        return payloads;
+    }
+
+    @Test
+    public void dropOldestKeepsNewestFrames() throws Exception {
+        MjpegBroadcastServer.FrameQueue queue =
+                new MjpegBroadcastServer.FrameQueue(2, MjpegBroadcastServer.DropPolicy.OLDEST);
+        boolean[] accepted = new boolean[4];
+        List<SimpleLiveviewSlicer.Payload> payloads = offer(queue, 4, accepted);
+
+        assertTrue(accepted[0]);
+        assertTrue(accepted[1]);
+        assertFalse(accepted[2]);
+        assertFalse(accepted[3]);
+        assertEquals(2, queue.size());
+        // Dropped frames are released by the queue.
+        assertTrue(isReleased(payloads.get(0)));
+        assertTrue(isReleased(payloads.get(1)));
+
+        SimpleLiveviewSlicer.Payload payload = queue.take();
+        assertSame(payloads.get(2), payload);
+        payload.release();
+        payload = queue.take();
+        assertSame(payloads.get(3), payload);
+        payload.release();
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void dropNewestKeepsQueuedFrames() throws Exception {
+        MjpegBroadcastServer.FrameQueue queue =
+                new MjpegBroadcastServer.FrameQueue(2, MjpegBroadcastServer.DropPolicy.NEWEST);
+        boolean[] accepted = new boolean[4];
+        List<SimpleLiveviewSlicer.Payload> payloads = offer(queue, 4, accepted);
+
+        assertTrue(accepted[0]);
+        assertTrue(accepted[1]);
+        assertFalse(accepted[2]);
+        assertFalse(accepted[3]);
+        assertEquals(2, queue.size());
+        // Arriving frames are never retained.
+        assertTrue(isReleased(payloads.get(2)));
+        assertTrue(isReleased(payloads.get(3)));
+
+        SimpleLiveviewSlicer.Payload payload = queue.take();
+        assertSame(payloads.get(0), payload);
+        payload.release();
+        payload = queue.take();
+        assertSame(payloads.get(1), payload);
+        payload.release();
+    }
+
+    @Test
+    public void closeReleasesQueuedFrames() throws Exception {
+        MjpegBroadcastServer.FrameQueue queue =
+                new MjpegBroadcastServer.FrameQueue(4, MjpegBroadcastServer.DropPolicy.OLDEST);
+        boolean[] accepted = new boolean[3];
+        List<SimpleLiveviewSlicer.Payload> payloads = offer(queue, 3, accepted);
+        assertFalse(isReleased(payloads.get(0)));
+
+        queue.close();
+        for (SimpleLiveviewSlicer.Payload payload : payloads) {
+            assertTrue(isReleased(payload));
+        }
+        assertNull(queue.take());
+
+        SimpleLiveviewSlicer.Payload payload = mSlicer.nextPayload();
+        assertTrue(queue.offer(payload));
+        payload.release();
+        assertTrue(isReleased(payload));
+        assertEquals(0, queue.size());
+    }
+
+    private Socket connect(String path) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), mServer.getPort());
+        mSockets.add(socket);
+        socket.setSoTimeout(5000);
+        if (path != null) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.0\r\n\r\n").getBytes("US-ASCII"));
+            out.flush();
+        }
+        return socket;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Unexpected end of stream.");
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        return line.toString("US-ASCII");
+    }
+
+    /**
+     * Reads header lines up to the empty line, returning the
+     * Content-Length, or -1.
+     */
+    private static int readHeaders(InputStream in) throws IOException {
+        int contentLength = -1;
+        String line;
+        while ((line = readLine(in)).length() != 0) {
+            if (line.startsWith("Content-Length: ")) {
+                contentLength = Integer.parseInt(line.substring(16));
+            }
+        }
+        return contentLength;
+    }
+
+    private void waitForClients(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mServer.getClientCount() != count) {
+            assertTrue("clients connected", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void sendsFramesToClient() throws Exception {
+        mServer = new MjpegBroadcastServer(4, MjpegBroadcastServer.DropPolicy.OLDEST);
+        mServer.start(InetAddress.getLoopbackAddress(), 0);
+        Socket socket = connect("/?queue=8&drop=newest");
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertEquals("HTTP/1.0 200 OK", readLine(in));
+        readHeaders(in);
+        waitForClients(1);
+
+        for (int i = 0; i < 3; i++) {
+            SimpleLiveviewSlicer.Payload payload = mSlicer.nextPayload();
+            mServer.onFrame(payload);
+            payload.release();
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals("--liveviewframe", readLine(in));
+            int length = readHeaders(in);
+            byte[] jpeg = new byte[length];
+            in.readFully(jpeg);
+            assertArrayEquals(mJpegs.get(i), jpeg);
+            assertEquals("", readLine(in));
+        }
+        assertEquals(0, mServer.getDroppedFrameCount());
+    }
+
+    @Test
+    public void refusesBadRequest() throws Exception {
+        mServer = new MjpegBroadcastServer(4, MjpegBroadcastServer.DropPolicy.OLDEST);
+        mServer.start(InetAddress.getLoopbackAddress(), 0);
+        Socket socket = connect("/?queue=100");
+        assertEquals("HTTP/1.0 400 Bad Request", readLine(socket.getInputStream()));
+        assertEquals(0, mServer.getClientCount());
+    }
+
+    @Test
+    public void closesConnectionsOverLimit() throws Exception {
+        mServer = new MjpegBroadcastServer(4, MjpegBroadcastServer.DropPolicy.OLDEST);
+        mServer.start(InetAddress.getLoopbackAddress(), 0);
+        // Connections still sending the request count too.
+        for (int i = 0; i < 8; i++) {
+            connect(null);
+        }
+        Socket refused = connect(null);
+        long start = System.currentTimeMillis();
+        assertEquals(-1, refused.getInputStream().read());
+        // Closed at once, not after the request timeout.
+        assertTrue(System.currentTimeMillis() - start < 2500);
+
+        // A slot is freed when a connection ends.
+        mSockets.get(0).close();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            Socket socket = connect("/");
+            InputStream in = socket.getInputStream();
+            int c = in.read();
+            if (c == 'H') {
+                assertEquals("TTP/1.0 200 OK", readLine(in));
+                break;
+            }
+            assertTrue("slot freed", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.benio.sonycameradsc_qx100.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MotionDetectorTest {
+
+    private static int gray(int value) {
+        return 0xff000000 | value << 16 | value << 8 | value;
+    }
+
+    private static int[] fill(int width, int height, int value) {
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, gray(value));
+        return pixels;
+    }
+
+    @Test
+    public void computeBlockLuminanceOfGray() {
+        int[] pixels = fill(16, 8, 100);
+        int[] blocks = new int[2];
+        MotionDetector.computeBlockLuminance(pixels, 16, 2, 1, 8, blocks);
+        assertEquals(100, blocks[0]);
+        assertEquals(100, blocks[1]);
+    }
+
+    @Test
+    public void computeBlockLuminanceWeightsChannels() {
+        int[] blocks = new int[1];
+        MotionDetector.computeBlockLuminance(new int[]{0xffff0000}, 1, 1, 1, 1, blocks);
+        assertEquals(76, blocks[0]);
+        MotionDetector.computeBlockLuminance(new int[]{0xff00ff00}, 1, 1, 1, 1, blocks);
+        assertEquals(149, blocks[0]);
+        MotionDetector.computeBlockLuminance(new int[]{0xff0000ff}, 1, 1, 1, 1, blocks);
+        assertEquals(28, blocks[0]);
+    }
+
+    @Test
+    public void computeBlockLuminanceOfEachBlock() {
+        // 2x2 blocks of 4x4 pixels, each block of its own gray.
+        int width = 8;
+        int[] pixels = new int[width * 8];
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = gray(10 + 20 * (y / 4 * 2 + x / 4));
+            }
+        }
+        int[] blocks = new int[4];
+        MotionDetector.computeBlockLuminance(pixels, width, 2, 2, 4, blocks);
+        assertArrayEquals(new int[]{10, 30, 50, 70}, blocks);
+    }
+
+    @Test
+    public void computeBlockLuminanceIgnoresPartialBlocks() {
+        // 10x10 pixels hold one 8x8 block. The edges are white.
+        int width = 10;
+        int[] pixels = fill(width, 10, 255);
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                pixels[y * width + x] = gray(40);
+            }
+        }
+        int[] blocks = new int[1];
+        MotionDetector.computeBlockLuminance(pixels, width, 1, 1, 8, blocks);
+        assertEquals(40, blocks[0]);
+    }
+
+    @Test
+    public void countChangedBlocksOfSameFrames() {
+        int[] previous = {10, 20, 30, 40};
+        assertEquals(0, MotionDetector.countChangedBlocks(previous, previous.clone(), 4, 5));
+    }
+
+    @Test
+    public void countChangedBlocksOverThreshold() {
+        int[] previous = {10, 20, 30, 40, 50, 60, 70, 80};
+        int[] current = {10, 20, 30, 40, 50, 60, 110, 40};
+        // The mean change is 0, so two blocks changed by 40.
+        assertEquals(2, MotionDetector.countChangedBlocks(previous, current, 8, 20));
+        assertEquals(0, MotionDetector.countChangedBlocks(previous, current, 8, 40));
+    }
+
+    @Test
+    public void countChangedBlocksIgnoresGlobalChange() {
+        // Exposure raised every block by 50.
+        int[] previous = {10, 20, 30, 40};
+        int[] current = {60, 70, 80, 90};
+        assertEquals(0, MotionDetector.countChangedBlocks(previous, current, 4, 10));
+    }
+
+    @Test
+    public void countChangedBlocksCountsOnlyIndicatedBlocks() {
+        int[] previous = {0, 0, 0, 0};
+        int[] current = {0, 0, 0, 100};
+        assertEquals(0, MotionDetector.countChangedBlocks(previous, current, 3, 10));
+    }
+}
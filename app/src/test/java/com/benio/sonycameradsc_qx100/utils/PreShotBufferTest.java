@@ -0,0 +1,245 @@
+package com.benio.sonycameradsc_qx100.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PreShotBufferTest {
+
+    /**
+     * An executor running tasks only when the test tells it to.
+     */
+    private static final class ManualExecutor extends AbstractExecutorService {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            tasks.clear();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return tasks;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("preshot", "");
+        mDirectory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private byte[] readSaved(int index) throws IOException {
+        String prefix = String.format(Locale.US, "%04d_", index);
+        for (File file : mDirectory.listFiles()) {
+            if (file.getName().startsWith(prefix)) {
+                byte[] data = new byte[(int) file.length()];
+                RandomAccessFile in = new RandomAccessFile(file, "r");
+                try {
+                    in.readFully(data);
+                } finally {
+                    in.close();
+                }
+                return data;
+            }
+        }
+        fail("frame " + index + " is not saved");
+        return null;
+    }
+
+    private static byte[] frame(int length, int value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    private static void insert(PreShotBuffer buffer, int length, int value) {
+        // Surrounded by other data, as in a Payload container.
+        byte[] container = new byte[length + 4];
+        System.arraycopy(frame(length, value), 0, container, 2, length);
+        buffer.insert(container, 2, length, value);
+    }
+
+    private static void assertFrame(PreShotBuffer buffer, long sequence, int length, int value) {
+        byte[] copy = new byte[length];
+        assertTrue("frame " + sequence + " is kept", buffer.copyFrame(sequence, copy));
+        assertArrayEquals(frame(length, value), copy);
+    }
+
+    @Test
+    public void keepsFramesInOrder() {
+        PreShotBuffer buffer = new PreShotBuffer(1000, 100, 10);
+        insert(buffer, 10, 1);
+        insert(buffer, 20, 2);
+        insert(buffer, 30, 3);
+        assertEquals(3, buffer.getFrameCount());
+        assertFrame(buffer, 0, 10, 1);
+        assertFrame(buffer, 1, 20, 2);
+        assertFrame(buffer, 2, 30, 3);
+        assertFalse(buffer.copyFrame(3, new byte[30]));
+    }
+
+    @Test
+    public void evictsOldestByFrameCount() {
+        PreShotBuffer buffer = new PreShotBuffer(1000, 100, 3);
+        for (int i = 0; i < 5; i++) {
+            insert(buffer, 10, i);
+        }
+        assertEquals(3, buffer.getFrameCount());
+        assertFalse(buffer.copyFrame(0, new byte[10]));
+        assertFalse(buffer.copyFrame(1, new byte[10]));
+        assertFrame(buffer, 2, 10, 2);
+        assertFrame(buffer, 3, 10, 3);
+        assertFrame(buffer, 4, 10, 4);
+    }
+
+    @Test
+    public void evictsOverlappedFramesOnWrap() {
+        PreShotBuffer buffer = new PreShotBuffer(1000, 30, 10);
+        insert(buffer, 10, 0);
+        insert(buffer, 10, 1);
+        insert(buffer, 10, 2);
+        // Wraps to the start, over frame 0 only.
+        insert(buffer, 10, 3);
+        assertEquals(3, buffer.getFrameCount());
+        assertFalse(buffer.copyFrame(0, new byte[10]));
+        assertFrame(buffer, 1, 10, 1);
+        assertFrame(buffer, 2, 10, 2);
+        assertFrame(buffer, 3, 10, 3);
+
+        // Written after frame 3, over frames 1 and 2.
+        insert(buffer, 15, 4);
+        assertEquals(2, buffer.getFrameCount());
+        assertFalse(buffer.copyFrame(1, new byte[10]));
+        assertFalse(buffer.copyFrame(2, new byte[10]));
+        assertFrame(buffer, 3, 10, 3);
+        assertFrame(buffer, 4, 15, 4);
+    }
+
+    @Test
+    public void evictsTailOnWrap() {
+        PreShotBuffer buffer = new PreShotBuffer(1000, 30, 10);
+        insert(buffer, 10, 0);
+        insert(buffer, 10, 1);
+        insert(buffer, 8, 2);
+        insert(buffer, 10, 3);
+        // Does not fit after frame 3, so wraps over everything.
+        insert(buffer, 21, 4);
+        assertEquals(1, buffer.getFrameCount());
+        for (int i = 0; i < 4; i++) {
+            assertFalse(buffer.copyFrame(i, new byte[10]));
+        }
+        assertFrame(buffer, 4, 21, 4);
+    }
+
+    @Test
+    public void ignoresFrameLargerThanStorage() {
+        PreShotBuffer buffer = new PreShotBuffer(1000, 30, 10);
+        insert(buffer, 10, 0);
+        insert(buffer, 31, 1);
+        assertEquals(1, buffer.getFrameCount());
+        assertFrame(buffer, 0, 10, 0);
+        assertFalse(buffer.copyFrame(1, new byte[31]));
+    }
+
+    @Test
+    public void savesWholeWindowWhileFramesArrive() throws IOException {
+        ManualExecutor writer = new ManualExecutor();
+        PreShotBuffer buffer = new PreShotBuffer(1000, 100, 8, writer);
+        for (int i = 0; i < 8; i++) {
+            insert(buffer, 10, i);
+        }
+        buffer.save(mDirectory, 7);
+        // Frames arriving before the writer runs would evict the saved ones.
+        for (int i = 8; i < 28; i++) {
+            insert(buffer, 10, i);
+        }
+        assertEquals(8, buffer.getFrameCount());
+        writer.runAll();
+
+        assertEquals(8, mDirectory.listFiles().length);
+        for (int i = 0; i < 8; i++) {
+            assertArrayEquals(frame(10, i), readSaved(i));
+        }
+        // Saved frames are evicted again. Dropped frames had no sequence
+        // number.
+        insert(buffer, 10, 28);
+        assertFalse(buffer.copyFrame(0, new byte[10]));
+        assertFrame(buffer, 8, 10, 28);
+    }
+
+    @Test
+    public void evictsFramesOutsideSavedWindow() throws IOException {
+        ManualExecutor writer = new ManualExecutor();
+        PreShotBuffer buffer = new PreShotBuffer(3, 100, 8, writer);
+        for (int i = 0; i < 8; i++) {
+            insert(buffer, 10, i);
+        }
+        // Frames 4 to 7 are in the last 3 msec.
+        buffer.save(mDirectory, 7);
+        for (int i = 8; i < 13; i++) {
+            insert(buffer, 10, i);
+        }
+        assertFalse(buffer.copyFrame(3, new byte[10]));
+        assertFrame(buffer, 11, 10, 11);
+        // Frame 12 would have evicted frame 4.
+        assertFalse(buffer.copyFrame(12, new byte[10]));
+        writer.runAll();
+
+        assertEquals(4, mDirectory.listFiles().length);
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(frame(10, 4 + i), readSaved(i));
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package com.benio.sonycameradsc_qx100.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class SimpleLiveviewSlicerTest {
+
+    /**
+     * A transport serving the bytes written to the packet stream of the test.
+     */
+    private final class FixtureTransport implements LiveviewTransport {
+        @Override
+        public InputStream open(String url) {
+            return new ByteArrayInputStream(mPackets.toByteArray());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final ByteArrayOutputStream mPackets = new ByteArrayOutputStream();
+
+    private SimpleLiveviewSlicer mSlicer;
+
+    @Before
+    public void setUp() {
+        mSlicer = new SimpleLiveviewSlicer();
+        mSlicer.setTransport(new FixtureTransport());
+    }
+
+    @After
+    public void tearDown() {
+        mSlicer.close();
+    }
+
+    private void open() throws IOException {
+        mSlicer.open("http://192.168.122.1:8080/liveview/liveviewstream");
+    }
+
+    /**
+     * Writes a Packet. The bytes from offset 8 of Payload Header are taken
+     * from headerTail.
+     */
+    private void writePacket(int payloadType, int sequenceNumber, byte[] startCode,
+                             int dataSize, byte[] headerTail, byte[] data, int paddingSize)
+            throws IOException {
+        mPackets.write(new byte[]{
+                (byte) 0xFF, (byte) payloadType, (byte) (sequenceNumber >> 8),
+                (byte) sequenceNumber, 0, 0, 0, (byte) sequenceNumber});
+        byte[] payloadHeader = new byte[128];
+        System.arraycopy(startCode, 0, payloadHeader, 0, 4);
+        payloadHeader[4] = (byte) (dataSize >> 16);
+        payloadHeader[5] = (byte) (dataSize >> 8);
+        payloadHeader[6] = (byte) dataSize;
+        payloadHeader[7] = (byte) paddingSize;
+        if (headerTail != null) {
+            System.arraycopy(headerTail, 0, payloadHeader, 8, headerTail.length);
+        }
+        mPackets.write(payloadHeader);
+        mPackets.write(data);
+        mPackets.write(new byte[paddingSize]);
+    }
+
+    private static byte[] startCode() {
+        return new byte[]{0x24, 0x35, 0x68, 0x79};
+    }
+
+    private byte[] writeImage(int sequenceNumber, int length) throws IOException {
+        byte[] jpeg = MjpegAviWriterTest.makeJpeg(length, 640, 480, sequenceNumber);
+        writePacket(0x01, sequenceNumber, startCode(), length, null, jpeg, 3);
+        return jpeg;
+    }
+
+    private void writeFrameInfo(int sequenceNumber, int left) throws IOException {
+        // One frame of 16 bytes, version 1.0.
+        byte[] headerTail = {0x01, 0x00, 0x00, 0x01, 0x00, 0x10};
+        byte[] data = new byte[16];
+        data[0] = (byte) (left >> 8);
+        data[1] = (byte) left;
+        data[3] = 20;
+        data[4] = 0x27;
+        data[5] = 0x10;
+        data[7] = 30;
+        data[8] = LiveviewFrameInfo.CATEGORY_FACE;
+        data[9] = LiveviewFrameInfo.STATUS_FOCUSED;
+        writePacket(0x02, sequenceNumber, startCode(), data.length, headerTail, data, 0);
+    }
+
+    private static void assertImage(byte[] expected, SimpleLiveviewSlicer.Payload payload) {
+        assertEquals(expected.length, payload.jpegLength);
+        byte[] actual = new byte[payload.jpegLength];
+        System.arraycopy(payload.jpegData, 0, actual, 0, actual.length);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void slicesImagePackets() throws IOException {
+        byte[] first = writeImage(0, 1000);
+        byte[] second = writeImage(1, 1037);
+        open();
+
+        SimpleLiveviewSlicer.Payload payload = mSlicer.nextPayload();
+        assertEquals(0, payload.sequenceNumber);
+        assertEquals(3, payload.paddingLength);
+        assertImage(first, payload);
+        payload = mSlicer.nextPayload();
+        assertEquals(1, payload.sequenceNumber);
+        assertImage(second, payload);
+        assertEquals(2, mSlicer.getReceivedFrameCount());
+    }
+
+    @Test
+    public void corruptedStartCodeFailsWithoutResync() throws IOException {
+        writePacket(0x01, 0, new byte[]{0x24, 0x35, 0x68, 0x00}, 100, null, new byte[100], 0);
+        open();
+        try {
+            mSlicer.nextPayload();
+            fail("a corrupted start code is accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void resyncRecoversFromCorruptedStartCode() throws IOException {
+        writePacket(0x01, 0, new byte[]{0x24, 0x35, 0x68, 0x00}, 100, null, new byte[100], 0);
+        byte[] jpeg = writeImage(1, 1000);
+        mSlicer.setResyncEnabled(true);
+        open();
+
+        SimpleLiveviewSlicer.Payload payload = mSlicer.nextPayload();
+        assertEquals(1, payload.sequenceNumber);
+        assertImage(jpeg, payload);
+        assertEquals(1, mSlicer.getResyncCount());
+        // Everything of the broken Packet is skipped.
+        assertEquals(8 + 128 + 100, mSlicer.getSkippedBytes());
+    }
+
+    @Test
+    public void resyncSkipsGarbageBetweenPackets() throws IOException {
+        writeImage(0, 1000);
+        mPackets.write(new byte[]{1, 2, 3, (byte) 0xFF, 0x01, 6, 7});
+        byte[] jpeg = writeImage(1, 1000);
+        mSlicer.setResyncEnabled(true);
+        open();
+
+        assertEquals(0, mSlicer.nextPayload().sequenceNumber);
+        SimpleLiveviewSlicer.Payload payload = mSlicer.nextPayload();
+        assertImage(jpeg, payload);
+        assertEquals(1, mSlicer.getResyncCount());
+        assertEquals(7, mSlicer.getSkippedBytes());
+    }
+
+    @Test
+    public void truncatedPayloadFails() throws IOException {
+        byte[] jpeg = MjpegAviWriterTest.makeJpeg(1000, 640, 480, 0);
+        writePacket(0x01, 0, startCode(), 1000, null, jpeg, 0);
+        byte[] bytes = mPackets.toByteArray();
+        mPackets.reset();
+        mPackets.write(bytes, 0, bytes.length - 500);
+        open();
+        try {
+            mSlicer.nextPayload();
+            fail("a truncated payload is sliced");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void frameInfoBeforeImageIsAttached() throws IOException {
+        writeFrameInfo(5, 1000);
+        writeImage(5, 1000);
+        mSlicer.setFrameInfoEnabled(true);
+        open();
+
+        SimpleLiveviewSlicer.Payload payload = mSlicer.nextPayload();
+        assertEquals(5, payload.sequenceNumber);
+        LiveviewFrameInfo frameInfo = payload.frameInfo;
+        assertNotNull(frameInfo);
+        assertEquals(5, frameInfo.getSequenceNumber());
+        assertEquals(1, frameInfo.getCount());
+        assertEquals(1000, frameInfo.getLeft(0));
+        assertEquals(20, frameInfo.getTop(0));
+        assertEquals(10000, frameInfo.getRight(0));
+        assertEquals(30, frameInfo.getBottom(0));
+        assertEquals(LiveviewFrameInfo.CATEGORY_FACE, frameInfo.getCategory(0));
+        assertEquals(LiveviewFrameInfo.STATUS_FOCUSED, frameInfo.getStatus(0));
+    }
+
+    @Test
+    public void frameInfoAfterImageIsDropped() throws IOException {
+        writeImage(5, 1000);
+        writeFrameInfo(5, 1000);
+        writeImage(6, 1000);
+        mSlicer.setFrameInfoEnabled(true);
+        open();
+
+        assertNull(mSlicer.nextPayload().frameInfo);
+        // Stale for the next image.
+        SimpleLiveviewSlicer.Payload payload = mSlicer.nextPayload();
+        assertEquals(6, payload.sequenceNumber);
+        assertNull(payload.frameInfo);
+    }
+
+    @Test
+    public void frameInfoWaitsForItsImage() throws IOException {
+        writeFrameInfo(9, 2000);
+        writeImage(8, 1000);
+        writeImage(9, 1000);
+        mSlicer.setFrameInfoEnabled(true);
+        open();
+
+        assertNull(mSlicer.nextPayload().frameInfo);
+        SimpleLiveviewSlicer.Payload payload = mSlicer.nextPayload();
+        assertEquals(9, payload.sequenceNumber);
+        assertNotNull(payload.frameInfo);
+        assertEquals(2000, payload.frameInfo.getLeft(0));
+    }
+
+    @Test
+    public void frameInfoIsSkippedWhenDisabled() throws IOException {
+        writeFrameInfo(5, 1000);
+        byte[] jpeg = writeImage(5, 1000);
+        open();
+
+        SimpleLiveviewSlicer.Payload payload = mSlicer.nextPayload();
+        assertImage(jpeg, payload);
+        assertNull(payload.frameInfo);
+    }
+
+    private void writeMultiFrameImage(int sequenceNumber, int frameCount, int singleFrameSize,
+                                      int dataSize) throws IOException {
+        byte[] headerTail = {0, 0, (byte) (frameCount >> 8), (byte) frameCount,
+                (byte) (singleFrameSize >> 8), (byte) singleFrameSize};
+        byte[] data = new byte[dataSize];
+        for (int i = 0; i + 1 < dataSize; i += singleFrameSize) {
+            data[i] = (byte) 0xFF;
+            data[i + 1] = (byte) 0xD8;
+        }
+        writePacket(0x01, sequenceNumber, startCode(), dataSize, headerTail, data, 0);
+    }
+
+    @Test
+    public void slicesMultiFrameImage() throws IOException {
+        writeMultiFrameImage(0, 3, 50, 150);
+        mSlicer.setMultiFrameEnabled(true);
+        open();
+
+        SimpleLiveviewSlicer.Payload payload = mSlicer.nextPayload();
+        assertEquals(3, payload.frameCount);
+        assertEquals(50, payload.getFrameLength(2));
+        assertEquals(100, payload.getFrameOffset(2));
+        assertEquals(50, payload.getFrame(1).remaining());
+    }
+
+    @Test
+    public void multiFrameMismatchFailsWithoutResync() throws IOException {
+        writeMultiFrameImage(0, 3, 50, 140);
+        mSlicer.setMultiFrameEnabled(true);
+        open();
+        try {
+            mSlicer.nextPayload();
+            fail("frame count and size not matching the data size are accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void multiFrameMismatchIsSkippedWithResync() throws IOException {
+        writeMultiFrameImage(0, 3, 50, 140);
+        byte[] jpeg = writeImage(1, 1000);
+        mSlicer.setMultiFrameEnabled(true);
+        mSlicer.setResyncEnabled(true);
+        open();
+
+        SimpleLiveviewSlicer.Payload payload = mSlicer.nextPayload();
+        assertEquals(1, payload.sequenceNumber);
+        assertEquals(1, payload.frameCount);
+        assertImage(jpeg, payload);
+        assertEquals(1, mSlicer.getResyncCount());
+    }
+
+    @Test
+    public void releasedBuffersReturnToPool() throws IOException {
+        writeImage(0, 1000);
+        writeImage(1, 1000);
+        ByteArrayPool pool = new ByteArrayPool(1);
+        mSlicer.setBufferPool(pool);
+        open();
+
+        SimpleLiveviewSlicer.Payload payload = mSlicer.nextPayload();
+        byte[] data = payload.jpegData;
+        payload.release();
+        // The next Payload reuses the array.
+        payload = mSlicer.nextPayload();
+        assertSame(data, payload.jpegData);
+        payload.release();
+        assertSame(data, pool.acquire(1000));
+    }
+
+    @Test
+    public void truncatedPayloadReturnsBuffersToPool() throws IOException {
+        writeImage(0, 1000);
+        byte[] jpeg = MjpegAviWriterTest.makeJpeg(1000, 640, 480, 1);
+        writePacket(0x01, 1, startCode(), 1000, null, jpeg, 0);
+        byte[] bytes = mPackets.toByteArray();
+        mPackets.reset();
+        mPackets.write(bytes, 0, bytes.length - 500);
+        ByteArrayPool pool = new ByteArrayPool(1);
+        mSlicer.setBufferPool(pool);
+        open();
+
+        SimpleLiveviewSlicer.Payload payload = mSlicer.nextPayload();
+        byte[] data = payload.jpegData;
+        payload.release();
+        try {
+            mSlicer.nextPayload();
+            fail("a truncated payload is sliced");
+        } catch (IOException e) {
+            // expected
+        }
+        assertSame(data, pool.acquire(1000));
+    }
+
+    @Test
+    public void brokenImageReturnsBuffersToPool() throws IOException {
+        writeImage(0, 1000);
+        // Not a JPEG, as if the sizes in Payload Header were broken.
+        writePacket(0x01, 1, startCode(), 1000, null, new byte[1000], 0);
+        writeImage(2, 1000);
+        ByteArrayPool pool = new ByteArrayPool(1);
+        mSlicer.setBufferPool(pool);
+        mSlicer.setResyncEnabled(true);
+        open();
+
+        SimpleLiveviewSlicer.Payload payload = mSlicer.nextPayload();
+        byte[] data = payload.jpegData;
+        payload.release();
+        payload = mSlicer.nextPayload();
+        assertEquals(2, payload.sequenceNumber);
+        assertSame(data, payload.jpegData);
+        assertEquals(1, mSlicer.getResyncCount());
+    }
+
+    @Test
+    public void skipsImagesWhileConsumerLags() throws IOException {
+        for (int i = 0; i < 4; i++) {
+            writeImage(i, 1000);
+        }
+        // The consumer lags behind for the first two images.
+        final int[] calls = {0};
+        mSlicer.setBackpressureSignal(new SimpleLiveviewSlicer.BackpressureSignal() {
+            @Override
+            public boolean isConsumerLagging() {
+                return calls[0]++ < 2;
+            }
+        });
+        open();
+
+        SimpleLiveviewSlicer.Payload payload = mSlicer.nextPayload();
+        assertEquals(2, payload.sequenceNumber);
+        assertEquals(2, mSlicer.getDiscardedFrameCount());
+        // Skipped images are still received.
+        assertEquals(3, mSlicer.getReceivedFrameCount());
+        assertEquals(3, mSlicer.nextPayload().sequenceNumber);
+        assertEquals(2, mSlicer.getDiscardedFrameCount());
+    }
+
+    @Test
+    public void parsesPlaybackInfo() throws IOException {
+        byte[] headerTail = {0x01, 0x00};
+        byte[] data = {0, 0, (byte) 0xEA, 0x60, 0, 0, 0x75, 0x30};
+        writePacket(0x12, 7, startCode(), data.length, headerTail, data, 4);
+        writeImage(8, 1000);
+        final long[] received = new long[3];
+        mSlicer.setPlaybackInfoListener(new SimpleLiveviewSlicer.PlaybackInfoListener() {
+            @Override
+            public void onPlaybackInfo(StreamingPlaybackInfo info) {
+                received[0] = info.getSequenceNumber();
+                received[1] = info.getDurationMillis();
+                received[2] = info.getPositionMillis();
+            }
+        });
+        open();
+
+        // The listener is called while the next image is sliced.
+        assertEquals(8, mSlicer.nextPayload().sequenceNumber);
+        assertEquals(7, received[0]);
+        assertEquals(60000, received[1]);
+        assertEquals(30000, received[2]);
+    }
+}
@@ -0,0 +1,125 @@
+package com.benio.sonycameradsc_qx100.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TimelapseRecorderTest {
+
+    private File mCaptureFile;
+
+    private File mAviFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mCaptureFile = File.createTempFile("liveview", ".dat");
+        mAviFile = File.createTempFile("timelapse", ".avi");
+    }
+
+    @After
+    public void tearDown() {
+        mCaptureFile.delete();
+        mAviFile.delete();
+    }
+
+    @Test
+    public void keepsOneFrameEachInterval() throws IOException {
+        List<byte[]> jpegs = MjpegAviWriterTest.recordCapture(mCaptureFile, 30, 33);
+        SimpleLiveviewSlicer slicer = MjpegAviWriterTest.openReplay(mCaptureFile);
+        TimelapseRecorder recorder = new TimelapseRecorder(mAviFile, 100, 25, 4);
+        try {
+            for (int i = 0; i < jpegs.size(); i++) {
+                SimpleLiveviewSlicer.Payload payload = slicer.nextPayload();
+                recorder.onFrame(payload);
+                payload.release();
+            }
+        } finally {
+            slicer.close();
+            recorder.stop();
+        }
+
+        // Frames at 0, 132, 264, ... 924 msec.
+        List<byte[]> frames = MjpegAviWriterTest.readAvi(mAviFile, new int[2]);
+        assertEquals(8, recorder.getFrameCount());
+        assertEquals(8, frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            assertArrayEquals(jpegs.get(i * 4), frames.get(i));
+        }
+    }
+
+    @Test
+    public void ignoresFramesAfterStop() throws IOException {
+        MjpegAviWriterTest.recordCapture(mCaptureFile, 2, 1000);
+        SimpleLiveviewSlicer slicer = MjpegAviWriterTest.openReplay(mCaptureFile);
+        TimelapseRecorder recorder = new TimelapseRecorder(mAviFile, 100, 25, 4);
+        try {
+            SimpleLiveviewSlicer.Payload payload = slicer.nextPayload();
+            recorder.onFrame(payload);
+            payload.release();
+            recorder.stop();
+            payload = slicer.nextPayload();
+            recorder.onFrame(payload);
+            payload.release();
+        } finally {
+            slicer.close();
+        }
+        assertEquals(1, recorder.getFrameCount());
+        assertEquals(1, MjpegAviWriterTest.readAvi(mAviFile, new int[2]).size());
+    }
+
+    @Test
+    public void finishesFileWhenStoppedDuringWrite() throws Exception {
+        MjpegAviWriterTest.recordCapture(mCaptureFile, 1, 1000);
+        SimpleLiveviewSlicer slicer = MjpegAviWriterTest.openReplay(mCaptureFile);
+        final TimelapseRecorder recorder = new TimelapseRecorder(mAviFile, 100, 25, 4);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final CountDownLatch written = new CountDownLatch(1);
+        FrameDispatcher dispatcher = new FrameDispatcher();
+        // Holds the recorder's thread inside onFrame() until the dispatcher
+        // is stopped, keeping an interrupt for the write as it arrived.
+        dispatcher.addSink(new FrameSink() {
+            @Override
+            public void onFrame(SimpleLiveviewSlicer.Payload payload) {
+                entered.countDown();
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        stopped.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                recorder.onFrame(payload);
+                written.countDown();
+            }
+        }, FrameSink.Policy.DROP);
+        try {
+            dispatcher.start();
+            dispatcher.dispatch(slicer.nextPayload());
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            dispatcher.stop();
+            stopped.countDown();
+            assertTrue(written.await(5, TimeUnit.SECONDS));
+        } finally {
+            slicer.close();
+            recorder.stop();
+        }
+
+        // The index and sizes are still written by stop().
+        assertEquals(1, recorder.getFrameCount());
+        assertEquals(1, MjpegAviWriterTest.readAvi(mAviFile, new int[2]).size());
+    }
+}